@@ -0,0 +1,112 @@
+package com.ssoliwal.image;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.os.Debug;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+import android.view.View;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Cost of binding viewers the way a scrolling grid does: hundreds of views, each cleared and given
+ * another bitmap over and over, with time, allocations and garbage collections per bind.
+ *
+ * @author Shailesh Soliwal
+ */
+
+@RunWith(AndroidJUnit4.class)
+public class BindCostBenchmark {
+    private static final String TAG = "BindCostBenchmark";
+    private static final int VIEWS = 300;
+    private static final int BITMAPS = 40;
+    private static final int CELL_SIZE = 180;
+    private static final int WARMUP_PASSES = 3;
+    private static final int PASSES = 20;
+    // A bind wraps the bitmap in a drawable; detectors and animators must not be reallocated
+    private static final long MAX_BYTES_PER_BIND = 4096;
+
+    private final FFImageView[] mViews = new FFImageView[VIEWS];
+    private final Bitmap[] mBitmaps = new Bitmap[BITMAPS];
+
+    @Before
+    public void setUp() {
+        for (int i = 0; i < BITMAPS; i++) {
+            // Varied sizes, so every bind lays the image out again
+            mBitmaps[i] = Bitmap.createBitmap(200 + i * 7, 150 + i * 5, Bitmap.Config.ARGB_8888);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        for (Bitmap bitmap : mBitmaps) {
+            bitmap.recycle();
+        }
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void bindCost() {
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                for (int i = 0; i < VIEWS; i++) {
+                    mViews[i] = new FFImageView(InstrumentationRegistry.getTargetContext());
+                    mViews[i].measure(View.MeasureSpec.makeMeasureSpec(CELL_SIZE, View.MeasureSpec.EXACTLY),
+                            View.MeasureSpec.makeMeasureSpec(CELL_SIZE, View.MeasureSpec.EXACTLY));
+                    mViews[i].layout(0, 0, CELL_SIZE, CELL_SIZE);
+                }
+                final long createNanos = (System.nanoTime() - start) / VIEWS;
+
+                binds(WARMUP_PASSES);
+                final int gcs = gcCount();
+                Debug.resetThreadAllocSize();
+                Debug.startAllocCounting();
+                start = System.nanoTime();
+                binds(PASSES);
+                final long bindNanos = (System.nanoTime() - start) / (VIEWS * PASSES);
+                Debug.stopAllocCounting();
+                final long bytesPerBind = Debug.getThreadAllocSize() / (VIEWS * PASSES);
+                Log.i(TAG, VIEWS + " views: create " + createNanos / 1000 + " us, bind " + bindNanos / 1000
+                        + " us and " + bytesPerBind + " bytes, " + (gcs >= 0 ? gcCount() - gcs : "?")
+                        + " GCs over " + VIEWS * PASSES + " binds");
+                assertTrue(bytesPerBind + " bytes per bind", bytesPerBind <= MAX_BYTES_PER_BIND);
+
+                for (FFImageView view : mViews) {
+                    view.clear();
+                }
+            }
+        });
+    }
+
+    /**
+     * Rebinds every view as a recycled cell would: clear, then another bitmap.
+     */
+    private void binds(int passes) {
+        for (int pass = 0; pass < passes; pass++) {
+            for (int i = 0; i < VIEWS; i++) {
+                mViews[i].clear();
+                mViews[i].setBitmap(mBitmaps[(i + pass) % BITMAPS]);
+            }
+        }
+    }
+
+    /**
+     * @return garbage collections since the process started, or -1 where the runtime does not tell.
+     */
+    private static int gcCount() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return -1;
+        }
+        final String count = Debug.getRuntimeStat("art.gc.gc-count");
+        return count != null ? Integer.parseInt(count) : -1;
+    }
+}
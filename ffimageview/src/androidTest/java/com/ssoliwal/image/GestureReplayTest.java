@@ -0,0 +1,189 @@
+package com.ssoliwal.image;
+
+import android.graphics.Bitmap;
+import android.graphics.Matrix;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+import android.view.MotionEvent;
+import android.view.View;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Records a pinch and a pan on one view, replays the trace on another and checks both end on the same
+ * transform once settled, with a cost reported for every event and the batched samples of every move.
+ *
+ * @author Shailesh Soliwal
+ */
+
+@RunWith(AndroidJUnit4.class)
+public class GestureReplayTest {
+    private static final String TAG = "GestureReplayTest";
+    private static final int VIEW_WIDTH = 1080;
+    private static final int VIEW_HEIGHT = 720;
+    private static final int MOVES = 12;
+
+    private Bitmap mBitmap;
+
+    @Before
+    public void setUp() {
+        mBitmap = Bitmap.createBitmap(1600, 1200, Bitmap.Config.ARGB_8888);
+    }
+
+    @After
+    public void tearDown() {
+        mBitmap.recycle();
+    }
+
+    @Test
+    public void replayEndsOnRecordedTransform() throws IOException {
+        final GestureRecorder recorder = new GestureRecorder();
+        final Matrix recorded = new Matrix();
+        final GestureReplayer.Report[] reports = new GestureReplayer.Report[2];
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                FFImageView view = createView();
+                view.setGestureRecorder(recorder);
+                for (MotionEvent event : pinchAndPan()) {
+                    view.onTouchEvent(event);
+                    event.recycle();
+                }
+                GestureReplayer.settle(view);
+                view.getImageMatrix(recorded);
+                view.clear();
+            }
+        });
+        final GestureTrace trace = GestureTrace.read(new ByteArrayInputStream(recorder.toByteArray()));
+        assertEquals(recorder.getEventCount(), trace.getEventCount());
+        assertEquals(2 + 2 * MOVES + 2, trace.getEventCount());
+        assertEquals(2, trace.getPointerCount(MOVES / 2));
+        assertEquals(0, trace.getHistorySize(MOVES / 2));
+        // Every move of the pan batches the sample half way
+        assertEquals(1, trace.getHistorySize(MOVES + 3));
+        MotionEvent pan = trace.obtainEvent(MOVES + 3, 0);
+        assertEquals(1, pan.getHistorySize());
+        assertEquals(trace.getEventTime(MOVES + 3) - 8, pan.getHistoricalEventTime(0));
+        assertEquals(230f, pan.getHistoricalX(0, 0), 0f);
+        assertEquals(240f, pan.getX(0), 0f);
+        pan.recycle();
+
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                // Twice, each time on a fresh view
+                for (int i = 0; i < reports.length; i++) {
+                    FFImageView view = createView();
+                    reports[i] = GestureReplayer.replay(view, trace);
+                    view.clear();
+                }
+            }
+        });
+        Log.i(TAG, reports[0].toString());
+        assertFalse("Gesture did not move the image", recorded.equals(new Matrix()));
+        for (GestureReplayer.Report report : reports) {
+            assertEquals(trace.getEventCount(), report.cpuTimeNanos.length);
+            assertMatrixEquals(recorded, report.finalMatrix);
+            // Every move of the pinch and the pan redraws
+            assertTrue(report.getTotalInvalidations() >= 2 * MOVES);
+            for (long nanos : report.cpuTimeNanos) {
+                assertTrue(nanos >= 0);
+            }
+        }
+    }
+
+    @Test
+    public void rejectsOtherData() {
+        try {
+            GestureTrace.read(new ByteArrayInputStream(new byte[]{'P', 'N', 'G', 0, 1}));
+            fail("Read a trace from other data");
+        } catch (IOException expected) {
+            // Wrong magic
+        }
+    }
+
+    private FFImageView createView() {
+        FFImageView view = new FFImageView(InstrumentationRegistry.getTargetContext());
+        view.setBitmap(mBitmap);
+        view.measure(View.MeasureSpec.makeMeasureSpec(VIEW_WIDTH, View.MeasureSpec.EXACTLY),
+                View.MeasureSpec.makeMeasureSpec(VIEW_HEIGHT, View.MeasureSpec.EXACTLY));
+        view.layout(0, 0, VIEW_WIDTH, VIEW_HEIGHT);
+        return view;
+    }
+
+    /**
+     * Two fingers spread apart, then the first one pans on alone, 16 ms between events and a sample batched
+     * half way into every move of the pan. The last finger rests before it lifts, so nothing is flung.
+     */
+    private static List<MotionEvent> pinchAndPan() {
+        List<MotionEvent> events = new ArrayList<>();
+        final long down = 1000;
+        long time = down;
+        events.add(event(down, time, MotionEvent.ACTION_DOWN, 400, 360));
+        events.add(event(down, time += 16, MotionEvent.ACTION_POINTER_DOWN
+                | (1 << MotionEvent.ACTION_POINTER_INDEX_SHIFT), 400, 360, 680, 360));
+        for (int i = 1; i <= MOVES; i++) {
+            events.add(event(down, time += 16, MotionEvent.ACTION_MOVE, 400 - i * 15, 360, 680 + i * 15, 360));
+        }
+        events.add(event(down, time += 16, MotionEvent.ACTION_POINTER_UP
+                | (1 << MotionEvent.ACTION_POINTER_INDEX_SHIFT), 400 - MOVES * 15, 360, 680 + MOVES * 15, 360));
+        for (int i = 1; i <= MOVES; i++) {
+            MotionEvent move = event(down, time += 8, MotionEvent.ACTION_MOVE, 210 + i * 20, 365 - i * 10);
+            move.addBatch(time += 8, coords(220 + i * 20, 360 - i * 10), 0);
+            events.add(move);
+        }
+        events.add(event(down, time + 200, MotionEvent.ACTION_UP, 220 + MOVES * 20, 360 - MOVES * 10));
+        return events;
+    }
+
+    /**
+     * @param points x and y of every pointer, by pointer id
+     */
+    private static MotionEvent event(long downTime, long eventTime, int action, float... points) {
+        final int count = points.length / 2;
+        MotionEvent.PointerProperties[] properties = new MotionEvent.PointerProperties[count];
+        for (int i = 0; i < count; i++) {
+            properties[i] = new MotionEvent.PointerProperties();
+            properties[i].id = i;
+            properties[i].toolType = MotionEvent.TOOL_TYPE_FINGER;
+        }
+        return MotionEvent.obtain(downTime, eventTime, action, count, properties, coords(points), 0, 0, 1f, 1f,
+                0, 0, 0, 0);
+    }
+
+    private static MotionEvent.PointerCoords[] coords(float... points) {
+        MotionEvent.PointerCoords[] coords = new MotionEvent.PointerCoords[points.length / 2];
+        for (int i = 0; i < coords.length; i++) {
+            coords[i] = new MotionEvent.PointerCoords();
+            coords[i].x = points[i * 2];
+            coords[i].y = points[i * 2 + 1];
+            coords[i].pressure = 1f;
+            coords[i].size = 1f;
+        }
+        return coords;
+    }
+
+    private static void assertMatrixEquals(Matrix expected, Matrix actual) {
+        final float[] expectedValues = new float[9];
+        final float[] actualValues = new float[9];
+        expected.getValues(expectedValues);
+        actual.getValues(actualValues);
+        for (int i = 0; i < 9; i++) {
+            assertEquals("Matrix value " + i, expectedValues[i], actualValues[i], 1e-3f);
+        }
+    }
+}
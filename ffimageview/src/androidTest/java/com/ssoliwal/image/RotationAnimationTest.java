@@ -0,0 +1,121 @@
+package com.ssoliwal.image;
+
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.view.View;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Traces the frames of rotations: every frame builds the interpolated matrix once and nothing is clamped,
+ * snapped or refitted until the rotation ends.
+ *
+ * @author Shailesh Soliwal
+ */
+
+@RunWith(AndroidJUnit4.class)
+public class RotationAnimationTest {
+    private static final int VIEW_WIDTH = 1080;
+    private static final int VIEW_HEIGHT = 720;
+
+    private FFImageView mView;
+
+    @Before
+    public void setUp() {
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mView = new FFImageView(InstrumentationRegistry.getTargetContext());
+                mView.setImageSize(4000, 3000);
+                mView.measure(View.MeasureSpec.makeMeasureSpec(VIEW_WIDTH, View.MeasureSpec.EXACTLY),
+                        View.MeasureSpec.makeMeasureSpec(VIEW_HEIGHT, View.MeasureSpec.EXACTLY));
+                mView.layout(0, 0, VIEW_WIDTH, VIEW_HEIGHT);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        PhaseTracer.stopLog();
+    }
+
+    @Test
+    public void framesOnlyBuildTheMatrix() throws IOException {
+        float expected = 0;
+        for (float degrees : new float[]{90f, 37f, -450f, 3600f, 0.5f}) {
+            expected += degrees;
+            final int[] frames = new int[1];
+            PhaseTrace trace = trace(new Runnable() {
+                @Override
+                public void run() {
+                    while (mView.runViewportFrame()) {
+                        frames[0]++;
+                        SystemClock.sleep(16);
+                    }
+                }
+            }, degrees);
+            assertTrue(frames[0] > 1);
+            assertEquals(frames[0], trace.getSpanCount(PhaseTrace.PHASE_TRANSFORM));
+            assertEquals(0, trace.getSpanCount(PhaseTrace.PHASE_CLAMP));
+            assertRotation(expected);
+        }
+    }
+
+    @Test
+    public void gestureOnlyTurnsTheMatrix() throws IOException {
+        PhaseTrace trace = trace(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 30; i++) {
+                    mView.onRotate(3f, VIEW_WIDTH / 2f, VIEW_HEIGHT / 2f);
+                }
+            }
+        }, 0f);
+        assertEquals(0, trace.getSpanCount(PhaseTrace.PHASE_TRANSFORM));
+        assertEquals(0, trace.getSpanCount(PhaseTrace.PHASE_CLAMP));
+        assertRotation(90f);
+    }
+
+    /**
+     * Starts a rotation by the given angle, if any, then traces what the given frames do.
+     */
+    private PhaseTrace trace(final Runnable frames, final float degrees) throws IOException {
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                if (degrees != 0) {
+                    mView.rotateImage(degrees, true);
+                }
+                PhaseTracer.startLog(4096);
+                frames.run();
+            }
+        });
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PhaseTracer.dump(out);
+        PhaseTracer.stopLog();
+        return PhaseTrace.read(new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    private void assertRotation(float degrees) {
+        final float[] transform = new float[4];
+        assertTrue(mView.getNormalizedTransform(transform));
+        float difference = (transform[3] - degrees) % 360f;
+        if (difference > 180f) {
+            difference -= 360f;
+        } else if (difference < -180f) {
+            difference += 360f;
+        }
+        assertEquals(0f, difference, 0.01f);
+    }
+}
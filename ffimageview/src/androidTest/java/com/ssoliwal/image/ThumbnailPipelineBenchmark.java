@@ -0,0 +1,157 @@
+package com.ssoliwal.image;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.LinearGradient;
+import android.graphics.Paint;
+import android.graphics.Shader;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Thumbnail throughput over a directory of camera sized images, with a cold and a warm cache.
+ *
+ * @author Shailesh Soliwal
+ */
+
+@RunWith(AndroidJUnit4.class)
+public class ThumbnailPipelineBenchmark {
+    private static final String TAG = "ThumbnailBenchmark";
+    private static final int OPAQUE_IMAGES = 24;
+    private static final int ALPHA_IMAGES = 8;
+    private static final int IMAGE_WIDTH = 2048;
+    private static final int IMAGE_HEIGHT = 1536;
+    private static final int THUMBNAIL_SIZE = 256;
+
+    private File mImageDir;
+    private File mCacheDir;
+
+    @Before
+    public void setUp() throws IOException {
+        File root = InstrumentationRegistry.getTargetContext().getCacheDir();
+        mImageDir = new File(root, "benchmark-images");
+        mCacheDir = new File(root, "benchmark-thumbnails");
+        deleteDir(mImageDir);
+        deleteDir(mCacheDir);
+        assertTrue(mImageDir.mkdirs() && mCacheDir.mkdirs());
+
+        Bitmap image = Bitmap.createBitmap(IMAGE_WIDTH, IMAGE_HEIGHT, Bitmap.Config.ARGB_8888);
+        Paint paint = new Paint();
+        for (int i = 0; i < OPAQUE_IMAGES + ALPHA_IMAGES; i++) {
+            final boolean alpha = i >= OPAQUE_IMAGES;
+            image.eraseColor(Color.TRANSPARENT);
+            paint.setShader(new LinearGradient(0, 0, IMAGE_WIDTH, IMAGE_HEIGHT, Color.rgb(i * 7, 40, 200),
+                    alpha ? Color.TRANSPARENT : Color.rgb(250, i * 5, 10), Shader.TileMode.CLAMP));
+            new Canvas(image).drawRect(0, 0, IMAGE_WIDTH, IMAGE_HEIGHT, paint);
+            File file = new File(mImageDir, "image" + i + (alpha ? ".png" : ".jpg"));
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                image.compress(alpha ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG, 90, out);
+            } finally {
+                out.close();
+            }
+        }
+        image.recycle();
+    }
+
+    @After
+    public void tearDown() {
+        deleteDir(mImageDir);
+        deleteDir(mCacheDir);
+    }
+
+    @Test
+    public void throughput() throws InterruptedException, IOException {
+        final File[] files = mImageDir.listFiles();
+        final long cold = run(files);
+        final long warm = run(files);
+        Log.i(TAG, files.length + " images, cold cache " + perSecond(files.length, cold)
+                + " images/s, warm cache " + perSecond(files.length, warm) + " images/s");
+
+        // Only images with alpha are worth a lossless thumbnail
+        int jpegs = 0;
+        int pngs = 0;
+        for (File thumbnail : mCacheDir.listFiles()) {
+            final int magic = readMagic(thumbnail);
+            if (magic == 0xFFD8) {
+                jpegs++;
+            } else if (magic == 0x8950) {
+                pngs++;
+            }
+        }
+        assertEquals(OPAQUE_IMAGES, jpegs);
+        assertEquals(ALPHA_IMAGES, pngs);
+    }
+
+    /**
+     * @return nanoseconds until every thumbnail of the given files was delivered.
+     */
+    private long run(File[] files) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(files.length);
+        final int[] failures = new int[1];
+        ThumbnailPipeline pipeline = new ThumbnailPipeline(mCacheDir, THUMBNAIL_SIZE, 8,
+                ThumbnailPipeline.POLICY_BLOCK);
+        final long start = System.nanoTime();
+        for (File file : files) {
+            pipeline.submit(file, new ThumbnailPipeline.Callback() {
+                @Override
+                public void onThumbnail(File file, Bitmap thumbnail) {
+                    BitmapPool.put(thumbnail);
+                    done.countDown();
+                }
+
+                @Override
+                public void onError(File file, IOException e) {
+                    failures[0]++;
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue(done.await(2, TimeUnit.MINUTES));
+        final long elapsed = System.nanoTime() - start;
+        pipeline.shutdown();
+        assertEquals(0, failures[0]);
+        assertEquals(files.length, pipeline.getCompletedCount());
+        return elapsed;
+    }
+
+    private static String perSecond(int count, long nanos) {
+        return String.format("%.1f", count * 1e9 / nanos);
+    }
+
+    private static int readMagic(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            return (in.read() << 8) | in.read();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void deleteDir(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+}
@@ -0,0 +1,205 @@
+package com.ssoliwal.image;
+
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+
+/**
+ * Plays a {@link FrameSource} into a {@link FFImageView}.
+ * <p>
+ * Frames are decoded ahead on a background thread into a fixed ring of {@link #RING_SIZE} bitmaps, so
+ * memory does not depend on the number of frames. The slot on screen is never written to; the UI thread
+ * moves to the next slot when its time has come and hands the old one back to the decoder.
+ *
+ * @author Shailesh Soliwal
+ */
+
+class AnimationPlayer {
+    private static final String TAG = "AnimationPlayer";
+    static final int RING_SIZE = 3;
+    // How long to wait for a frame the decoder has not finished yet
+    private static final long LATE_FRAME_DELAY = 4L;
+
+    private final FFImageView mView;
+    private final FrameSource mSource;
+    private final int mFrameCount;
+    private final Bitmap[] mSlots = new Bitmap[RING_SIZE];
+    private final BitmapDrawable[] mDrawables = new BitmapDrawable[RING_SIZE];
+    // Guarded by this
+    private final int[] mSlotFrame = new int[RING_SIZE];
+    private final boolean[] mSlotReady = new boolean[RING_SIZE];
+    private int mShownSlot;
+    private int mDecodeSlot;
+    private int mDecodeFrame;
+
+    private final HandlerThread mThread;
+    private final Handler mDecodeHandler;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private long mNextFrameTime;
+    private boolean mPlaying;
+    private volatile boolean mReleased;
+    // A frame could not be decoded; playback stops once the frames decoded before it were shown
+    private volatile boolean mFailed;
+
+    AnimationPlayer(FFImageView view, FrameSource source) throws IOException {
+        mView = view;
+        mSource = source;
+        mFrameCount = Math.max(1, source.getFrameCount());
+        final int width = source.getWidth();
+        final int height = source.getHeight();
+        for (int i = 0; i < RING_SIZE; i++) {
+            mSlots[i] = BitmapPool.obtain(width, height, Bitmap.Config.ARGB_8888);
+            mDrawables[i] = new BitmapDrawable(view.getResources(), mSlots[i]);
+        }
+        // The first frame is drawn right away so the view has pixels to lay out
+        try {
+            source.drawFrame(0, mSlots[0]);
+        } catch (IOException | RuntimeException e) {
+            for (int i = 0; i < RING_SIZE; i++) {
+                BitmapPool.put(mSlots[i]);
+                mSlots[i] = null;
+            }
+            throw e;
+        }
+        mSlotFrame[0] = 0;
+        mSlotReady[0] = true;
+        mShownSlot = 0;
+        mDecodeSlot = 1;
+        mDecodeFrame = 1 % mFrameCount;
+
+        mThread = new HandlerThread("FFImageView-frames", Process.THREAD_PRIORITY_DISPLAY);
+        mThread.start();
+        mDecodeHandler = new Handler(mThread.getLooper());
+    }
+
+    BitmapDrawable getCurrentDrawable() {
+        return mDrawables[mShownSlot];
+    }
+
+    /**
+     * @return bytes held by the frame ring.
+     */
+    long getBytes() {
+        long bytes = 0;
+        for (Bitmap slot : mSlots) {
+            bytes += MemoryTracker.sizeOf(slot);
+        }
+        return bytes;
+    }
+
+    /**
+     * Starts or resumes playback. Must be called on the UI thread.
+     */
+    void start() {
+        if (mPlaying || mReleased || mFailed || mFrameCount < 2) {
+            return;
+        }
+        mPlaying = true;
+        int frame;
+        synchronized (this) {
+            frame = mSlotFrame[mShownSlot];
+        }
+        mNextFrameTime = SystemClock.uptimeMillis() + mSource.getFrameDuration(frame);
+        mDecodeHandler.post(mDecodeRunnable);
+        mMainHandler.postAtTime(mFrameRunnable, mNextFrameTime);
+    }
+
+    /**
+     * Pauses playback on the current frame. Frames already decoded ahead are kept.
+     */
+    void pause() {
+        mPlaying = false;
+        mMainHandler.removeCallbacks(mFrameRunnable);
+    }
+
+    /**
+     * Stops playback for good and hands the ring bitmaps to the {@link BitmapPool}.
+     */
+    void release() {
+        pause();
+        mReleased = true;
+        // The decoder may still be writing into a slot; let its thread release the ring
+        mDecodeHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < RING_SIZE; i++) {
+                    BitmapPool.put(mSlots[i]);
+                    mSlots[i] = null;
+                }
+                Looper.myLooper().quit();
+            }
+        });
+    }
+
+    private final Runnable mDecodeRunnable = new Runnable() {
+        @Override
+        public void run() {
+            while (!mReleased) {
+                int slot;
+                int frame;
+                synchronized (AnimationPlayer.this) {
+                    slot = mDecodeSlot;
+                    if (mSlotReady[slot]) {
+                        // Ring is full
+                        return;
+                    }
+                    frame = mDecodeFrame;
+                }
+                try {
+                    mSource.drawFrame(frame, mSlots[slot]);
+                } catch (IOException e) {
+                    Log.w(TAG, "Unable to decode frame " + frame + ", playback stops", e);
+                    mFailed = true;
+                    return;
+                }
+                synchronized (AnimationPlayer.this) {
+                    mSlotFrame[slot] = frame;
+                    mSlotReady[slot] = true;
+                    mDecodeSlot = (slot + 1) % RING_SIZE;
+                    mDecodeFrame = (frame + 1) % mFrameCount;
+                }
+            }
+        }
+    };
+
+    private final Runnable mFrameRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (!mPlaying) {
+                return;
+            }
+            final long now = SystemClock.uptimeMillis();
+            final int next = (mShownSlot + 1) % RING_SIZE;
+            int frame;
+            synchronized (AnimationPlayer.this) {
+                if (!mSlotReady[next]) {
+                    if (mFailed) {
+                        // Nothing more is coming; stay on the frame shown
+                        mPlaying = false;
+                    } else {
+                        mMainHandler.postAtTime(this, now + LATE_FRAME_DELAY);
+                    }
+                    return;
+                }
+                frame = mSlotFrame[next];
+                mSlotReady[mShownSlot] = false;
+                mShownSlot = next;
+            }
+            mView.showAnimationFrame(mDrawables[next]);
+            mDecodeHandler.post(mDecodeRunnable);
+            mNextFrameTime += mSource.getFrameDuration(frame);
+            if (mNextFrameTime < now) {
+                // Do not try to catch up after a stall
+                mNextFrameTime = now;
+            }
+            mMainHandler.postAtTime(this, mNextFrameTime);
+        }
+    };
+}
@@ -0,0 +1,350 @@
+package com.ssoliwal.image;
+
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.RectF;
+
+import java.util.Arrays;
+
+/**
+ * Markers and regions drawn over the image of a {@link FFImageView}, stored in image coordinates.
+ * <p>
+ * Annotations are kept in a uniform grid over the image. Each frame only the cells inside the viewport are
+ * queried, so drawing cost depends on the number of visible annotations rather than the total. Markers keep
+ * a constant size on screen and are mapped to view coordinates in one batch; regions are drawn in image
+ * coordinates with a constant stroke width on screen.
+ * <p>
+ * All methods must be called on the UI thread. Get the overlay with {@link FFImageView#getAnnotations()}.
+ *
+ * @author Shailesh Soliwal
+ */
+
+public class AnnotationOverlay {
+    private static final int MAX_CELLS_PER_SIDE = 64;
+    private static final int MIN_CELL_SIZE = 64;
+    private static final byte TYPE_NONE = 0;
+    private static final byte TYPE_MARKER = 1;
+    private static final byte TYPE_REGION = 2;
+
+    private final FFImageView mView;
+    private int mImageWidth;
+    private int mImageHeight;
+    private int mCellSize;
+    private int mCols;
+    private int mRows;
+    private int[][] mCells;
+    private int[] mCellCounts;
+
+    // Annotations, indexed by id
+    private float[] mLeft = new float[64];
+    private float[] mTop = new float[64];
+    private float[] mRight = new float[64];
+    private float[] mBottom = new float[64];
+    private int[] mColor = new int[64];
+    private byte[] mType = new byte[64];
+    private int[] mQueryStamp = new int[64];
+    private int mCount;
+    private int mSize;
+    private int[] mFreeIds = new int[16];
+    private int mFreeCount;
+    private int mStamp;
+
+    // Per frame scratch, reused
+    private int[] mVisible = new int[64];
+    private int mVisibleCount;
+    private float[] mPoints = new float[128];
+    private final RectF mViewport = new RectF();
+    private final Paint mMarkerPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint mRegionPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private float mMarkerSize = 12f;
+    private float mStrokeWidth = 3f;
+
+    AnnotationOverlay(FFImageView view, int imageWidth, int imageHeight) {
+        mView = view;
+        buildGrid(imageWidth, imageHeight);
+        mMarkerPaint.setStrokeCap(Paint.Cap.ROUND);
+        mMarkerPaint.setStrokeWidth(mMarkerSize);
+        mRegionPaint.setStyle(Paint.Style.STROKE);
+    }
+
+    /**
+     * Sizes the grid for a new image and puts the annotations back into its cells. Called by the view when
+     * the image size changes; annotations keep their image coordinates.
+     */
+    void setImageSize(int imageWidth, int imageHeight) {
+        if (imageWidth == mImageWidth && imageHeight == mImageHeight) {
+            return;
+        }
+        buildGrid(imageWidth, imageHeight);
+        for (int id = 0; id < mCount; id++) {
+            if (mType[id] != TYPE_NONE) {
+                bucket(id);
+            }
+        }
+    }
+
+    private void buildGrid(int imageWidth, int imageHeight) {
+        mImageWidth = imageWidth;
+        mImageHeight = imageHeight;
+        mCellSize = Math.max(MIN_CELL_SIZE,
+                (Math.max(imageWidth, imageHeight) + MAX_CELLS_PER_SIDE - 1) / MAX_CELLS_PER_SIDE);
+        mCols = Math.max(1, (imageWidth + mCellSize - 1) / mCellSize);
+        mRows = Math.max(1, (imageHeight + mCellSize - 1) / mCellSize);
+        mCells = new int[mCols * mRows][];
+        mCellCounts = new int[mCols * mRows];
+    }
+
+    /**
+     * Adds a marker at the given image point.
+     *
+     * @return id of the new annotation
+     */
+    public int addMarker(float x, float y, int color) {
+        return add(TYPE_MARKER, x, y, x, y, color);
+    }
+
+    /**
+     * Adds a rectangular region, in image coordinates.
+     *
+     * @return id of the new annotation
+     */
+    public int addRegion(RectF rect, int color) {
+        return add(TYPE_REGION, rect.left, rect.top, rect.right, rect.bottom, color);
+    }
+
+    private int add(byte type, float left, float top, float right, float bottom, int color) {
+        int id;
+        if (mFreeCount > 0) {
+            id = mFreeIds[--mFreeCount];
+        } else {
+            if (mCount == mLeft.length) {
+                grow(mCount * 2);
+            }
+            id = mCount++;
+        }
+        mLeft[id] = left;
+        mTop[id] = top;
+        mRight[id] = right;
+        mBottom[id] = bottom;
+        mColor[id] = color;
+        mType[id] = type;
+        mSize++;
+        bucket(id);
+        mView.invalidate();
+        return id;
+    }
+
+    private void bucket(int id) {
+        final int firstCol = col(mLeft[id]);
+        final int lastCol = col(mRight[id]);
+        final int lastRow = row(mBottom[id]);
+        for (int row = row(mTop[id]); row <= lastRow; row++) {
+            for (int col = firstCol; col <= lastCol; col++) {
+                insert(row * mCols + col, id);
+            }
+        }
+    }
+
+    /**
+     * Removes the annotation with the given id. Its id may be reused by later annotations.
+     */
+    public void remove(int id) {
+        if (id < 0 || id >= mCount || mType[id] == TYPE_NONE) {
+            return;
+        }
+        final int firstCol = col(mLeft[id]);
+        final int lastCol = col(mRight[id]);
+        final int lastRow = row(mBottom[id]);
+        for (int row = row(mTop[id]); row <= lastRow; row++) {
+            for (int col = firstCol; col <= lastCol; col++) {
+                delete(row * mCols + col, id);
+            }
+        }
+        mType[id] = TYPE_NONE;
+        mSize--;
+        if (mFreeCount == mFreeIds.length) {
+            mFreeIds = Arrays.copyOf(mFreeIds, mFreeCount * 2);
+        }
+        mFreeIds[mFreeCount++] = id;
+        mView.invalidate();
+    }
+
+    /**
+     * Removes all annotations.
+     */
+    public void clear() {
+        Arrays.fill(mCellCounts, 0);
+        Arrays.fill(mType, 0, mCount, TYPE_NONE);
+        mCount = 0;
+        mSize = 0;
+        mFreeCount = 0;
+        mView.invalidate();
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Sets the diameter of markers, in view pixels.
+     */
+    public void setMarkerSize(float size) {
+        mMarkerSize = size;
+        mMarkerPaint.setStrokeWidth(size);
+        mView.invalidate();
+    }
+
+    /**
+     * Sets the stroke width of regions, in view pixels.
+     */
+    public void setStrokeWidth(float width) {
+        mStrokeWidth = width;
+        mView.invalidate();
+    }
+
+    /**
+     * Finds the annotations intersecting the given image rect.
+     *
+     * @param outIds receives the ids; must be large enough, {@link #size()} always is
+     * @return number of ids written
+     */
+    public int query(RectF imageRect, int[] outIds) {
+        collect(imageRect);
+        System.arraycopy(mVisible, 0, outIds, 0, mVisibleCount);
+        return mVisibleCount;
+    }
+
+    private void collect(RectF rect) {
+        mVisibleCount = 0;
+        if (++mStamp == 0) {
+            // Stamp wrapped around, old stamps could match again
+            Arrays.fill(mQueryStamp, 0);
+            mStamp = 1;
+        }
+        final int firstCol = col(rect.left);
+        final int lastCol = col(rect.right);
+        final int lastRow = row(rect.bottom);
+        for (int row = row(rect.top); row <= lastRow; row++) {
+            for (int col = firstCol; col <= lastCol; col++) {
+                final int cell = row * mCols + col;
+                final int[] ids = mCells[cell];
+                for (int i = mCellCounts[cell] - 1; i >= 0; i--) {
+                    final int id = ids[i];
+                    if (mQueryStamp[id] == mStamp) {
+                        continue;
+                    }
+                    mQueryStamp[id] = mStamp;
+                    if (mRight[id] < rect.left || mLeft[id] > rect.right
+                            || mBottom[id] < rect.top || mTop[id] > rect.bottom) {
+                        continue;
+                    }
+                    if (mVisibleCount == mVisible.length) {
+                        mVisible = Arrays.copyOf(mVisible, mVisibleCount * 2);
+                    }
+                    mVisible[mVisibleCount++] = id;
+                }
+            }
+        }
+    }
+
+    /**
+     * Draws the annotations inside the viewport.
+     *
+     * @param matrix  image to view transform
+     * @param inverse view to image transform
+     */
+    void draw(Canvas canvas, Matrix matrix, Matrix inverse, int viewWidth, int viewHeight) {
+        if (mSize == 0) {
+            return;
+        }
+        // Grow the viewport by the marker size so markers on the edge are not cut off
+        final float margin = inverse.mapRadius(mMarkerSize);
+        mViewport.set(0, 0, viewWidth, viewHeight);
+        inverse.mapRect(mViewport);
+        mViewport.inset(-margin, -margin);
+        collect(mViewport);
+        if (mVisibleCount == 0) {
+            return;
+        }
+
+        // Regions, in image space
+        final float scale = matrix.mapRadius(1f);
+        int saveCount = canvas.save();
+        canvas.concat(matrix);
+        mRegionPaint.setStrokeWidth(mStrokeWidth / scale);
+        for (int i = 0; i < mVisibleCount; i++) {
+            final int id = mVisible[i];
+            if (mType[id] == TYPE_REGION) {
+                mRegionPaint.setColor(mColor[id]);
+                canvas.drawRect(mLeft[id], mTop[id], mRight[id], mBottom[id], mRegionPaint);
+            }
+        }
+        canvas.restoreToCount(saveCount);
+
+        // Markers, mapped to view space together and drawn in runs of the same color
+        if (mPoints.length < mVisibleCount * 2) {
+            mPoints = new float[mVisibleCount * 2];
+        }
+        int points = 0;
+        for (int i = 0; i < mVisibleCount; i++) {
+            final int id = mVisible[i];
+            if (mType[id] == TYPE_MARKER) {
+                mVisible[points / 2] = id;
+                mPoints[points++] = mLeft[id];
+                mPoints[points++] = mTop[id];
+            }
+        }
+        matrix.mapPoints(mPoints, 0, mPoints, 0, points / 2);
+        int runStart = 0;
+        for (int i = 1; i <= points / 2; i++) {
+            if (i == points / 2 || mColor[mVisible[i]] != mColor[mVisible[runStart]]) {
+                mMarkerPaint.setColor(mColor[mVisible[runStart]]);
+                canvas.drawPoints(mPoints, runStart * 2, (i - runStart) * 2, mMarkerPaint);
+                runStart = i;
+            }
+        }
+    }
+
+    private int col(float x) {
+        return Math.max(0, Math.min(mCols - 1, (int) (x / mCellSize)));
+    }
+
+    private int row(float y) {
+        return Math.max(0, Math.min(mRows - 1, (int) (y / mCellSize)));
+    }
+
+    private void insert(int cell, int id) {
+        int[] ids = mCells[cell];
+        if (ids == null) {
+            ids = new int[4];
+            mCells[cell] = ids;
+        } else if (mCellCounts[cell] == ids.length) {
+            ids = Arrays.copyOf(ids, ids.length * 2);
+            mCells[cell] = ids;
+        }
+        ids[mCellCounts[cell]++] = id;
+    }
+
+    private void delete(int cell, int id) {
+        final int[] ids = mCells[cell];
+        final int count = mCellCounts[cell];
+        for (int i = 0; i < count; i++) {
+            if (ids[i] == id) {
+                ids[i] = ids[count - 1];
+                mCellCounts[cell] = count - 1;
+                return;
+            }
+        }
+    }
+
+    private void grow(int capacity) {
+        mLeft = Arrays.copyOf(mLeft, capacity);
+        mTop = Arrays.copyOf(mTop, capacity);
+        mRight = Arrays.copyOf(mRight, capacity);
+        mBottom = Arrays.copyOf(mBottom, capacity);
+        mColor = Arrays.copyOf(mColor, capacity);
+        mType = Arrays.copyOf(mType, capacity);
+        mQueryStamp = Arrays.copyOf(mQueryStamp, capacity);
+    }
+}
@@ -0,0 +1,135 @@
+package com.ssoliwal.image;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.os.Build;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * {@link PixelDecoder} backed by {@link BitmapFactory} for whole image decodes and
+ * {@link BitmapRegionDecoder} for regions, supporting every format of the platform.
+ * <p>
+ * When the target is a {@link BitmapPixelTarget} of the exact decoded size, pixels are decoded into its
+ * bitmap directly; otherwise they are copied row by row.
+ *
+ * @author Shailesh Soliwal
+ */
+
+public class BitmapFactoryDecoder implements PixelDecoder {
+    public static final PixelDecoder.Factory FACTORY = new PixelDecoder.Factory() {
+        @Override
+        public PixelDecoder open(File file) throws IOException {
+            return BitmapFactoryDecoder.open(file);
+        }
+    };
+
+    private final String mPath;
+    private final int mWidth;
+    private final int mHeight;
+    private final boolean mHasAlpha;
+    private BitmapRegionDecoder mRegionDecoder;
+    private final Rect mRegion = new Rect();
+    private int[] mRow;
+
+    private BitmapFactoryDecoder(String path, BitmapFactory.Options bounds) {
+        mPath = path;
+        mWidth = bounds.outWidth;
+        mHeight = bounds.outHeight;
+        // Only JPEG is known to be opaque without decoding pixels
+        mHasAlpha = !"image/jpeg".equals(bounds.outMimeType);
+    }
+
+    /**
+     * Reads the bounds of the given file.
+     */
+    public static BitmapFactoryDecoder open(File file) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getPath(), options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            throw new IOException("Unsupported image format: " + file);
+        }
+        return new BitmapFactoryDecoder(file.getPath(), options);
+    }
+
+    @Override
+    public int getWidth() {
+        return mWidth;
+    }
+
+    @Override
+    public int getHeight() {
+        return mHeight;
+    }
+
+    @Override
+    public boolean hasAlpha() {
+        return mHasAlpha;
+    }
+
+    @Override
+    public void decodeRegion(int left, int top, int right, int bottom, int sampleSize, PixelTarget target)
+            throws IOException {
+        final int width = (right - left + sampleSize - 1) / sampleSize;
+        final int height = (bottom - top + sampleSize - 1) / sampleSize;
+        final boolean whole = left == 0 && top == 0 && right == mWidth && bottom == mHeight;
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inMutable = true;
+        Bitmap reuse = null;
+        if (target instanceof BitmapPixelTarget && Build.VERSION.SDK_INT >= 16) {
+            reuse = ((BitmapPixelTarget) target).getBitmap();
+            if (reuse.getWidth() == width && reuse.getHeight() == height) {
+                options.inBitmap = reuse;
+            }
+        }
+        mRegion.set(left, top, right, bottom);
+        Bitmap result;
+        try {
+            result = decode(whole, options);
+        } catch (IllegalArgumentException e) {
+            // inBitmap could not be reused
+            options.inBitmap = null;
+            result = decode(whole, options);
+        }
+        if (result == null) {
+            throw new IOException("Unable to decode " + mPath);
+        }
+        if (result != reuse) {
+            copy(result, target, Math.min(width, result.getWidth()), Math.min(height, result.getHeight()));
+            BitmapPool.put(result);
+        }
+    }
+
+    private Bitmap decode(boolean whole, BitmapFactory.Options options) throws IOException {
+        if (whole) {
+            return BitmapFactory.decodeFile(mPath, options);
+        }
+        if (mRegionDecoder == null) {
+            mRegionDecoder = BitmapRegionDecoder.newInstance(mPath, false);
+        }
+        return mRegionDecoder.decodeRegion(mRegion, options);
+    }
+
+    private void copy(Bitmap bitmap, PixelTarget target, int width, int height) {
+        if (mRow == null || mRow.length < width) {
+            mRow = new int[width];
+        }
+        for (int y = 0; y < height; y++) {
+            bitmap.getPixels(mRow, 0, width, 0, y, width, 1);
+            target.setPixels(mRow, 0, width, 0, y, width, 1);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (mRegionDecoder != null) {
+            mRegionDecoder.recycle();
+            mRegionDecoder = null;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.ssoliwal.image;
+
+import android.graphics.Bitmap;
+
+/**
+ * {@link PixelTarget} writing into a mutable bitmap. Decoders built on the Android framework decode
+ * straight into the bitmap instead of copying pixels when they can.
+ *
+ * @author Shailesh Soliwal
+ */
+
+public class BitmapPixelTarget implements PixelTarget {
+    private final Bitmap mBitmap;
+
+    public BitmapPixelTarget(Bitmap bitmap) {
+        if (!bitmap.isMutable()) {
+            throw new IllegalArgumentException("Bitmap must be mutable");
+        }
+        mBitmap = bitmap;
+    }
+
+    public Bitmap getBitmap() {
+        return mBitmap;
+    }
+
+    @Override
+    public int getWidth() {
+        return mBitmap.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return mBitmap.getHeight();
+    }
+
+    @Override
+    public void setPixels(int[] pixels, int offset, int stride, int x, int y, int width, int height) {
+        mBitmap.setPixels(pixels, offset, stride, x, y, width, height);
+    }
+}
@@ -0,0 +1,127 @@
+package com.ssoliwal.image;
+
+import android.graphics.Bitmap;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Process-wide pool of mutable bitmaps that can be reused as decode targets ({@code inBitmap}) or tiles.
+ * <p>
+ * The pool holds at most {@link #getMaxBytes()} bytes; the least recently added bitmaps are dropped first.
+ * Bitmaps are dropped, never recycled: a base handed back by a view may still be held by the app through
+ * {@link FFImageView#getBitmap()}, so their pixels are left to the garbage collector.
+ * Bytes held by the pool are reported in the {@link MemoryTracker#LAYER_POOLED} process layer.
+ *
+ * @author Shailesh Soliwal
+ */
+
+public class BitmapPool {
+    private static final long DEFAULT_MAX_BYTES = 8L * 1024 * 1024;
+
+    private static final LinkedList<Bitmap> sBitmaps = new LinkedList<>();
+    private static long sBytes;
+    private static long sMaxBytes = DEFAULT_MAX_BYTES;
+
+    private BitmapPool() {
+    }
+
+    /**
+     * Returns a pooled bitmap of exactly the given size and config, or null if there is none.
+     * The returned bitmap keeps its old pixels.
+     */
+    public static Bitmap get(int width, int height, Bitmap.Config config) {
+        synchronized (sBitmaps) {
+            Iterator<Bitmap> iterator = sBitmaps.iterator();
+            while (iterator.hasNext()) {
+                Bitmap bitmap = iterator.next();
+                if (bitmap.getWidth() == width && bitmap.getHeight() == height
+                        && bitmap.getConfig() == config) {
+                    iterator.remove();
+                    onRemoved(bitmap);
+                    return bitmap;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns a pooled bitmap of the given size and config, or allocates a new one.
+     */
+    public static Bitmap obtain(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = get(width, height, config);
+        if (bitmap == null) {
+            bitmap = Bitmap.createBitmap(width, height, config);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Hands a bitmap over to the pool. The caller must not use it afterwards.
+     * Immutable and recycled bitmaps are ignored, bitmaps larger than the pool are dropped.
+     */
+    public static void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) {
+            return;
+        }
+        long size = MemoryTracker.sizeOf(bitmap);
+        synchronized (sBitmaps) {
+            if (size > sMaxBytes) {
+                return;
+            }
+            sBitmaps.addLast(bitmap);
+            sBytes += size;
+            MemoryTracker.addProcessBytes(MemoryTracker.LAYER_POOLED, size);
+            trimToSize(sMaxBytes);
+        }
+    }
+
+    /**
+     * Drops pooled bitmaps until the pool holds at most the given number of bytes.
+     *
+     * @return number of bytes released.
+     */
+    public static long trimToSize(long maxBytes) {
+        long released = 0;
+        synchronized (sBitmaps) {
+            while (sBytes > maxBytes && !sBitmaps.isEmpty()) {
+                released += onRemoved(sBitmaps.removeFirst());
+            }
+        }
+        return released;
+    }
+
+    /**
+     * Drops all pooled bitmaps.
+     */
+    public static void clear() {
+        trimToSize(0);
+    }
+
+    public static long getBytes() {
+        synchronized (sBitmaps) {
+            return sBytes;
+        }
+    }
+
+    public static long getMaxBytes() {
+        synchronized (sBitmaps) {
+            return sMaxBytes;
+        }
+    }
+
+    public static void setMaxBytes(long maxBytes) {
+        synchronized (sBitmaps) {
+            sMaxBytes = maxBytes;
+            trimToSize(maxBytes);
+        }
+    }
+
+    private static long onRemoved(Bitmap bitmap) {
+        long size = MemoryTracker.sizeOf(bitmap);
+        sBytes -= size;
+        MemoryTracker.addProcessBytes(MemoryTracker.LAYER_POOLED, -size);
+        return size;
+    }
+}
@@ -0,0 +1,74 @@
+package com.ssoliwal.image;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+/**
+ * {@link TileSource} over a bitmap that is already decoded. Regions are cut one at a time through one
+ * reused canvas, on the decode threads.
+ *
+ * @author Shailesh Soliwal
+ */
+
+class BitmapTileSource implements TileSource {
+    private final Bitmap mBitmap;
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Rect mDst = new Rect();
+    private final Canvas mCanvas = new Canvas();
+
+    BitmapTileSource(Bitmap bitmap) {
+        mBitmap = bitmap;
+    }
+
+    Bitmap getBitmap() {
+        return mBitmap;
+    }
+
+    @Override
+    public int getWidth() {
+        return mBitmap.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return mBitmap.getHeight();
+    }
+
+    @Override
+    public boolean hasAlpha() {
+        return mBitmap.hasAlpha();
+    }
+
+    @Override
+    public boolean isInMemory() {
+        return true;
+    }
+
+    @Override
+    public Bitmap.Config getConfig() {
+        return mBitmap.getConfig() != null ? mBitmap.getConfig() : Bitmap.Config.ARGB_8888;
+    }
+
+    @Override
+    public String getCacheKey() {
+        // Reloading tiles from memory is cheaper than inflating them
+        return null;
+    }
+
+    @Override
+    public synchronized Bitmap decodeRegion(Rect region, int sampleSize) {
+        final int width = Math.max(1, region.width() / sampleSize);
+        final int height = Math.max(1, region.height() / sampleSize);
+        Bitmap result = BitmapPool.obtain(width, height, getConfig());
+        if (mBitmap.hasAlpha()) {
+            result.eraseColor(0);
+        }
+        mDst.set(0, 0, width, height);
+        mCanvas.setBitmap(result);
+        mCanvas.drawBitmap(mBitmap, region, mDst, mPaint);
+        mCanvas.setBitmap(null);
+        return result;
+    }
+}
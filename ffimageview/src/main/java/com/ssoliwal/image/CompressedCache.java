@@ -0,0 +1,242 @@
+package com.ssoliwal.image;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Second cache tier holding evicted tiles and layers in compressed form.
+ * <p>
+ * Bitmaps handed to {@link #put(long, Bitmap, boolean)} are encoded on a background thread and kept in a
+ * byte-budgeted LRU. Inflating them again with {@link #get(long)} is much cheaper than decoding the
+ * region from the original source. Opaque bitmaps are stored as high quality JPEG, others as PNG.
+ * <p>
+ * The cache is process-wide and thread safe. Keys are chosen by the caller; tile keys pack an image id,
+ * level, column and row into a long. Image ids come from {@link #getImageId(String)}, which keeps one per
+ * image identity, so tiles are found again by any renderer showing the same image.
+ *
+ * @author Shailesh Soliwal
+ */
+
+public class CompressedCache {
+    private static final long DEFAULT_MAX_BYTES = 16L * 1024 * 1024;
+    private static final int JPEG_QUALITY = 92;
+    private static final int MAX_IMAGE_ID = 0xFFFF;
+
+    private static final CompressedCache sInstance = new CompressedCache(DEFAULT_MAX_BYTES);
+
+    private final LinkedHashMap<Long, byte[]> mEntries = new LinkedHashMap<>(64, 0.75f, true);
+    // Image ids by identity, least recently used first
+    private final LinkedHashMap<String, Integer> mImageIds = new LinkedHashMap<>(16, 0.75f, true);
+    private int mNextImageId;
+    private final ExecutorService mEncoder = new ThreadPoolExecutor(0, 1, 1, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>());
+    private long mBytes;
+    private long mMaxBytes;
+    private int mHits;
+    private int mMisses;
+
+    CompressedCache(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    public static CompressedCache getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Returns the id tile keys of the given image are packed with. The same identity always gets the same
+     * id while it is cached, and no two identities share one: once all 16 bit ids are taken, the id of the
+     * identity used longest ago is reused and its entries are removed first.
+     */
+    public synchronized int getImageId(String identity) {
+        Integer id = mImageIds.get(identity);
+        if (id == null) {
+            if (mNextImageId <= MAX_IMAGE_ID) {
+                id = mNextImageId++;
+            } else {
+                Map.Entry<String, Integer> eldest = mImageIds.entrySet().iterator().next();
+                mImageIds.remove(eldest.getKey());
+                id = eldest.getValue();
+                removeImage(id);
+            }
+            mImageIds.put(identity, id);
+        }
+        return id;
+    }
+
+    private void removeImage(int imageId) {
+        Iterator<Map.Entry<Long, byte[]>> entries = mEntries.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<Long, byte[]> entry = entries.next();
+            if ((int) (entry.getKey() >>> 48) == imageId) {
+                entries.remove();
+                onRemoved(entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Packs a tile position into a cache key: 16 bits of image id, 6 bits of level and 21 bits each
+     * for column and row.
+     *
+     * @param imageId id from {@link #getImageId(String)}
+     */
+    public static long tileKey(int imageId, int level, int col, int row) {
+        return ((long) (imageId & 0xFFFF) << 48) | ((long) (level & 0x3F) << 42)
+                | ((long) (col & 0x1FFFFF) << 21) | (row & 0x1FFFFF);
+    }
+
+    /**
+     * Encodes the bitmap in the background and caches it under the given key. The bitmap is handed over:
+     * it goes to the {@link BitmapPool} once encoded if {@code recycle} is set.
+     */
+    public void put(final long key, final Bitmap bitmap, final boolean recycle) {
+        synchronized (this) {
+            if (mEntries.containsKey(key)) {
+                if (recycle) {
+                    BitmapPool.put(bitmap);
+                }
+                return;
+            }
+        }
+        mEncoder.execute(new Runnable() {
+            @Override
+            public void run() {
+                ByteArrayOutputStream out = new ByteArrayOutputStream(
+                        (int) Math.min(Integer.MAX_VALUE, MemoryTracker.sizeOf(bitmap) / 8));
+                if (bitmap.hasAlpha()) {
+                    bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+                } else {
+                    bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+                }
+                if (recycle) {
+                    BitmapPool.put(bitmap);
+                }
+                putEncoded(key, out.toByteArray());
+            }
+        });
+    }
+
+    private synchronized void putEncoded(long key, byte[] data) {
+        byte[] previous = mEntries.put(key, data);
+        if (previous != null) {
+            onRemoved(previous);
+        }
+        mBytes += data.length;
+        MemoryTracker.addProcessBytes(MemoryTracker.LAYER_COMPRESSED, data.length);
+        trimToSize(mMaxBytes);
+    }
+
+    /**
+     * @return true if the given key is cached.
+     */
+    public synchronized boolean contains(long key) {
+        return mEntries.containsKey(key);
+    }
+
+    /**
+     * Inflates the bitmap cached under the given key, or returns null.
+     *
+     * @param sampleSize subsampling applied while inflating, 1 for full size
+     * @param config     config to inflate into; images with alpha stay in ARGB_8888
+     */
+    public Bitmap get(long key, int sampleSize, Bitmap.Config config) {
+        byte[] data;
+        synchronized (this) {
+            data = mEntries.get(key);
+            if (data == null) {
+                mMisses++;
+                return null;
+            }
+            mHits++;
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = config;
+        options.inMutable = true;
+        if (sampleSize == 1) {
+            // Reuse a pooled bitmap of the same size if there is one
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(data, 0, data.length, options);
+            options.inJustDecodeBounds = false;
+            options.inBitmap = BitmapPool.get(options.outWidth, options.outHeight, config);
+        }
+        try {
+            return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        } catch (IllegalArgumentException e) {
+            // inBitmap could not be reused
+            options.inBitmap = null;
+            return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        }
+    }
+
+    public Bitmap get(long key, int sampleSize) {
+        return get(key, sampleSize, Bitmap.Config.ARGB_8888);
+    }
+
+    public Bitmap get(long key) {
+        return get(key, 1);
+    }
+
+    public synchronized void remove(long key) {
+        byte[] data = mEntries.remove(key);
+        if (data != null) {
+            onRemoved(data);
+        }
+    }
+
+    /**
+     * Removes the least recently used entries until the cache holds at most the given number of bytes.
+     *
+     * @return number of bytes released.
+     */
+    public synchronized long trimToSize(long maxBytes) {
+        long released = 0;
+        while (mBytes > maxBytes && !mEntries.isEmpty()) {
+            Map.Entry<Long, byte[]> eldest = mEntries.entrySet().iterator().next();
+            mEntries.remove(eldest.getKey());
+            released += onRemoved(eldest.getValue());
+        }
+        return released;
+    }
+
+    private long onRemoved(byte[] data) {
+        mBytes -= data.length;
+        MemoryTracker.addProcessBytes(MemoryTracker.LAYER_COMPRESSED, -data.length);
+        return data.length;
+    }
+
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+
+    public synchronized long getBytes() {
+        return mBytes;
+    }
+
+    public synchronized long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    public synchronized void setMaxBytes(long maxBytes) {
+        mMaxBytes = maxBytes;
+        trimToSize(maxBytes);
+    }
+
+    public synchronized int getHitCount() {
+        return mHits;
+    }
+
+    public synchronized int getMissCount() {
+        return mMisses;
+    }
+}
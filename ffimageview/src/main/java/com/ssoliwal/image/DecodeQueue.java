@@ -0,0 +1,46 @@
+package com.ssoliwal.image;
+
+import android.os.Process;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background threads shared by all views for decoding bases and tiles.
+ *
+ * @author Shailesh Soliwal
+ */
+
+class DecodeQueue {
+    private static final int THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+
+    private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(THREADS, THREADS,
+            5, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        private int mCount;
+
+        @Override
+        public synchronized Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, "FFImageView-decode-" + mCount++);
+        }
+    });
+
+    static {
+        sExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private DecodeQueue() {
+    }
+
+    static Future<?> submit(Runnable task) {
+        return sExecutor.submit(task);
+    }
+}
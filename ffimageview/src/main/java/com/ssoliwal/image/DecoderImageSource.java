@@ -0,0 +1,144 @@
+package com.ssoliwal.image;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Image decoded by a {@link PixelDecoder}. Show it with {@link FFImageView#setImageSource(DecoderImageSource)},
+ * which decodes a base and tiles through the decoder the same way it does for a {@link FileImageSource},
+ * and closes the decoder when the view moves on to another image.
+ * <p>
+ * The source is a {@link PixelDecoder} itself: its region decodes into any {@link PixelTarget}, one at a
+ * time, and the {@link Bitmap} decodes are made on top of them.
+ *
+ * @author Shailesh Soliwal
+ */
+
+public class DecoderImageSource implements ImageSource, PixelDecoder {
+    private final PixelDecoder mDecoder;
+    private final String mCacheKey;
+    private volatile Bitmap.Config mConfig = Bitmap.Config.ARGB_8888;
+    private boolean mClosed;
+
+    public DecoderImageSource(PixelDecoder decoder) {
+        this(decoder, null);
+    }
+
+    private DecoderImageSource(PixelDecoder decoder, String cacheKey) {
+        mDecoder = decoder;
+        mCacheKey = cacheKey;
+    }
+
+    public static DecoderImageSource open(File file, PixelDecoder.Factory factory) throws IOException {
+        final String cacheKey = FileImageSource.getCacheKey(file) + ':' + factory.getClass().getName();
+        return new DecoderImageSource(factory.open(file), cacheKey);
+    }
+
+    @Override
+    public int getWidth() {
+        return mDecoder.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return mDecoder.getHeight();
+    }
+
+    @Override
+    public boolean hasAlpha() {
+        return mDecoder.hasAlpha();
+    }
+
+    @Override
+    public boolean isInMemory() {
+        return false;
+    }
+
+    @Override
+    public Bitmap.Config getConfig() {
+        return mConfig;
+    }
+
+    @Override
+    public void setConfig(Bitmap.Config config) {
+        mConfig = config;
+    }
+
+    /**
+     * @return identity of the file for sources opened with {@link #open(File, PixelDecoder.Factory)}, else
+     * null.
+     */
+    @Override
+    public String getCacheKey() {
+        return mCacheKey;
+    }
+
+    @Override
+    public int getRotation() {
+        return 0;
+    }
+
+    @Override
+    public int computeSampleSize(int targetWidth, int targetHeight) {
+        int sampleSize = 1;
+        while (getWidth() / (sampleSize * 2) >= targetWidth || getHeight() / (sampleSize * 2) >= targetHeight) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    @Override
+    public Bitmap decode(int sampleSize) throws IOException {
+        return decode(0, 0, getWidth(), getHeight(), sampleSize);
+    }
+
+    @Override
+    public Bitmap decodeRegion(Rect region, int sampleSize) {
+        try {
+            return decode(region.left, region.top, region.right, region.bottom, sampleSize);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Decodes through the decoder; decoders need not be thread safe, so decodes run one at a time.
+     *
+     * @throws IOException if the source is closed
+     */
+    @Override
+    public synchronized void decodeRegion(int left, int top, int right, int bottom, int sampleSize,
+                                          PixelTarget target) throws IOException {
+        if (mClosed) {
+            throw new IOException("Source is closed");
+        }
+        mDecoder.decodeRegion(left, top, right, bottom, sampleSize, target);
+    }
+
+    /**
+     * Decodes into a pooled bitmap.
+     */
+    private Bitmap decode(int left, int top, int right, int bottom, int sampleSize) throws IOException {
+        Bitmap bitmap = BitmapPool.obtain((right - left + sampleSize - 1) / sampleSize,
+                (bottom - top + sampleSize - 1) / sampleSize, mConfig);
+        if (hasAlpha()) {
+            bitmap.eraseColor(0);
+        }
+        try {
+            decodeRegion(left, top, right, bottom, sampleSize, new BitmapPixelTarget(bitmap));
+        } catch (IOException | RuntimeException e) {
+            BitmapPool.put(bitmap);
+            throw e;
+        }
+        return bitmap;
+    }
+
+    @Override
+    public synchronized void close() {
+        mClosed = true;
+        mDecoder.close();
+    }
+}
@@ -0,0 +1,100 @@
+package com.ssoliwal.image;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads the orientation tag of a JPEG file straight from a mapped region of the file, without reading
+ * the rest of it.
+ *
+ * @author Shailesh Soliwal
+ */
+
+class ExifReader {
+    // The Exif segment must start within the first segments of the file and is at most 64K long
+    private static final int MAX_HEADER_BYTES = 128 * 1024;
+    private static final int TAG_ORIENTATION = 0x0112;
+
+    private ExifReader() {
+    }
+
+    /**
+     * @return the clockwise rotation in degrees stored in the Exif data, 0 if there is none.
+     */
+    static int readRotation(FileChannel channel) throws IOException {
+        long size = Math.min(channel.size(), MAX_HEADER_BYTES);
+        if (size < 4) {
+            return 0;
+        }
+        ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        try {
+            return toRotation(findOrientation(buffer));
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            // Truncated or corrupt header
+            return 0;
+        }
+    }
+
+    private static int findOrientation(ByteBuffer buffer) {
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        if ((buffer.getShort() & 0xFFFF) != 0xFFD8) {
+            // Not a JPEG
+            return 0;
+        }
+        while (buffer.remaining() > 4) {
+            int marker = buffer.getShort() & 0xFFFF;
+            int length = buffer.getShort() & 0xFFFF;
+            if (marker == 0xFFDA || (marker & 0xFF00) != 0xFF00) {
+                // Start of scan: no metadata follows
+                return 0;
+            }
+            int segmentStart = buffer.position();
+            if (marker == 0xFFE1 && buffer.getInt() == 0x45786966 && buffer.getShort() == 0) {
+                // "Exif\0\0" followed by a TIFF header
+                return readTiffOrientation(buffer, buffer.position());
+            }
+            buffer.position(segmentStart + length - 2);
+        }
+        return 0;
+    }
+
+    private static int readTiffOrientation(ByteBuffer buffer, int tiffStart) {
+        short byteOrder = buffer.getShort();
+        buffer.order(byteOrder == 0x4949 ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+        buffer.getShort(); // 42
+        int ifdOffset = buffer.getInt();
+        buffer.position(tiffStart + ifdOffset);
+        int entries = buffer.getShort() & 0xFFFF;
+        for (int i = 0; i < entries; i++) {
+            int entry = buffer.position();
+            int tag = buffer.getShort() & 0xFFFF;
+            if (tag == TAG_ORIENTATION) {
+                buffer.getShort(); // type
+                buffer.getInt(); // count
+                return buffer.getShort() & 0xFFFF;
+            }
+            buffer.position(entry + 12);
+        }
+        return 0;
+    }
+
+    private static int toRotation(int orientation) {
+        // Mirrored orientations are shown with their rotation only
+        switch (orientation) {
+            case 3:
+            case 4:
+                return 180;
+            case 5:
+            case 6:
+                return 90;
+            case 7:
+            case 8:
+                return 270;
+            default:
+                return 0;
+        }
+    }
+}
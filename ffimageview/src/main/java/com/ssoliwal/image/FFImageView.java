@@ -10,11 +10,15 @@ import android.graphics.RectF;
 import android.graphics.drawable.BitmapDrawable;
 import android.support.v4.view.GestureDetectorCompat;
 import android.util.AttributeSet;
+import android.util.Log;
 import android.view.GestureDetector;
 import android.view.MotionEvent;
 import android.view.ScaleGestureDetector;
 import android.view.View;
 
+import java.io.IOException;
+import java.util.concurrent.Future;
+
 /**
  * FFImageView is fully featured, complete one stop solution to manage and display bitmaps in android.
  * <p>
@@ -25,7 +29,23 @@ import android.view.View;
  */
 
 public class FFImageView extends View implements GestureDetector.OnGestureListener,
-        GestureDetector.OnDoubleTapListener, ScaleGestureDetector.OnScaleGestureListener {
+        GestureDetector.OnDoubleTapListener, ScaleGestureDetector.OnScaleGestureListener,
+        RotateGestureDetector.OnRotateListener {
+
+    /**
+     * Opaque images are decoded in ARGB_8888 until the memory budget is exceeded, then in RGB_565.
+     */
+    public static final int CONFIG_AUTO = 0;
+    /**
+     * Images are always decoded in ARGB_8888.
+     */
+    public static final int CONFIG_QUALITY = 1;
+    /**
+     * Opaque images are always decoded in RGB_565, at half the memory. Images with alpha stay in ARGB_8888.
+     */
+    public static final int CONFIG_COMPACT = 2;
+
+    private static final String TAG = "FFImageView";
 
     private final static long ZOOM_ANIMATION_DURATION = 300L;
     private final static float DOUBLE_TAP_SCALE_FACTOR = 1.5f;
@@ -33,141 +53,1293 @@ public class FFImageView extends View implements GestureDetector.OnGestureListen
     private final static float SNAP_THRESHOLD = 20.0f;
     private static final long SNAP_DURATION = 100L;
     private static final long SNAP_DELAY = 250L;
-    private TranslateRunnable mTranslateRunnable;
-    private SnapRunnable mSnapRunnable;
-    private ScaleRunnable mScaleRunnable;
-    private RotateRunnable mRotateRunnable;
+    private static final long VIEWPORT_ANIMATION_DURATION = 300L;
+    private static final int MAX_BASE_SIZE = 2048;
+    private static final int SUSPENDED_PREVIEW_SIZE = 256;
+    private final TranslateRunnable mTranslateRunnable = new TranslateRunnable(this);
+    private final SnapRunnable mSnapRunnable = new SnapRunnable(this);
+    private final ScaleRunnable mScaleRunnable = new ScaleRunnable(this);
+    private final ViewportRunnable mViewportRunnable = new ViewportRunnable(this);
     private float mMaxInitialScaleFactor = 1;
     private boolean mHaveLayout;
     private RectF mTempSrc = new RectF();
     private RectF mTempDst = new RectF();
     private RectF mTranslateRect = new RectF();
+    private RectF mTempRotated = new RectF();
+    private Matrix mTempMatrix = new Matrix();
+    private final Matrix mCenterInverse = new Matrix();
+    private final Matrix mFitRotation = new Matrix();
+    private final RectF mScaledDestination = new RectF();
+    private RectF mTempRect = new RectF();
+    private float[] mTempPoint = new float[2];
     private float mMinScale = 0.2f;
     private float mMaxScale = 4f;
     private final Context context;
+    // Created on the first touch
     private ScaleGestureDetector mScaleGestureDetector;
     private GestureDetectorCompat mGestureDetector;
+    private RotateGestureDetector mRotateGestureDetector;
+    private boolean mRotateGestureEnabled;
+
+    private Matrix mMatrix = new Matrix();
+    private Matrix mDrawMatrix;
+    private Matrix mOriginalMatrix = new Matrix();
+    private Matrix mInverseMatrix = new Matrix();
+    // Transform mInverseMatrix was computed from
+    private Matrix mInverseSource = new Matrix();
+    private float[] mValues = new float[9];
+
+    private Bitmap mBitmap;
+    private BitmapDrawable mDrawable;
+    // Base drawn in the last frame, to mark frames that upload a new one
+    private Bitmap mDrawnBase;
+    private int mImageWidth;
+    private int mImageHeight;
+    float lastRotation = 0f;
+
+    private final ViewMetrics mMetrics = new ViewMetrics();
+    private final RenderQuality mQuality = new RenderQuality();
+    private boolean mTouching;
+    private AnnotationOverlay mAnnotations;
+    private Minimap mMinimap;
+    // The current gesture started on the minimap and is handled by it
+    private boolean mMinimapTouch;
+    private final MemoryTracker mMemory = new MemoryTracker();
+    private int mConfigPolicy = CONFIG_AUTO;
+    // The budget was exceeded: CONFIG_AUTO decodes opaque images in RGB_565 until the budget changes
+    private boolean mMemoryPressure;
+    private SharedBitmap mSharedBitmap;
+    // Shared bitmap given up while suspended, reopened on resume
+    private SharedBitmap mDetachedShared;
+    // mBitmap was created by this view and goes to the pool when replaced
+    private boolean mOwnsBase;
+    // Not shown: animations stopped, decodes cancelled and the base replaced by a preview if it can be reloaded
+    private boolean mSuspended;
+    private boolean mShowingPreview;
+    private AnimationPlayer mAnimation;
+    private TileRenderer mTileRenderer;
+    private Bitmap mTileBase;
+    private ImageSource mImageSource;
+    private HttpImageSource mHttpSource;
+    private TransformLink mTransformLink;
+    // Transform last sent to or received from mTransformLink
+    private final Matrix mLinkedMatrix = new Matrix();
+    private Future<?> mBaseLoad;
+    // Laid out from setImageSize / an image source, pixels not shown yet
+    private boolean mAwaitingPixels;
+    private final Runnable mInvalidateRunnable = new Runnable() {
+        @Override
+        public void run() {
+            invalidate();
+        }
+    };
+    private GestureRecorder mGestureRecorder;
+
+    public FFImageView(Context context) {
+        super(context);
+        this.context = context;
+    }
+
+    public FFImageView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        this.context = context;
+    }
+
+    public void setBitmap(Bitmap bitmap) {
+        releaseSharedBitmap();
+        stopAnimation();
+        releaseImageSource();
+        dropOwnedBase();
+        mMemory.set(MemoryTracker.LAYER_BASE, bitmap);
+        applyBitmap(bitmap);
+    }
+
+    /**
+     * Shows an image from a local file. A base subsampled to the view size is decoded in the background;
+     * when zoomed in, tiles are decoded from the file for the visible region only. The view is laid out
+     * and fitted, Exif orientation included, from the image bounds before the base arrives.
+     * <p>
+     * The view takes ownership of the source and closes it when another image is set or on {@link #clear()}.
+     */
+    public void setImageSource(FileImageSource source) {
+        showImageSource(source);
+    }
+
+    /**
+     * Shows an image decoded by a {@link PixelDecoder}, the same way as a {@link FileImageSource}.
+     * <p>
+     * The view takes ownership of the source and closes it when another image is set or on {@link #clear()}.
+     */
+    public void setImageSource(DecoderImageSource source) {
+        showImageSource(source);
+    }
+
+    private void showImageSource(ImageSource source) {
+        releaseSharedBitmap();
+        stopAnimation();
+        releaseImageSource();
+        mImageSource = source;
+        setImageBounds(source.getWidth(), source.getHeight(), source.getRotation());
+        loadBase(source);
+    }
+
+    /**
+     * Shows an image downloaded over HTTP, see {@link HttpImageSource}. Previews of the data received so far
+     * are shown while it downloads; the view is laid out and fitted once the image header arrives and keeps
+     * its transform when the complete image replaces the previews.
+     * <p>
+     * The view starts the download and cancels it when another image is set or on {@link #clear()}.
+     */
+    public void setImageSource(final HttpImageSource source) {
+        releaseSharedBitmap();
+        stopAnimation();
+        releaseImageSource();
+        dropOwnedBase();
+        mBitmap = null;
+        mDrawable = null;
+        mShowingPreview = false;
+        mMemory.set(MemoryTracker.LAYER_BASE, 0);
+        invalidate();
+
+        mHttpSource = source;
+        source.start(getTargetWidth(), getTargetHeight(), new HttpImageSource.Listener() {
+            @Override
+            public void onBounds(int width, int height, int rotation) {
+                if (mHttpSource == source) {
+                    setImageBounds(width, height, rotation);
+                }
+            }
+
+            @Override
+            public void onPreview(Bitmap preview) {
+                if (mHttpSource != source) {
+                    BitmapPool.put(preview);
+                    return;
+                }
+                dropOwnedBase();
+                mOwnsBase = true;
+                mShowingPreview = true;
+                mMemory.set(MemoryTracker.LAYER_BASE, preview);
+                if (mDrawable == null) {
+                    applyBitmap(preview, mImageWidth, mImageHeight);
+                } else {
+                    setBase(preview);
+                }
+            }
+
+            @Override
+            public void onComplete(FileImageSource fileSource) {
+                if (mHttpSource != source) {
+                    fileSource.close();
+                    return;
+                }
+                mHttpSource = null;
+                if (mDrawable != null && fileSource.getWidth() == mImageWidth
+                        && fileSource.getHeight() == mImageHeight) {
+                    // Replace the preview without touching the transform
+                    mImageSource = fileSource;
+                    loadBase(fileSource);
+                } else {
+                    setImageSource(fileSource);
+                }
+            }
+
+            @Override
+            public void onError(IOException e) {
+                // The last preview, if any, stays
+                mHttpSource = null;
+            }
+        });
+    }
+
+    /**
+     * @return width a base should be decoded for: the view width, or the display width before layout.
+     */
+    private int getTargetWidth() {
+        return getWidth() > 0 && getHeight() > 0 ? getWidth() : getResources().getDisplayMetrics().widthPixels;
+    }
+
+    private int getTargetHeight() {
+        return getWidth() > 0 && getHeight() > 0 ? getHeight() : getResources().getDisplayMetrics().heightPixels;
+    }
+
+    /**
+     * Decodes a base subsampled to the view size in the background and shows it, keeping the transform.
+     */
+    private void loadBase(final ImageSource source) {
+        source.setConfig(getConfig(source.hasAlpha()));
+        final int targetWidth = getTargetWidth();
+        final int targetHeight = getTargetHeight();
+        // The base is drawn as one texture, keep it within what every device supports
+        int sampleSize = source.computeSampleSize(Math.min(targetWidth, MAX_BASE_SIZE),
+                Math.min(targetHeight, MAX_BASE_SIZE));
+        while (source.getWidth() / sampleSize > MAX_BASE_SIZE || source.getHeight() / sampleSize > MAX_BASE_SIZE) {
+            sampleSize *= 2;
+        }
+        final int baseSampleSize = sampleSize;
+        mBaseLoad = DecodeQueue.submit(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap base;
+                PhaseTracer.begin(PhaseTrace.PHASE_DECODE);
+                try {
+                    base = source.decode(baseSampleSize);
+                } catch (IOException e) {
+                    Log.w(TAG, "Unable to decode image", e);
+                    return;
+                } finally {
+                    PhaseTracer.end(PhaseTrace.PHASE_DECODE);
+                }
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mImageSource != source || mSuspended) {
+                            // Reloaded on resume if still needed
+                            BitmapPool.put(base);
+                            return;
+                        }
+                        mBaseLoad = null;
+                        dropOwnedBase();
+                        mOwnsBase = true;
+                        mShowingPreview = false;
+                        mMemory.set(MemoryTracker.LAYER_BASE, base);
+                        if (mDrawable == null) {
+                            applyBitmap(base, source.getWidth(), source.getHeight());
+                        } else {
+                            setBase(base);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private void releaseImageSource() {
+        if (mHttpSource != null) {
+            mHttpSource.cancel();
+            mHttpSource = null;
+        }
+        if (mBaseLoad != null) {
+            mBaseLoad.cancel(false);
+            mBaseLoad = null;
+        }
+        if (mImageSource != null) {
+            releaseTileRenderer();
+            mImageSource.close();
+            mImageSource = null;
+        }
+    }
+
+    /**
+     * Shows a bitmap shared with other views. The view takes its own reference to the handle and drops it
+     * on {@link #clear()}, when another bitmap is set, or while it is detached from its window.
+     */
+    public void setSharedBitmap(SharedBitmap shared) {
+        shared.acquire();
+        releaseSharedBitmap();
+        stopAnimation();
+        releaseImageSource();
+        dropOwnedBase();
+        mSharedBitmap = shared;
+        mMemory.setShared(MemoryTracker.LAYER_BASE, MemoryTracker.sizeOf(shared.getBitmap()));
+        applyBitmap(shared.getBitmap());
+    }
+
+    /**
+     * Plays an animated image. Frames are decoded ahead on a background thread into a small ring of
+     * reused bitmaps; zoom, pan and rotation work as for still images. Playback pauses while the view
+     * is not shown.
+     *
+     * @throws IOException if the first frame cannot be decoded
+     */
+    public void setAnimatedImage(FrameSource source) throws IOException {
+        AnimationPlayer player = new AnimationPlayer(this, source);
+        releaseSharedBitmap();
+        stopAnimation();
+        releaseImageSource();
+        dropOwnedBase();
+        mAnimation = player;
+        mMemory.set(MemoryTracker.LAYER_BASE, player.getBytes());
+        applyBitmap(player.getCurrentDrawable().getBitmap());
+        updateAnimationState();
+    }
+
+    void showAnimationFrame(BitmapDrawable frame) {
+        mBitmap = frame.getBitmap();
+        mDrawable = frame;
+        mDrawable.setBounds(0, 0, mImageWidth, mImageHeight);
+        invalidate();
+    }
+
+    private void stopAnimation() {
+        if (mAnimation != null) {
+            mAnimation.release();
+            mAnimation = null;
+        }
+    }
+
+    private void updateAnimationState() {
+        if (mAnimation == null) {
+            return;
+        }
+        if (isShown() && getWindowVisibility() == VISIBLE) {
+            mAnimation.start();
+        } else {
+            mAnimation.pause();
+        }
+    }
+
+    @Override
+    protected void onVisibilityChanged(View changedView, int visibility) {
+        super.onVisibilityChanged(changedView, visibility);
+        updateLifecycleState();
+    }
+
+    @Override
+    protected void onWindowVisibilityChanged(int visibility) {
+        super.onWindowVisibilityChanged(visibility);
+        updateLifecycleState();
+    }
+
+    private void updateLifecycleState() {
+        // Called by the View constructor before our fields are initialised
+        if (mMemory == null) {
+            return;
+        }
+        if (getWindowToken() != null && isShown() && getWindowVisibility() == VISIBLE) {
+            resume();
+        } else {
+            suspend();
+        }
+    }
+
+    /**
+     * Gives up what can be restored later while the view is not shown: animations and decodes stop, tiles
+     * are dropped and a base that can be reloaded is replaced by a small preview. The transform is kept.
+     */
+    private void suspend() {
+        if (mSuspended) {
+            return;
+        }
+        mSuspended = true;
+        stopAnimations();
+        if (mAnimation != null) {
+            mAnimation.pause();
+        }
+        releaseTileRenderer();
+        if (mBaseLoad != null) {
+            mBaseLoad.cancel(false);
+            mBaseLoad = null;
+        }
+        if (mBitmap != null && mAnimation == null && (mSharedBitmap != null || mImageSource != null)) {
+            Bitmap preview = createPreview(mBitmap);
+            if (mSharedBitmap != null) {
+                // Let the pixels go back to the pool if no other view shows them
+                SharedBitmap shared = mSharedBitmap;
+                releaseSharedBitmap();
+                mDetachedShared = shared;
+            }
+            dropOwnedBase();
+            mOwnsBase = true;
+            mShowingPreview = true;
+            mMemory.set(MemoryTracker.LAYER_BASE, preview);
+            setBase(preview);
+        }
+    }
+
+    /**
+     * Restores the full base given up by {@link #suspend()}.
+     */
+    private void resume() {
+        if (!mSuspended) {
+            return;
+        }
+        mSuspended = false;
+        if (mDetachedShared != null) {
+            SharedBitmap detached = mDetachedShared;
+            mDetachedShared = null;
+            try {
+                SharedBitmap shared = detached.reopen();
+                dropOwnedBase();
+                mShowingPreview = false;
+                mSharedBitmap = shared;
+                mMemory.setShared(MemoryTracker.LAYER_BASE, MemoryTracker.sizeOf(shared.getBitmap()));
+                setBase(shared.getBitmap());
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to reopen shared bitmap " + detached.getKey(), e);
+            }
+        } else if (mImageSource != null && (mShowingPreview || mBitmap == null) && mBaseLoad == null) {
+            loadBase(mImageSource);
+        }
+        updateAnimationState();
+    }
+
+    private static Bitmap createPreview(Bitmap bitmap) {
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        final float scale = Math.min(1f, (float) SUSPENDED_PREVIEW_SIZE / Math.max(width, height));
+        if (scale == 1f) {
+            // createScaledBitmap would return the bitmap itself
+            return bitmap.copy(bitmap.getConfig() != null ? bitmap.getConfig() : Bitmap.Config.ARGB_8888, true);
+        }
+        return Bitmap.createScaledBitmap(bitmap, Math.max(1, Math.round(width * scale)),
+                Math.max(1, Math.round(height * scale)), true);
+    }
+
+    /**
+     * Hands the base to the pool if this view created it. Call before replacing mBitmap.
+     */
+    private void dropOwnedBase() {
+        if (mOwnsBase && mBitmap != null) {
+            BitmapPool.put(mBitmap);
+        }
+        mOwnsBase = false;
+    }
+
+    private void releaseSharedBitmap() {
+        mDetachedShared = null;
+        if (mSharedBitmap != null) {
+            mSharedBitmap.release();
+            mSharedBitmap = null;
+        }
+    }
+
+    private void applyBitmap(Bitmap bitmap) {
+        applyBitmap(bitmap, bitmap.getWidth(), bitmap.getHeight());
+    }
+
+    /**
+     * Shows the given bitmap stretched over an image of the given size and fits the image into the view.
+     */
+    private void applyBitmap(Bitmap bitmap, int imageWidth, int imageHeight) {
+        final boolean keepTransform = mAwaitingPixels
+                && imageWidth == mImageWidth && imageHeight == mImageHeight;
+        mAwaitingPixels = false;
+        if (!keepTransform && (imageWidth != mImageWidth || imageHeight != mImageHeight)) {
+            requestLayout();
+        }
+        mBitmap = bitmap;
+        mImageWidth = imageWidth;
+        mImageHeight = imageHeight;
+        if (mAnnotations != null) {
+            mAnnotations.setImageSize(imageWidth, imageHeight);
+        }
+        mDrawable = new BitmapDrawable(getResources(), mBitmap);
+        if (keepTransform) {
+            // Laid out from the image bounds already
+            configureBounds(false);
+            invalidate();
+        } else {
+            // The matrix is rebuilt below, unrotated
+            lastRotation = 0f;
+            configureBounds(true);
+            generateMatrix();
+        }
+        enforceMemoryBudget();
+    }
+
+    /**
+     * Lays the view out for an image of the given size before its pixels are available: the fit transform,
+     * the zoom limits and {@code wrap_content} measurement are computed from the size alone. A bitmap of
+     * that size passed to {@link #setBitmap(Bitmap)} afterwards is shown with the transform already in place.
+     * <p>
+     * The size is typically probed with {@link BitmapFactory.Options#inJustDecodeBounds}.
+     */
+    public void setImageSize(int width, int height) {
+        releaseSharedBitmap();
+        stopAnimation();
+        releaseImageSource();
+        setImageBounds(width, height, 0);
+    }
+
+    private void setImageBounds(int width, int height, int rotation) {
+        releaseTileRenderer();
+        dropOwnedBase();
+        mBitmap = null;
+        mDrawable = null;
+        mShowingPreview = false;
+        mMemory.set(MemoryTracker.LAYER_BASE, 0);
+        if (width != mImageWidth || height != mImageHeight) {
+            requestLayout();
+        }
+        mImageWidth = width;
+        mImageHeight = height;
+        if (mAnnotations != null) {
+            mAnnotations.setImageSize(width, height);
+        }
+        lastRotation = rotation;
+        mAwaitingPixels = true;
+        configureBounds(true);
+        generateMatrix();
+        invalidate();
+    }
+
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        if (mImageWidth <= 0 || mImageHeight <= 0) {
+            super.onMeasure(widthMeasureSpec, heightMeasureSpec);
+            return;
+        }
+        // Bounds of the image as rotated
+        final double radians = Math.toRadians(lastRotation);
+        final float cos = (float) Math.abs(Math.cos(radians));
+        final float sin = (float) Math.abs(Math.sin(radians));
+        final float imageWidth = mImageWidth * cos + mImageHeight * sin;
+        final float imageHeight = mImageWidth * sin + mImageHeight * cos;
+        final int widthMode = MeasureSpec.getMode(widthMeasureSpec);
+        final int heightMode = MeasureSpec.getMode(heightMeasureSpec);
+        final int widthSize = MeasureSpec.getSize(widthMeasureSpec);
+        final int heightSize = MeasureSpec.getSize(heightMeasureSpec);
+
+        // Fit the image into whatever room we are given, keeping its aspect ratio on wrapped sides
+        float scale = 1f;
+        if (widthMode != MeasureSpec.UNSPECIFIED && imageWidth > widthSize) {
+            scale = widthSize / imageWidth;
+        }
+        if (heightMode != MeasureSpec.UNSPECIFIED && imageHeight * scale > heightSize) {
+            scale = heightSize / imageHeight;
+        }
+        int width = widthMode == MeasureSpec.EXACTLY ? widthSize : Math.round(imageWidth * scale);
+        int height = heightMode == MeasureSpec.EXACTLY ? heightSize : Math.round(imageHeight * scale);
+        setMeasuredDimension(Math.max(width, getSuggestedMinimumWidth()),
+                Math.max(height, getSuggestedMinimumHeight()));
+    }
+
+    /**
+     * Returns the bitmap currently drawn as the base layer. This is a downsampled copy of the bitmap
+     * passed to {@link #setBitmap(Bitmap)} if the memory budget forced the view to give up pixels.
+     */
+    public Bitmap getBitmap() {
+        return mBitmap;
+    }
+
+    public void setBitmapFromResource(int drawableId) {
+        Resources res = getResources();
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        // The decoder keeps ARGB_8888 for images with alpha
+        options.inPreferredConfig = getConfig(false);
+        setBitmap(BitmapFactory.decodeResource(res, drawableId, options));
+    }
+
+    /**
+     * Sets how the pixels of images decoded by this view are held, one of {@link #CONFIG_AUTO},
+     * {@link #CONFIG_QUALITY} and {@link #CONFIG_COMPACT}. Applies from the next decode; bitmaps passed to
+     * {@link #setBitmap(Bitmap)} are only converted by {@link #CONFIG_AUTO} under memory pressure.
+     * The bytes saved are reported by {@link MemoryTracker#getTotalSavedBytes()}.
+     */
+    public void setBitmapConfigPolicy(int policy) {
+        mConfigPolicy = policy;
+    }
+
+    public int getBitmapConfigPolicy() {
+        return mConfigPolicy;
+    }
+
+    /**
+     * @return the config to decode an image with or without alpha in, under the current policy.
+     */
+    private Bitmap.Config getConfig(boolean hasAlpha) {
+        if (hasAlpha || mConfigPolicy == CONFIG_QUALITY || (mConfigPolicy == CONFIG_AUTO && !mMemoryPressure)) {
+            return Bitmap.Config.ARGB_8888;
+        }
+        return Bitmap.Config.RGB_565;
+    }
+
+    /**
+     * Copies the current image transform into the given matrix.
+     */
+    public void getImageMatrix(Matrix outMatrix) {
+        outMatrix.set(mMatrix);
+    }
+
+    /**
+     * @return counters collected by this view.
+     */
+    public ViewMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * @return pixel memory accounting for this view.
+     */
+    public MemoryTracker getMemoryTracker() {
+        return mMemory;
+    }
+
+    /**
+     * Limits the pixel memory held by this view. Use {@link MemoryTracker#NO_BUDGET} to remove the limit.
+     */
+    public void setMemoryBudget(long bytes) {
+        mMemory.setBudget(bytes);
+        mMemoryPressure = false;
+        enforceMemoryBudget();
+    }
+
+    /**
+     * Gives memory back until both this view and the process are within their budgets.
+     * Layers are released in order: pooled and compressed bitmaps, which other views share and which are
+     * only dropped while the process is over its budget, then previews, tiles, then an opaque base is
+     * switched to RGB_565 under {@link #CONFIG_AUTO}, and finally the base bitmap is downsampled. The base
+     * is only downsampled as far as this view's own budget requires; bytes held by other views are not
+     * made up for by this one.
+     */
+    public void trimMemory() {
+        enforceMemoryBudget(false);
+    }
+
+    private void enforceMemoryBudget() {
+        enforceMemoryBudget(false);
+    }
+
+    /**
+     * @param drawing called after a frame was drawn: the preview and the visible tiles are kept, they are
+     *                needed for the next frame again
+     */
+    private void enforceMemoryBudget(boolean drawing) {
+        if (!mMemory.isOverBudget()) {
+            return;
+        }
+        trimSharedLayers();
+        if (mTileRenderer != null && mMemory.isOverBudget()) {
+            if (drawing) {
+                mTileRenderer.trimRetained(Math.max(0,
+                        mMemory.getBytes(MemoryTracker.LAYER_TILES) - mMemory.getExcessBytes()));
+            } else if (mTileRenderer.ownsPreview()) {
+                // The preview and the tiles go together, a new renderer is made if the view draws again
+                releaseTileRenderer();
+            } else {
+                // Only the visible tiles come back on the next draw
+                mTileRenderer.trimTiles();
+            }
+            if (mTileRenderer != null) {
+                mMemory.set(MemoryTracker.LAYER_TILES, mTileRenderer.getTileBytes(),
+                        mTileRenderer.getSavedTileBytes());
+            }
+            trimSharedLayers();
+        }
+        if (mMemory.isOverBudget() && mConfigPolicy == CONFIG_AUTO) {
+            mMemoryPressure = true;
+            switchToCompactConfig();
+        }
+        // The frame ring of an animation has a fixed size
+        while (mMemory.getViewExcessBytes() > 0 && mBitmap != null && mAnimation == null
+                && mBitmap.getWidth() > 1 && mBitmap.getHeight() > 1) {
+            downsampleBase();
+        }
+        if (!drawing && MemoryTracker.getProcessExcessBytes() > 0) {
+            Log.w(TAG, "Process still over its memory budget by " + MemoryTracker.getProcessExcessBytes()
+                    + " bytes");
+        }
+    }
+
+    /**
+     * Drops pooled and compressed bitmaps while the process is over its budget. They are not counted for
+     * any view, so they do not help with a view budget.
+     */
+    private void trimSharedLayers() {
+        long excess = MemoryTracker.getProcessExcessBytes();
+        if (excess > 0) {
+            BitmapPool.trimToSize(Math.max(0, BitmapPool.getBytes() - excess));
+        }
+        excess = MemoryTracker.getProcessExcessBytes();
+        if (excess > 0) {
+            CompressedCache compressed = CompressedCache.getInstance();
+            compressed.trimToSize(Math.max(0, compressed.getBytes() - excess));
+        }
+    }
+
+    /**
+     * Replaces an opaque ARGB_8888 base by an RGB_565 copy, and has tiles decoded in RGB_565 from then on.
+     */
+    private void switchToCompactConfig() {
+        if (mBitmap == null || mAnimation != null || mBitmap.getConfig() != Bitmap.Config.ARGB_8888
+                || mBitmap.hasAlpha()) {
+            return;
+        }
+        if (mImageSource != null) {
+            if (mImageSource.hasAlpha()) {
+                return;
+            }
+            mImageSource.setConfig(Bitmap.Config.RGB_565);
+        }
+        Bitmap compact = mBitmap.copy(Bitmap.Config.RGB_565, true);
+        if (compact == null) {
+            return;
+        }
+        // Tiles are cut again, in the new config, from the new base or the source
+        releaseTileRenderer();
+        releaseSharedBitmap();
+        dropOwnedBase();
+        mOwnsBase = true;
+        mMemory.set(MemoryTracker.LAYER_BASE, compact);
+        setBase(compact);
+    }
+
+    /**
+     * Replaces the base bitmap by a copy of half its size. The image keeps its size on screen.
+     */
+    private void downsampleBase() {
+        Bitmap scaled = Bitmap.createScaledBitmap(mBitmap,
+                Math.max(1, mBitmap.getWidth() / 2), Math.max(1, mBitmap.getHeight() / 2), true);
+        // The copy is private to this view
+        releaseSharedBitmap();
+        dropOwnedBase();
+        mOwnsBase = true;
+        mMemory.set(MemoryTracker.LAYER_BASE, scaled);
+        setBase(scaled);
+    }
+
+    /**
+     * Replaces the pixels drawn for the base layer, keeping the image size and the current transform.
+     */
+    private void setBase(Bitmap bitmap) {
+        if (mMinimap != null) {
+            mMinimap.release();
+        }
+        mBitmap = bitmap;
+        mDrawable = new BitmapDrawable(getResources(), bitmap);
+        mDrawable.setBounds(0, 0, mImageWidth, mImageHeight);
+        invalidate();
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        accountBase();
+        updateLifecycleState();
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        suspend();
+        // A view dropped without clear() must not stay in the process totals
+        mMemory.release();
+    }
+
+    /**
+     * Counts the base held while detached in the memory tracker again.
+     */
+    private void accountBase() {
+        if (mSharedBitmap != null) {
+            mMemory.setShared(MemoryTracker.LAYER_BASE, MemoryTracker.sizeOf(mSharedBitmap.getBitmap()));
+        } else if (mAnimation != null) {
+            mMemory.set(MemoryTracker.LAYER_BASE, mAnimation.getBytes());
+        } else {
+            mMemory.set(MemoryTracker.LAYER_BASE, mBitmap);
+        }
+    }
+
+    /**
+     * Records every touch event received by this view into the given recorder. Pass null to stop recording.
+     */
+    public void setGestureRecorder(GestureRecorder recorder) {
+        mGestureRecorder = recorder;
+    }
+
+    @Override
+    public void invalidate() {
+        // Called by the View constructor before our fields are initialised
+        if (mMetrics != null) {
+            mMetrics.onInvalidate();
+        }
+        if (mTransformLink != null && !mLinkedMatrix.equals(mMatrix)) {
+            mLinkedMatrix.set(mMatrix);
+            mTransformLink.onTransformChanged(this);
+        }
+        super.invalidate();
+    }
+
+    @Override
+    protected void onLayout(boolean changed, int left, int top, int right, int bottom) {
+        super.onLayout(changed, left, top, right, bottom);
+        mHaveLayout = true;
+        configureBounds(changed);
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+
+        generateMatrix();
+    }
+
+    @Override
+    public void onDraw(Canvas canvas) {
+        if (mBitmap == null) return;
+
+        PhaseTracer.begin(PhaseTrace.PHASE_DRAW);
+        try {
+            if (mBitmap != mDrawnBase) {
+                PhaseTracer.mark(PhaseTrace.PHASE_UPLOAD);
+                mDrawnBase = mBitmap;
+            }
+            final boolean highQuality = mQuality.beginFrame(mTouching || isAnimating(), mMetrics);
+            if (mImageSource != null || TileRenderer.needsTiling(canvas, mBitmap)) {
+                drawTiled(canvas, highQuality);
+            } else {
+                releaseTileRenderer();
+                drawBase(canvas, highQuality);
+            }
+            if (mAnnotations != null) {
+                mAnnotations.draw(canvas, mMatrix, getInverseMatrix(), getWidth(), getHeight());
+            }
+            if (mMinimap != null) {
+                // The tile preview is the smallest level there is; without tiles it is the base itself
+                Bitmap smallest = mTileRenderer != null ? mTileRenderer.getPreview() : mBitmap;
+                mMinimap.draw(canvas, smallest, mImageWidth, mImageHeight, getScale() / mMinScale,
+                        getRotationDegrees(), getInverseMatrix(), getWidth(), getHeight());
+            }
+            mQuality.endFrame(mMetrics);
+        } finally {
+            PhaseTracer.end(PhaseTrace.PHASE_DRAW);
+        }
+    }
+
+    private void drawBase(Canvas canvas, boolean highQuality) {
+        mDrawable.setFilterBitmap(highQuality);
+        mDrawable.setDither(highQuality);
+
+        int saveCount = canvas.getSaveCount();
+        canvas.save();
+        // Finally, draw the bitmap using the matrix as a guide.
+        //canvas.drawBitmap(mBitmap, mMatrix, null);
+        if (mDrawMatrix != null) {
+            canvas.concat(mDrawMatrix);
+        }
+        mDrawable.draw(canvas);
+        canvas.restoreToCount(saveCount);
+
+        // Extract the drawable's bounds (in our own copy, to not alter the image)
+        mTranslateRect.set(mDrawable.getBounds());
+        if (mDrawMatrix != null) {
+            mDrawMatrix.mapRect(mTranslateRect);
+        }
+    }
+
+    /**
+     * Draws a base bitmap too large for one texture through the tile renderer.
+     */
+    private void drawTiled(Canvas canvas, boolean highQuality) {
+        if (mTileRenderer == null || mTileBase != mBitmap) {
+            releaseTileRenderer();
+            mTileBase = mBitmap;
+            int maxTextureSize = Math.min(canvas.getMaximumBitmapWidth(), canvas.getMaximumBitmapHeight());
+            if (mImageSource != null) {
+                // The base is a subsampled copy of the source and serves as preview
+                mTileRenderer = new TileRenderer(mImageSource, maxTextureSize, mBitmap, mInvalidateRunnable,
+                        mMetrics);
+            } else {
+                mTileRenderer = new TileRenderer(new BitmapTileSource(mBitmap), maxTextureSize, null,
+                        mInvalidateRunnable, mMetrics);
+            }
+        }
+        mTileRenderer.draw(canvas, mMatrix, getWidth(), getHeight(), mImageWidth, mImageHeight, highQuality);
+        // A preview the renderer scales itself arrives after the first frames
+        mMemory.set(MemoryTracker.LAYER_PREVIEW, mTileRenderer.getPreviewBytes(),
+                mTileRenderer.getSavedPreviewBytes());
+        mMemory.set(MemoryTracker.LAYER_TILES, mTileRenderer.getTileBytes(), mTileRenderer.getSavedTileBytes());
+        // Tiles loaded for this frame count against the budget like any other pixels
+        enforceMemoryBudget(true);
+
+        mTranslateRect.set(0, 0, mImageWidth, mImageHeight);
+        mMatrix.mapRect(mTranslateRect);
+    }
+
+    private void releaseTileRenderer() {
+        if (mTileRenderer != null) {
+            if (mMinimap != null) {
+                // It may have been scaled from the preview of the renderer
+                mMinimap.release();
+            }
+            mTileRenderer.release();
+            mTileRenderer = null;
+            mTileBase = null;
+            mMemory.set(MemoryTracker.LAYER_PREVIEW, 0);
+            mMemory.set(MemoryTracker.LAYER_TILES, 0);
+        }
+    }
+
+    /**
+     * Returns the annotation overlay of this view, creating it if needed. Its grid follows the image size,
+     * so it may be fetched before an image is set.
+     */
+    public AnnotationOverlay getAnnotations() {
+        if (mAnnotations == null) {
+            mAnnotations = new AnnotationOverlay(this, mImageWidth, mImageHeight);
+        }
+        return mAnnotations;
+    }
+
+    /**
+     * Returns the minimap of this view, creating it, disabled, if needed.
+     */
+    public Minimap getMinimap() {
+        if (mMinimap == null) {
+            mMinimap = new Minimap(this);
+        }
+        return mMinimap;
+    }
+
+    /**
+     * Maps points from image to view coordinates, in place.
+     */
+    public void mapImageToView(float[] points) {
+        mMatrix.mapPoints(points);
+    }
+
+    /**
+     * Maps points from view to image coordinates, in place.
+     */
+    public void mapViewToImage(float[] points) {
+        getInverseMatrix().mapPoints(points);
+    }
+
+    /**
+     * Returns the view to image transform, inverted again only when the transform changed.
+     */
+    private Matrix getInverseMatrix() {
+        if (!mInverseSource.equals(mMatrix)) {
+            mInverseSource.set(mMatrix);
+            mMatrix.invert(mInverseMatrix);
+        }
+        return mInverseMatrix;
+    }
+
+    /**
+     * Captures the current image and transform for an export; see {@link ImageExporter}.
+     */
+    ImageExporter createExporter(boolean viewportOnly) {
+        if (mImageWidth <= 0 || (mImageSource == null && mBitmap == null)) {
+            throw new IllegalStateException("No image to export");
+        }
+        TileSource source = mImageSource != null ? mImageSource : new BitmapTileSource(mBitmap);
+        return ImageExporter.create(source, mImageWidth, mImageHeight, mMatrix, getWidth(), getHeight(),
+                viewportOnly);
+    }
+
+    /**
+     * @return the controller choosing the render quality of each frame.
+     */
+    public RenderQuality getRenderQuality() {
+        return mQuality;
+    }
+
+    private boolean isAnimating() {
+        return mTranslateRunnable.mRunning || mSnapRunnable.mRunning || mScaleRunnable.mRunning
+                || mViewportRunnable.mRunning;
+    }
+
+    /**
+     * Runs the next frame of a viewport or rotation animation now instead of waiting for the posted one.
+     *
+     * @return false if no such animation is running.
+     */
+    boolean runViewportFrame() {
+        if (!mViewportRunnable.mRunning) {
+            return false;
+        }
+        mViewportRunnable.run();
+        return true;
+    }
+
+    /**
+     * Runs the next frame of every running animation now instead of waiting for the posted ones.
+     *
+     * @return false if no animation is running.
+     */
+    boolean runAnimationFrame() {
+        if (!isAnimating()) {
+            return false;
+        }
+        if (mViewportRunnable.mRunning) {
+            mViewportRunnable.run();
+        }
+        if (mScaleRunnable.mRunning) {
+            mScaleRunnable.run();
+        }
+        if (mTranslateRunnable.mRunning) {
+            mTranslateRunnable.run();
+        }
+        if (mSnapRunnable.mRunning) {
+            mSnapRunnable.run();
+        }
+        return true;
+    }
+
+    /**
+     * Shows the given region of the image, in image coordinates, as large as it fits into the view.
+     * The target transform is solved once, clamped to the zoom limits and the image edges, and the
+     * current rotation is kept. When animated, scale and translation are interpolated together.
+     */
+    public void setViewport(RectF imageRect, boolean animate) {
+        if (mImageWidth <= 0 || getWidth() == 0 || getHeight() == 0) {
+            return;
+        }
+        stopAnimations();
+        final float vwidth = getWidth();
+        final float vheight = getHeight();
+        final float degrees = getRotationDegrees();
+        final double radians = Math.toRadians(degrees);
+        final float cos = (float) Math.abs(Math.cos(radians));
+        final float sin = (float) Math.abs(Math.sin(radians));
+        // Size of the region once rotated into view orientation
+        final float rwidth = imageRect.width() * cos + imageRect.height() * sin;
+        final float rheight = imageRect.width() * sin + imageRect.height() * cos;
+        float targetScale = Math.min(vwidth / Math.max(rwidth, 1f), vheight / Math.max(rheight, 1f));
+        targetScale = snapToCachedLevel(targetScale);
+
+        moveTo(degrees, targetScale, imageRect.centerX(), imageRect.centerY(), animate);
+    }
 
-    private Matrix mMatrix = new Matrix();
-    private Matrix mDrawMatrix;
-    private Matrix mOriginalMatrix = new Matrix();
-    private float[] mValues = new float[9];
+    /**
+     * Moves the given image point to the view centre, or as close to it as the image edges allow, keeping
+     * the current zoom and rotation.
+     */
+    public void centerOn(float imageX, float imageY, boolean animate) {
+        if (mImageWidth <= 0 || getWidth() == 0 || getHeight() == 0) {
+            return;
+        }
+        stopAnimations();
+        moveTo(getRotationDegrees(), getScale(), imageX, imageY, animate);
+    }
 
-    private Bitmap mBitmap;
-    private BitmapDrawable mDrawable;
-    float lastRotation = 0f;
+    /**
+     * Solves the clamped matrix centring the given image point at the given scale once, then sets it or
+     * animates towards it.
+     */
+    private void moveTo(float degrees, float scale, float imageX, float imageY, boolean animate) {
+        // Solve the final matrix, then read back the image point it centres after clamping
+        buildMatrix(mTempMatrix, degrees, scale, imageX, imageY);
+        clampMatrix(mTempMatrix);
+        mapViewCenterToImage(mTempMatrix, mTempPoint);
+        final float targetX = mTempPoint[0];
+        final float targetY = mTempPoint[1];
 
-    public FFImageView(Context context) {
-        super(context);
-        this.context = context;
+        if (animate) {
+            mapViewCenterToImage(mMatrix, mTempPoint);
+            mViewportRunnable.start(degrees, getScale(), mTempPoint[0], mTempPoint[1],
+                    degrees, scale, targetX, targetY, VIEWPORT_ANIMATION_DURATION);
+        } else {
+            mMatrix.set(mTempMatrix);
+            invalidate();
+        }
     }
 
-    public FFImageView(Context context, AttributeSet attrs) {
-        super(context, attrs);
-        this.context = context;
+    /**
+     * Copies the region of the image currently visible, in image coordinates, into the given rect.
+     */
+    public void getViewport(RectF outRect) {
+        outRect.set(0, 0, getWidth(), getHeight());
+        if (mMatrix.invert(mTempMatrix)) {
+            mTempMatrix.mapRect(outRect);
+        }
+        outRect.intersect(0, 0, mImageWidth, mImageHeight);
     }
 
-    public void setBitmap(Bitmap bitmap) {
-        mBitmap = bitmap;
-        mDrawable = new BitmapDrawable(getResources(), mBitmap);
+    private void stopAnimations() {
+        mTranslateRunnable.stop();
+        mSnapRunnable.stop();
+        mScaleRunnable.stop();
+        mViewportRunnable.stop();
+    }
 
-        mGestureDetector = new GestureDetectorCompat(context, this, null);
-        mScaleGestureDetector = new ScaleGestureDetector(context, this);
-        mSnapRunnable = new SnapRunnable(this);
-        mScaleRunnable = new ScaleRunnable(this);
-        mTranslateRunnable = new TranslateRunnable(this);
-        mRotateRunnable = new RotateRunnable(this);
-        configureBounds(true);
-        generateMatrix();
+    /**
+     * @return rotation of the current transform, in degrees.
+     */
+    private float getRotationDegrees() {
+        mMatrix.getValues(mValues);
+        return (float) Math.toDegrees(Math.atan2(mValues[Matrix.MSKEW_Y], mValues[Matrix.MSCALE_X]));
     }
 
-    public Bitmap getBitmap() {
-        return mBitmap;
+    TransformLink getTransformLink() {
+        return mTransformLink;
     }
 
-    public void setBitmapFromResource(int drawableId) {
-        Resources res = getResources();
-        setBitmap(BitmapFactory.decodeResource(res, drawableId));
+    void setTransformLink(TransformLink link) {
+        mTransformLink = link;
+        mLinkedMatrix.set(mMatrix);
     }
 
-    @Override
-    protected void onLayout(boolean changed, int left, int top, int right, int bottom) {
-        super.onLayout(changed, left, top, right, bottom);
-        mHaveLayout = true;
-        configureBounds(changed);
+    /**
+     * Reads the transform independently of view and image size: the image point at the view centre as a
+     * fraction of the image size, the scale relative to the fitted scale and the rotation in degrees.
+     *
+     * @return false if there is no image or the view is not laid out.
+     */
+    boolean getNormalizedTransform(float[] outTransform) {
+        if (mImageWidth <= 0 || getWidth() == 0 || getHeight() == 0 || mMinScale <= 0) {
+            return false;
+        }
+        mapViewCenterToImage(mMatrix, mTempPoint);
+        outTransform[0] = mTempPoint[0] / mImageWidth;
+        outTransform[1] = mTempPoint[1] / mImageHeight;
+        outTransform[2] = getScale() / mMinScale;
+        outTransform[3] = getRotationDegrees();
+        return true;
     }
 
-    @Override
-    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
-        super.onSizeChanged(w, h, oldw, oldh);
+    /**
+     * Sets a transform read by {@link #getNormalizedTransform(float[])}, clamped to this view.
+     */
+    void applyNormalizedTransform(float[] transform) {
+        if (mImageWidth <= 0 || getWidth() == 0 || getHeight() == 0 || mMinScale <= 0) {
+            return;
+        }
+        stopAnimations();
+        final float degrees = normalizeDegrees(transform[3]);
+        if (degrees != lastRotation) {
+            // The relative scale and the clamp both need the fit of the new rotation
+            lastRotation = degrees;
+            refitRotation();
+        }
+        final float scale = Math.max(mMinScale, Math.min(mMaxScale, mMinScale * transform[2]));
+        buildMatrix(mMatrix, transform[3], scale, transform[0] * mImageWidth, transform[1] * mImageHeight);
+        clampMatrix(mMatrix);
+        // Not sent back to the group
+        mLinkedMatrix.set(mMatrix);
+        invalidate();
+    }
 
-        generateMatrix();
+    /**
+     * Sets the matrix to rotate and scale the image and move the given image point to the view centre.
+     */
+    private void buildMatrix(Matrix matrix, float degrees, float scale, float imageX, float imageY) {
+        PhaseTracer.begin(PhaseTrace.PHASE_TRANSFORM);
+        try {
+            matrix.setRotate(degrees);
+            matrix.postScale(scale, scale);
+            mTempPoint[0] = imageX;
+            mTempPoint[1] = imageY;
+            matrix.mapPoints(mTempPoint);
+            matrix.postTranslate(getWidth() / 2f - mTempPoint[0], getHeight() / 2f - mTempPoint[1]);
+        } finally {
+            PhaseTracer.end(PhaseTrace.PHASE_TRANSFORM);
+        }
     }
 
-    @Override
-    public void onDraw(Canvas canvas) {
-        if (mBitmap == null) return;
+    private void mapViewCenterToImage(Matrix matrix, float[] outPoint) {
+        outPoint[0] = getWidth() / 2f;
+        outPoint[1] = getHeight() / 2f;
+        // Not mTempMatrix, which may hold the matrix being mapped
+        if (matrix.invert(mCenterInverse)) {
+            mCenterInverse.mapPoints(outPoint);
+        }
+    }
 
-        int saveCount = canvas.getSaveCount();
-        canvas.save();
-        // Finally, draw the bitmap using the matrix as a guide.
-        //canvas.drawBitmap(mBitmap, mMatrix, null);
-        if (mDrawMatrix != null) {
-            canvas.concat(mDrawMatrix);
+    /**
+     * Translates the matrix so the image fills the view, or is centred along sides where it is smaller,
+     * the same way {@link #snap()} does but at once.
+     */
+    private void clampMatrix(Matrix matrix) {
+        PhaseTracer.begin(PhaseTrace.PHASE_CLAMP);
+        try {
+            mTempRect.set(0, 0, mImageWidth, mImageHeight);
+            matrix.mapRect(mTempRect);
+            matrix.postTranslate(clampOffset(mTempRect.left, mTempRect.right, getWidth()),
+                    clampOffset(mTempRect.top, mTempRect.bottom, getHeight()));
+        } finally {
+            PhaseTracer.end(PhaseTrace.PHASE_CLAMP);
         }
-        mDrawable.draw(canvas);
-        canvas.restoreToCount(saveCount);
+    }
 
-        // Extract the drawable's bounds (in our own copy, to not alter the image)
-        mTranslateRect.set(mDrawable.getBounds());
-        if (mDrawMatrix != null) {
-            mDrawMatrix.mapRect(mTranslateRect);
+    private static float clampOffset(float start, float end, float size) {
+        if (end - start < size) {
+            return (size - (end + start)) / 2;
+        } else if (start > 0) {
+            return -start;
+        } else if (end < size) {
+            return size - end;
         }
+        return 0;
     }
 
-    public void rotateImage(int angle, boolean animate) {
+    /**
+     * Rotates the image clockwise by the given angle, about the view centre, and fits it into the view.
+     * The start and the fitted end transform are solved once; when animated, the rotation, scale and image
+     * point at the view centre are interpolated between them without clamping in between.
+     */
+    public void rotateImage(float degrees, boolean animate) {
+        if (mImageWidth <= 0 || getWidth() == 0 || getHeight() == 0) {
+            return;
+        }
+        // A rotation still running ends at its target first
+        stopAnimations();
+        final float startDegrees = getRotationDegrees();
+        final float startScale = getScale();
+        mapViewCenterToImage(mMatrix, mTempPoint);
+        final float startX = mTempPoint[0];
+        final float startY = mTempPoint[1];
+
+        lastRotation = normalizeDegrees(lastRotation + degrees);
+        mTempSrc.set(0, 0, mImageWidth, mImageHeight);
+        buildFitMatrix(mOriginalMatrix, lastRotation);
+        final float fitScale = getScale(mOriginalMatrix);
+        generateScale(fitScale);
         if (animate) {
-            mRotateRunnable.start(angle);
+            // The same turns as the request, ending exactly on the fitted rotation
+            final float targetDegrees = lastRotation
+                    + 360f * Math.round((startDegrees + degrees - lastRotation) / 360f);
+            mViewportRunnable.start(startDegrees, startScale, startX, startY, targetDegrees, fitScale,
+                    mImageWidth / 2f, mImageHeight / 2f, ROTATE_ANIMATION_DURATION);
         } else {
-            rotateAndUpdateMatrix(angle);
+            mMatrix.set(mOriginalMatrix);
+            invalidate();
         }
     }
 
-    private void rotateAndUpdateMatrix(float rotationDegrees) {
-        if (rotationDegrees > 0) {
-            float vw = this.getWidth();
-            float vh = this.getHeight();
-            float hvw = vw / 2;
-            float hvh = vh / 2;
-            float bw = (float) mBitmap.getWidth();
-            float bh = (float) mBitmap.getHeight();
-
-            // Rotate the bitmap the specified number of degrees.
-            lastRotation += rotationDegrees;
-            if (lastRotation == 90 || lastRotation == 270) {
-                float temp = bw;
-                bw = bh;
-                bh = temp;
-            }
+    /**
+     * @return the angle in [0, 360).
+     */
+    private static float normalizeDegrees(float degrees) {
+        degrees %= 360f;
+        return degrees < 0 ? degrees + 360f : degrees;
+    }
 
-            // First scale the bitmap to fit into the view. Use either scale factor for width and height, whichever is the smallest.
-            float s1x = vw / bw;
-            float s1y = vh / bh;
-            mMinScale = (s1x < s1y) ? s1x : s1y;
+    /**
+     * Enables turning the image with two fingers. Disabled by default.
+     */
+    public void setRotateGestureEnabled(boolean enabled) {
+        mRotateGestureEnabled = enabled;
+    }
 
-            mMatrix.postRotate(rotationDegrees, hvw, hvh);
+    public boolean isRotateGestureEnabled() {
+        return mRotateGestureEnabled;
+    }
 
-            scale(mMinScale, vw / 2, vh / 2);
-            if (lastRotation >= 360) {
-                lastRotation = 0;
-            }
+    @Override
+    public void onRotate(float degrees, float focusX, float focusY) {
+        // Incremental, the zoom limits are refitted once the gesture ends
+        mMatrix.postRotate(degrees, focusX, focusY);
+        lastRotation = normalizeDegrees(lastRotation + degrees);
+        invalidate();
+    }
 
-            invalidate();
+    @Override
+    public void onRotateEnd() {
+        refitRotation();
+        if (getScale() < mMinScale) {
+            scale(mMinScale, getWidth() / 2f, getHeight() / 2f);
+        } else {
+            snap();
         }
     }
 
+    /**
+     * Refits the original matrix and the zoom limits to the current rotation.
+     */
+    private void refitRotation() {
+        mTempSrc.set(0, 0, mImageWidth, mImageHeight);
+        buildFitMatrix(mOriginalMatrix, lastRotation);
+        generateScale(getScale(mOriginalMatrix));
+    }
+
     private float getScale() {
-        mMatrix.getValues(mValues);
+        return getScale(mMatrix);
+    }
+
+    private float getScale(Matrix matrix) {
+        matrix.getValues(mValues);
         float scaleX = mValues[Matrix.MSCALE_X];
         float skewY = mValues[Matrix.MSKEW_Y];
 
@@ -178,6 +1350,16 @@ public class FFImageView extends View implements GestureDetector.OnGestureListen
         return currentScale;
     }
 
+    /**
+     * Moves an animation target scale onto a nearby zoom level whose tiles are cached, within the zoom limits.
+     */
+    private float snapToCachedLevel(float scale) {
+        if (mTileRenderer != null) {
+            scale = mTileRenderer.snapScale(scale, mImageWidth);
+        }
+        return Math.max(mMinScale, Math.min(mMaxScale, scale));
+    }
+
     private void scale(float newScale, float centerX, float centerY) {
         // ensure that mMixScale <= newScale <= mMaxScale
         newScale = Math.max(newScale, mMinScale);
@@ -203,6 +1385,7 @@ public class FFImageView extends View implements GestureDetector.OnGestureListen
     @Override
     public boolean onScaleBegin(ScaleGestureDetector detector) {
         mScaleRunnable.stop();
+        mViewportRunnable.stop();
         return true;
     }
 
@@ -213,68 +1396,127 @@ public class FFImageView extends View implements GestureDetector.OnGestureListen
 
     @Override
     public boolean onTouchEvent(MotionEvent event) {
-        if (mScaleGestureDetector == null) {
-            // We're being destroyed; ignore any touch events
+        if (mBitmap == null) {
+            // Nothing to move, the view was cleared or the image is still loading
             return true;
         }
+        if (mGestureDetector == null) {
+            // Views that are only bound and scrolled past never need the detectors
+            mGestureDetector = new GestureDetectorCompat(context, this, null);
+            mScaleGestureDetector = new ScaleGestureDetector(context, this);
+            mRotateGestureDetector = new RotateGestureDetector(this);
+        }
 
+        if (mGestureRecorder != null) {
+            mGestureRecorder.record(event);
+        }
+        if (onMinimapTouchEvent(event)) {
+            return true;
+        }
+        if (mRotateGestureEnabled) {
+            mRotateGestureDetector.onTouchEvent(event);
+        }
         mScaleGestureDetector.onTouchEvent(event);
         mGestureDetector.onTouchEvent(event);
         final int action = event.getAction();
 
         switch (action) {
+            case MotionEvent.ACTION_DOWN:
+                mTouching = true;
+                break;
             case MotionEvent.ACTION_UP:
             case MotionEvent.ACTION_CANCEL:
-                if (!mTranslateRunnable.mRunning) {
+                mTouching = false;
+                if (!mTranslateRunnable.mRunning && !mViewportRunnable.mRunning) {
                     snap();
                 }
+                if (!mQuality.isHighQuality()) {
+                    // Restore full quality now that the gesture is over
+                    invalidate();
+                }
                 break;
         }
 
         return true;
     }
 
+    /**
+     * Moves the view to the point touched on the minimap: animated when the touch goes down, then following
+     * the finger while it drags.
+     *
+     * @return true if the event belongs to a gesture that started on the minimap.
+     */
+    private boolean onMinimapTouchEvent(MotionEvent event) {
+        final int action = event.getActionMasked();
+        if (action == MotionEvent.ACTION_DOWN) {
+            mMinimapTouch = mMinimap != null && mMinimap.contains(event.getX(), event.getY());
+        }
+        if (!mMinimapTouch) {
+            return false;
+        }
+        if (action == MotionEvent.ACTION_DOWN || action == MotionEvent.ACTION_MOVE) {
+            // A drag redraws every move, render it like any other gesture
+            mTouching = true;
+            mTempPoint[0] = event.getX();
+            mTempPoint[1] = event.getY();
+            mMinimap.mapToImage(mTempPoint);
+            centerOn(mTempPoint[0], mTempPoint[1], action == MotionEvent.ACTION_DOWN);
+        } else if (action == MotionEvent.ACTION_UP || action == MotionEvent.ACTION_CANCEL) {
+            mMinimapTouch = false;
+            mTouching = false;
+            if (!mQuality.isHighQuality()) {
+                invalidate();
+            }
+        }
+        return true;
+    }
+
     /**
      * Snaps the image so it touches all edges of the view.
      */
     private void snap() {
-        mTranslateRect.set(mTempSrc);
-        mMatrix.mapRect(mTranslateRect);
-        // Determine how much to snap in the horizontal direction [if any]
-        float maxLeft = 0.0f;
-        float maxRight = getWidth();
-        float l = mTranslateRect.left;
-        float r = mTranslateRect.right;
         final float translateX;
-        if (r - l < maxRight - maxLeft) {
-            // Image is narrower than view; translate to the center of the view
-            translateX = maxLeft + ((maxRight - maxLeft) - (r + l)) / 2;
-        } else if (l > maxLeft) {
-            // Image is off right-edge of screen; bring it into view
-            translateX = maxLeft - l;
-        } else if (r < maxRight) {
-            // Image is off left-edge of screen; bring it into view
-            translateX = maxRight - r;
-        } else {
-            translateX = 0.0f;
-        }
-        // Determine how much to snap in the vertical direction [if any]
-        float maxTop = 0.0f;
-        float maxBottom = getHeight();
-        float t = mTranslateRect.top;
-        float b = mTranslateRect.bottom;
         final float translateY;
-        if (b - t < maxBottom - maxTop) {
-            // Image is shorter than view; translate to the bottom edge of the view
-            translateY = maxTop + ((maxBottom - maxTop) - (b + t)) / 2;
-        } else if (t > maxTop) {
-            // Image is off bottom-edge of screen; bring it into view
-            translateY = maxTop - t;
-        } else if (b < maxBottom) {
-            // Image is off top-edge of screen; bring it into view
-            translateY = maxBottom - b;
-        } else {
-            translateY = 0.0f;
+        PhaseTracer.begin(PhaseTrace.PHASE_CLAMP);
+        try {
+            mTranslateRect.set(mTempSrc);
+            mMatrix.mapRect(mTranslateRect);
+            // Determine how much to snap in the horizontal direction [if any]
+            float maxLeft = 0.0f;
+            float maxRight = getWidth();
+            float l = mTranslateRect.left;
+            float r = mTranslateRect.right;
+            if (r - l < maxRight - maxLeft) {
+                // Image is narrower than view; translate to the center of the view
+                translateX = maxLeft + ((maxRight - maxLeft) - (r + l)) / 2;
+            } else if (l > maxLeft) {
+                // Image is off right-edge of screen; bring it into view
+                translateX = maxLeft - l;
+            } else if (r < maxRight) {
+                // Image is off left-edge of screen; bring it into view
+                translateX = maxRight - r;
+            } else {
+                translateX = 0.0f;
+            }
+            // Determine how much to snap in the vertical direction [if any]
+            float maxTop = 0.0f;
+            float maxBottom = getHeight();
+            float t = mTranslateRect.top;
+            float b = mTranslateRect.bottom;
+            if (b - t < maxBottom - maxTop) {
+                // Image is shorter than view; translate to the bottom edge of the view
+                translateY = maxTop + ((maxBottom - maxTop) - (b + t)) / 2;
+            } else if (t > maxTop) {
+                // Image is off bottom-edge of screen; bring it into view
+                translateY = maxTop - t;
+            } else if (b < maxBottom) {
+                // Image is off top-edge of screen; bring it into view
+                translateY = maxBottom - b;
+            } else {
+                translateY = 0.0f;
+            }
+        } finally {
+            PhaseTracer.end(PhaseTrace.PHASE_CLAMP);
         }
         if (Math.abs(translateX) > SNAP_THRESHOLD || Math.abs(translateY) > SNAP_THRESHOLD) {
             mSnapRunnable.start(translateX, translateY);
@@ -287,6 +1529,7 @@ public class FFImageView extends View implements GestureDetector.OnGestureListen
     @Override
     public boolean onDown(MotionEvent e) {
         mTranslateRunnable.stop();
+        mViewportRunnable.stop();
         return true;
     }
 
@@ -323,7 +1566,7 @@ public class FFImageView extends View implements GestureDetector.OnGestureListen
     @Override
     public boolean onDoubleTap(MotionEvent e) {
         float currentScale = getScale();
-        float targetScale = mMinScale * DOUBLE_TAP_SCALE_FACTOR;
+        float targetScale = snapToCachedLevel(mMinScale * DOUBLE_TAP_SCALE_FACTOR);
         if (currentScale < targetScale) {
             mScaleRunnable.start(currentScale, targetScale, e.getX(), e.getY());
         } else {
@@ -459,21 +1702,23 @@ public class FFImageView extends View implements GestureDetector.OnGestureListen
      * Configures the bounds of the photo. The photo will always be scaled to fit center.
      */
     private void configureBounds(boolean changed) {
-        if (mDrawable == null || !mHaveLayout) {
+        if (mImageWidth <= 0 || !mHaveLayout) {
             return;
         }
-        final int dwidth = mDrawable.getIntrinsicWidth();
-        final int dheight = mDrawable.getIntrinsicHeight();
+        final int dwidth = mImageWidth;
+        final int dheight = mImageHeight;
         final int vwidth = getWidth();
         final int vheight = getHeight();
         final boolean fits = (dwidth < 0 || vwidth == dwidth) &&
                 (dheight < 0 || vheight == dheight);
         // We need to do the scaling ourself, so have the drawable use its native size.
-        mDrawable.setBounds(0, 0, dwidth, dheight);
+        if (mDrawable != null) {
+            mDrawable.setBounds(0, 0, dwidth, dheight);
+        }
         // Create a matrix with the proper transforms
-        if (changed || (mMinScale == 0 && mDrawable != null && mHaveLayout)) {
+        if (changed || (mMinScale == 0 && mHaveLayout)) {
             generateMatrix();
-            generateScale();
+            generateScale(getScale());
         }
         if (fits || mMatrix.isIdentity()) {
             // The bitmap fits exactly, no transform needed.
@@ -483,126 +1728,62 @@ public class FFImageView extends View implements GestureDetector.OnGestureListen
         }
     }
 
-    private void generateScale() {
-        final int dwidth = mDrawable.getIntrinsicWidth();
-        final int dheight = mDrawable.getIntrinsicHeight();
+    /**
+     * Sets the zoom limits from the scale that fits the image into the view.
+     */
+    private void generateScale(float fitScale) {
+        final int dwidth = mImageWidth;
+        final int dheight = mImageHeight;
         final int vwidth = getWidth();
         final int vheight = getHeight();
         if (dwidth < vwidth && dheight < vheight) {
             mMinScale = 1.0f;
         } else {
-            mMinScale = getScale();
+            mMinScale = fitScale;
         }
         mMaxScale = Math.max(mMinScale * 8, 8);
     }
 
     private void generateMatrix() {
-        if (mBitmap != null) {
-            final int dwidth = mBitmap.getWidth();
-            final int dheight = mBitmap.getHeight();
-            final int vwidth = getWidth();
-            final int vheight = getHeight();
-            final boolean fits = (dwidth < 0 || vwidth == dwidth) &&
-                    (dheight < 0 || vheight == dheight);
-            if (fits) {
-                mMatrix.reset();
-            } else {
-                // Generate the required transforms for the photo
-                mTempSrc.set(0, 0, dwidth, dheight);
-                mTempDst.set(0, 0, vwidth, vheight);
-
-                RectF scaledDestination = new RectF(
-                        (vwidth / 2) - (dwidth * mMaxInitialScaleFactor / 2),
-                        (vheight / 2) - (dheight * mMaxInitialScaleFactor / 2),
-                        (vwidth / 2) + (dwidth * mMaxInitialScaleFactor / 2),
-                        (vheight / 2) + (dheight * mMaxInitialScaleFactor / 2));
-                if (mTempDst.contains(scaledDestination)) {
-                    mMatrix.setRectToRect(mTempSrc, scaledDestination, Matrix.ScaleToFit.CENTER);
-                } else {
-                    mMatrix.setRectToRect(mTempSrc, mTempDst, Matrix.ScaleToFit.CENTER);
-                }
-            }
+        if (mImageWidth > 0 && mImageHeight > 0) {
+            mTempSrc.set(0, 0, mImageWidth, mImageHeight);
+            buildFitMatrix(mMatrix, lastRotation);
             mOriginalMatrix.set(mMatrix);
         }
     }
 
     /**
-     * Runnable that animates an image rotation operation.
+     * Sets the matrix to show the image rotated by the given angle, fitted and centred in the view.
      */
-    private static class RotateRunnable implements Runnable {
-        private static final long NEVER = -1L;
-        private final FFImageView mHeader;
-        private float mTargetRotation;
-        private float mAppliedRotation;
-        private float mVelocity;
-        private long mLastRuntime;
-        private boolean mRunning;
-        private boolean mStop;
-
-        public RotateRunnable(FFImageView header) {
-            mHeader = header;
-        }
-
-        /**
-         * Starts the animation.
-         */
-        public void start(float rotation) {
-            if (mRunning) {
-                return;
-            }
-            mTargetRotation = rotation;
-            mVelocity = mTargetRotation / ROTATE_ANIMATION_DURATION;
-            mAppliedRotation = 0f;
-            mLastRuntime = NEVER;
-            mStop = false;
-            mRunning = true;
-            mHeader.post(this);
-        }
-
-        /**
-         * Stops the animation in place. It does not snap the image to its final rotation.
-         */
-        public void stop() {
-            float remainder = (90 - (mHeader.lastRotation % 90));
-            if (remainder > 0.00001 && remainder < 50) {
-                mHeader.rotateAndUpdateMatrix(remainder);
-            }
-            mRunning = false;
-            mStop = true;
-        }
-
-        @Override
-        public void run() {
-
-            synchronized (mHeader) {
-                if (mStop) {
-                    return;
-                }
-                if (mAppliedRotation != mTargetRotation) {
-                    long now = System.currentTimeMillis();
-                    long delta = mLastRuntime != NEVER ? now - mLastRuntime : 0L;
-                    float rotationAmount = mVelocity * delta;
-                    if (mAppliedRotation < mTargetRotation
-                            && mAppliedRotation + rotationAmount > mTargetRotation
-                            || mAppliedRotation > mTargetRotation
-                            && mAppliedRotation + rotationAmount < mTargetRotation) {
-                        rotationAmount = mTargetRotation - mAppliedRotation;
-                    }
-                    //mHeader.rotate(rotationAmount, false);
-
-                    mAppliedRotation += rotationAmount;
-                    mHeader.rotateAndUpdateMatrix(rotationAmount);
-
-                    if (mAppliedRotation == mTargetRotation) {
-                        stop();
-                    }
-                    mLastRuntime = now;
-                }
-            }
-            if (mStop) {
-                return;
+    private void buildFitMatrix(Matrix matrix, float degrees) {
+        final int dwidth = mImageWidth;
+        final int dheight = mImageHeight;
+        final int vwidth = getWidth();
+        final int vheight = getHeight();
+        final boolean fits = (dwidth < 0 || vwidth == dwidth) &&
+                (dheight < 0 || vheight == dheight) && degrees == 0;
+        if (fits) {
+            matrix.reset();
+        } else {
+            // Generate the required transforms for the photo, fitting its rotated bounds
+            mTempDst.set(0, 0, vwidth, vheight);
+            mFitRotation.setRotate(degrees, dwidth / 2f, dheight / 2f);
+            mTempRotated.set(0, 0, dwidth, dheight);
+            mFitRotation.mapRect(mTempRotated);
+            final float rwidth = mTempRotated.width();
+            final float rheight = mTempRotated.height();
+
+            mScaledDestination.set(
+                    (vwidth / 2) - (rwidth * mMaxInitialScaleFactor / 2),
+                    (vheight / 2) - (rheight * mMaxInitialScaleFactor / 2),
+                    (vwidth / 2) + (rwidth * mMaxInitialScaleFactor / 2),
+                    (vheight / 2) + (rheight * mMaxInitialScaleFactor / 2));
+            if (mTempDst.contains(mScaledDestination)) {
+                matrix.setRectToRect(mTempRotated, mScaledDestination, Matrix.ScaleToFit.CENTER);
+            } else {
+                matrix.setRectToRect(mTempRotated, mTempDst, Matrix.ScaleToFit.CENTER);
             }
-            mHeader.post(this);
+            matrix.preConcat(mFitRotation);
         }
     }
 
@@ -675,6 +1856,74 @@ public class FFImageView extends View implements GestureDetector.OnGestureListen
         }
     }
 
+    /**
+     * Runnable that animates the transform towards a solved target with a {@link ViewportInterpolator}.
+     * A frame only builds the interpolated matrix; nothing is clamped, snapped or refitted in between.
+     */
+    private static class ViewportRunnable implements Runnable {
+        private final FFImageView mHeader;
+        private final ViewportInterpolator mInterpolator = new ViewportInterpolator();
+        private long mStartTime;
+        private long mDuration;
+        private boolean mRunning;
+        private boolean mStop;
+
+        public ViewportRunnable(FFImageView header) {
+            mHeader = header;
+        }
+
+        /**
+         * Starts the animation. The target must already be within the scale and translation bounds.
+         */
+        public void start(float startDegrees, float startScale, float startX, float startY,
+                          float targetDegrees, float targetScale, float targetX, float targetY, long duration) {
+            mInterpolator.set(startDegrees, startScale, startX, startY, targetDegrees, targetScale, targetX,
+                    targetY);
+            mDuration = duration;
+            mStartTime = System.currentTimeMillis();
+            mStop = false;
+            if (!mRunning) {
+                mRunning = true;
+                mHeader.post(this);
+            }
+        }
+
+        /**
+         * Stops the animation in place. A rotation is completed instead, the view is laid out for its target.
+         */
+        public void stop() {
+            if (mRunning && mInterpolator.isRotating()) {
+                apply(1f);
+            }
+            mRunning = false;
+            mStop = true;
+        }
+
+        @Override
+        public void run() {
+            if (mStop) {
+                return;
+            }
+            float t = (System.currentTimeMillis() - mStartTime) / (float) mDuration;
+            if (t >= 1f) {
+                t = 1f;
+                mRunning = false;
+                mStop = true;
+            }
+            apply(t);
+            if (!mStop) {
+                mHeader.post(this);
+            }
+        }
+
+        private void apply(float t) {
+            mInterpolator.update(t);
+            mHeader.buildMatrix(mHeader.mMatrix, mInterpolator.getDegrees(), mInterpolator.getScale(),
+                    mInterpolator.getX(), mInterpolator.getY());
+            mHeader.invalidate();
+        }
+    }
+
     /**
      * Runnable that animates an image translation operation.
      */
@@ -766,21 +2015,37 @@ public class FFImageView extends View implements GestureDetector.OnGestureListen
     }
 
     /**
-     * Free all resources held by this view.
-     * The view is on its way to be collected and will not be reused.
+     * Frees the image and the memory held for it, and shows nothing until another image is set. The view
+     * keeps its detectors and animators, so it can be cleared and rebound in a list without allocating them
+     * again.
+     * <p>
+     * The click listener is kept as well; earlier versions dropped it here. Call
+     * {@code setOnClickListener(null)} along with this method where the view is going away for good.
      */
     public void clear() {
-        mGestureDetector = null;
-        mScaleGestureDetector = null;
+        stopAnimations();
+        releaseSharedBitmap();
+        stopAnimation();
+        releaseTileRenderer();
+        releaseImageSource();
+        dropOwnedBase();
+        mBitmap = null;
         mDrawable = null;
-        mScaleRunnable.stop();
-        mScaleRunnable = null;
-        mTranslateRunnable.stop();
-        mTranslateRunnable = null;
-        mSnapRunnable.stop();
-        mSnapRunnable = null;
-        mRotateRunnable.stop();
-        mRotateRunnable = null;
-        setOnClickListener(null);
+        mAwaitingPixels = false;
+        mShowingPreview = false;
+        if (mMinimap != null) {
+            mMinimap.release();
+        }
+        mMemory.release();
+        mDrawnBase = null;
+        mTouching = false;
+        mMinimapTouch = false;
+        if (mImageWidth != 0 || mImageHeight != 0) {
+            // wrap_content measures the image
+            requestLayout();
+        }
+        mImageWidth = 0;
+        mImageHeight = 0;
+        invalidate();
     }
 }
@@ -0,0 +1,286 @@
+package com.ssoliwal.image;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.net.Uri;
+import android.os.Build;
+import android.os.ParcelFileDescriptor;
+import android.system.ErrnoException;
+import android.system.Os;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Image in a local file, read through its file descriptor.
+ * <p>
+ * Bounds, Exif orientation and region decodes only read the bytes they need; the encoded data is never
+ * copied to the Java heap. Show it with {@link FFImageView#setImageSource(FileImageSource)}, which takes
+ * ownership and closes it when the view moves on to another image.
+ *
+ * @author Shailesh Soliwal
+ */
+
+public class FileImageSource implements ImageSource {
+    private static final int MAX_PNG_HEADER_BYTES = 64 * 1024;
+    private static final int PNG_IHDR_COLOR_TYPE = 25;
+    private static final int PNG_FIRST_CHUNK = 33;
+    private static final int CHUNK_TRNS = 0x74524E53;
+    private static final int CHUNK_IDAT = 0x49444154;
+
+    private final ParcelFileDescriptor mParcelFd;
+    private final FileInputStream mStream;
+    private final FileDescriptor mFd;
+    private final FileChannel mChannel;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mRotation;
+    private final boolean mHasAlpha;
+    private final String mCacheKey;
+    private volatile Bitmap.Config mConfig = Bitmap.Config.ARGB_8888;
+    private BitmapRegionDecoder mRegionDecoder;
+
+    private FileImageSource(ParcelFileDescriptor parcelFd, FileInputStream stream, String cacheKey)
+            throws IOException {
+        mParcelFd = parcelFd;
+        mStream = stream;
+        mCacheKey = cacheKey;
+        try {
+            mFd = stream.getFD();
+            mChannel = stream.getChannel();
+
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            decodeFd(options);
+            if (options.outWidth <= 0 || options.outHeight <= 0) {
+                throw new IOException("Unsupported image format");
+            }
+            mWidth = options.outWidth;
+            mHeight = options.outHeight;
+            // JPEG is always opaque, a PNG tells from its header; anything else may have alpha
+            if ("image/jpeg".equals(options.outMimeType)) {
+                mHasAlpha = false;
+            } else if ("image/png".equals(options.outMimeType)) {
+                mHasAlpha = readPngAlpha(mChannel);
+            } else {
+                mHasAlpha = true;
+            }
+            mRotation = ExifReader.readRotation(mChannel);
+        } catch (IOException | RuntimeException e) {
+            // The caller never gets the source to close
+            close();
+            throw e;
+        }
+    }
+
+    public static FileImageSource open(File file) throws IOException {
+        return new FileImageSource(null, new FileInputStream(file), getCacheKey(file));
+    }
+
+    public static FileImageSource open(Context context, Uri uri) throws IOException {
+        ParcelFileDescriptor parcelFd = context.getContentResolver().openFileDescriptor(uri, "r");
+        if (parcelFd == null) {
+            throw new IOException("Unable to open " + uri);
+        }
+        final String cacheKey = uri.toString() + ':' + parcelFd.getStatSize() + ':'
+                + getModifiedTime(parcelFd.getFileDescriptor());
+        return new FileImageSource(parcelFd, new FileInputStream(parcelFd.getFileDescriptor()), cacheKey);
+    }
+
+    /**
+     * @return path, size and modification time of the given file.
+     */
+    static String getCacheKey(File file) {
+        return file.getAbsolutePath() + ':' + file.length() + ':' + file.lastModified();
+    }
+
+    /**
+     * @return modification time of the open file in seconds, or 0 where it cannot be read.
+     */
+    private static long getModifiedTime(FileDescriptor fd) {
+        if (Build.VERSION.SDK_INT >= 21) {
+            try {
+                return Os.fstat(fd).st_mtime;
+            } catch (ErrnoException e) {
+                // The size alone tells versions apart then
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return false if the PNG has neither an alpha channel nor a transparent colour before its pixel data.
+     */
+    private static boolean readPngAlpha(FileChannel channel) throws IOException {
+        long size = Math.min(channel.size(), MAX_PNG_HEADER_BYTES);
+        if (size <= PNG_FIRST_CHUNK) {
+            return true;
+        }
+        ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        try {
+            // Grey with alpha and RGBA, the other colour types only through a tRNS chunk
+            int colorType = buffer.get(PNG_IHDR_COLOR_TYPE);
+            if (colorType == 4 || colorType == 6) {
+                return true;
+            }
+            buffer.position(PNG_FIRST_CHUNK);
+            while (buffer.remaining() >= 8) {
+                int length = buffer.getInt();
+                int type = buffer.getInt();
+                if (type == CHUNK_TRNS) {
+                    return true;
+                } else if (type == CHUNK_IDAT) {
+                    return false;
+                }
+                // Data and CRC
+                buffer.position(buffer.position() + length + 4);
+            }
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            // Corrupt header, or metadata past the mapped part
+        }
+        return true;
+    }
+
+    private synchronized Bitmap decodeFd(BitmapFactory.Options options) throws IOException {
+        mChannel.position(0);
+        return BitmapFactory.decodeFileDescriptor(mFd, null, options);
+    }
+
+    @Override
+    public int getWidth() {
+        return mWidth;
+    }
+
+    @Override
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * @return clockwise rotation in degrees from the Exif orientation, 0 if there is none.
+     */
+    @Override
+    public int getRotation() {
+        return mRotation;
+    }
+
+    @Override
+    public boolean hasAlpha() {
+        return mHasAlpha;
+    }
+
+    @Override
+    public boolean isInMemory() {
+        return false;
+    }
+
+    @Override
+    public Bitmap.Config getConfig() {
+        return mConfig;
+    }
+
+    /**
+     * @return path or uri of the image with its size and modification time.
+     */
+    @Override
+    public String getCacheKey() {
+        return mCacheKey;
+    }
+
+    @Override
+    public void setConfig(Bitmap.Config config) {
+        mConfig = config;
+    }
+
+    /**
+     * @return the largest power of two subsampling that keeps the image at least as large as the given
+     * size when fitted into it.
+     */
+    @Override
+    public int computeSampleSize(int targetWidth, int targetHeight) {
+        int sampleSize = 1;
+        while (mWidth / (sampleSize * 2) >= targetWidth || mHeight / (sampleSize * 2) >= targetHeight) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Decodes the whole image, subsampled.
+     */
+    @Override
+    public Bitmap decode(int sampleSize) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = mConfig;
+        options.inMutable = true;
+        Bitmap bitmap = decodeFd(options);
+        if (bitmap == null) {
+            throw new IOException("Unable to decode image");
+        }
+        return bitmap;
+    }
+
+    @Override
+    public Bitmap decodeRegion(Rect region, int sampleSize) {
+        BitmapRegionDecoder decoder;
+        try {
+            decoder = getRegionDecoder();
+        } catch (IOException e) {
+            return null;
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = mConfig;
+        if (Build.VERSION.SDK_INT >= 16) {
+            options.inBitmap = BitmapPool.get(region.width() / sampleSize, region.height() / sampleSize, mConfig);
+        }
+        try {
+            try {
+                return decoder.decodeRegion(region, options);
+            } catch (IllegalArgumentException e) {
+                // inBitmap could not be reused
+                options.inBitmap = null;
+                return decoder.decodeRegion(region, options);
+            }
+        } catch (IllegalStateException e) {
+            // Closed while decoding
+            return null;
+        }
+    }
+
+    private synchronized BitmapRegionDecoder getRegionDecoder() throws IOException {
+        if (mRegionDecoder == null) {
+            mChannel.position(0);
+            mRegionDecoder = BitmapRegionDecoder.newInstance(mFd, false);
+        }
+        return mRegionDecoder;
+    }
+
+    /**
+     * Closes the file. Decodes still running fail quietly.
+     */
+    @Override
+    public synchronized void close() {
+        if (mRegionDecoder != null) {
+            mRegionDecoder.recycle();
+            mRegionDecoder = null;
+        }
+        try {
+            mStream.close();
+            if (mParcelFd != null) {
+                mParcelFd.close();
+            }
+        } catch (IOException e) {
+            // Nothing left to release
+        }
+    }
+}
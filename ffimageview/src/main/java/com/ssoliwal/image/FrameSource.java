@@ -0,0 +1,34 @@
+package com.ssoliwal.image;
+
+import android.graphics.Bitmap;
+
+import java.io.IOException;
+
+/**
+ * Source of frames for an animated image shown with {@link FFImageView#setAnimatedImage(FrameSource)}.
+ * <p>
+ * Frames are requested in order, on a background thread, except for the first one which is drawn on the
+ * thread calling {@code setAnimatedImage}. Implementations need not be thread safe.
+ *
+ * @author Shailesh Soliwal
+ */
+
+public interface FrameSource {
+
+    int getWidth();
+
+    int getHeight();
+
+    int getFrameCount();
+
+    /**
+     * @return how long the given frame stays on screen, in ms.
+     */
+    int getFrameDuration(int index);
+
+    /**
+     * Draws the given frame into the target, which is {@link #getWidth()} by {@link #getHeight()}
+     * pixels and still holds an older frame.
+     */
+    void drawFrame(int index, Bitmap target) throws IOException;
+}
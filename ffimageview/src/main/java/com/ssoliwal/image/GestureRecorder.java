@@ -0,0 +1,114 @@
+package com.ssoliwal.image;
+
+import android.view.MotionEvent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Records the {@link MotionEvent} stream received by a {@link FFImageView} into a compact binary trace.
+ * <p>
+ * Attach with {@link FFImageView#setGestureRecorder(GestureRecorder)}, then save the trace with
+ * {@link #writeTo(OutputStream)} and replay it with {@link GestureReplayer}.
+ * <p>
+ * Format (big endian): magic {@code "FFGT"}, version byte, then per event the masked action (short),
+ * the action index (byte), the time since the first event in ms (int), the pointer count (byte), for every
+ * pointer its id (byte), x (float) and y (float), then the number of historical samples batched into the
+ * event (short) and per sample, oldest first, its time (int) and x and y (float) of every pointer. Version 1
+ * traces have no historical samples.
+ *
+ * @author Shailesh Soliwal
+ */
+
+public class GestureRecorder {
+    static final int MAGIC = 0x46464754; // "FFGT"
+    static final int VERSION = 2;
+
+    private final ByteArrayOutputStream mBuffer = new ByteArrayOutputStream(4096);
+    private final DataOutputStream mOut = new DataOutputStream(mBuffer);
+    private long mFirstEventTime = -1L;
+    private int mEventCount;
+
+    public GestureRecorder() {
+        try {
+            mOut.writeInt(MAGIC);
+            mOut.writeByte(VERSION);
+        } catch (IOException e) {
+            // ByteArrayOutputStream never throws
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Appends the given event to the trace, with the samples batched into it, so that velocities are
+     * replayed as they were recorded.
+     */
+    public void record(MotionEvent event) {
+        long eventTime = event.getEventTime();
+        if (mFirstEventTime < 0) {
+            mFirstEventTime = eventTime;
+        }
+        final int pointerCount = event.getPointerCount();
+        try {
+            mOut.writeShort(event.getActionMasked());
+            mOut.writeByte(event.getActionIndex());
+            mOut.writeInt((int) (eventTime - mFirstEventTime));
+            mOut.writeByte(pointerCount);
+            for (int i = 0; i < pointerCount; i++) {
+                mOut.writeByte(event.getPointerId(i));
+                mOut.writeFloat(event.getX(i));
+                mOut.writeFloat(event.getY(i));
+            }
+            final int historySize = event.getHistorySize();
+            mOut.writeShort(historySize);
+            for (int h = 0; h < historySize; h++) {
+                mOut.writeInt((int) (event.getHistoricalEventTime(h) - mFirstEventTime));
+                for (int i = 0; i < pointerCount; i++) {
+                    mOut.writeFloat(event.getHistoricalX(i, h));
+                    mOut.writeFloat(event.getHistoricalY(i, h));
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        mEventCount++;
+    }
+
+    /**
+     * @return number of events recorded so far.
+     */
+    public int getEventCount() {
+        return mEventCount;
+    }
+
+    /**
+     * @return a copy of the recorded trace.
+     */
+    public byte[] toByteArray() {
+        return mBuffer.toByteArray();
+    }
+
+    /**
+     * Writes the recorded trace to the given stream. The stream is not closed.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        mBuffer.writeTo(out);
+    }
+
+    /**
+     * Discards all recorded events.
+     */
+    public void reset() {
+        mBuffer.reset();
+        mFirstEventTime = -1L;
+        mEventCount = 0;
+        try {
+            mOut.writeInt(MAGIC);
+            mOut.writeByte(VERSION);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.ssoliwal.image;
+
+import android.graphics.Matrix;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.view.MotionEvent;
+
+/**
+ * Feeds a recorded {@link GestureTrace} back into a {@link FFImageView} and measures the cost of every event.
+ * <p>
+ * Replay runs synchronously on the calling thread, which must be the view's UI thread (or the main looper
+ * of a Robolectric / instrumentation test). Only the work done inside {@code onTouchEvent} is measured.
+ * Flings, snaps and zooms the events start are then run to their end on the calling thread, one frame
+ * every {@value #FRAME_MILLIS} ms, and the final matrix is taken once the view stops animating.
+ *
+ * @author Shailesh Soliwal
+ */
+
+public class GestureReplayer {
+    static final long FRAME_MILLIS = 16;
+    // Longer than any animation of the view; a fling decelerates to rest from any speed in a few seconds
+    private static final long MAX_SETTLE_MILLIS = 10000;
+
+    /**
+     * Per-event results of a replay.
+     */
+    public static class Report {
+        public final long[] cpuTimeNanos;
+        public final int[] allocations;
+        public final long[] invalidations;
+        public final Matrix finalMatrix = new Matrix();
+
+        Report(int eventCount) {
+            cpuTimeNanos = new long[eventCount];
+            allocations = new int[eventCount];
+            invalidations = new long[eventCount];
+        }
+
+        public long getTotalCpuTimeNanos() {
+            long total = 0;
+            for (long value : cpuTimeNanos) {
+                total += value;
+            }
+            return total;
+        }
+
+        public long getTotalAllocations() {
+            long total = 0;
+            for (int value : allocations) {
+                total += value;
+            }
+            return total;
+        }
+
+        public long getTotalInvalidations() {
+            long total = 0;
+            for (long value : invalidations) {
+                total += value;
+            }
+            return total;
+        }
+
+        @Override
+        public String toString() {
+            return "Report{events=" + cpuTimeNanos.length
+                    + ", cpuNanos=" + getTotalCpuTimeNanos()
+                    + ", allocations=" + getTotalAllocations()
+                    + ", invalidations=" + getTotalInvalidations()
+                    + ", matrix=" + finalMatrix.toShortString() + "}";
+        }
+    }
+
+    /**
+     * Replays the trace against the given view.
+     */
+    @SuppressWarnings("deprecation")
+    public static Report replay(FFImageView view, GestureTrace trace) {
+        final int count = trace.getEventCount();
+        final Report report = new Report(count);
+        final ViewMetrics metrics = view.getMetrics();
+        final long baseTime = SystemClock.uptimeMillis();
+        Debug.startAllocCounting();
+        try {
+            for (int i = 0; i < count; i++) {
+                MotionEvent event = trace.obtainEvent(i, baseTime);
+                long invalidations = metrics.getInvalidations();
+                int allocations = Debug.getThreadAllocCount();
+                long cpu = Debug.threadCpuTimeNanos();
+                view.onTouchEvent(event);
+                report.cpuTimeNanos[i] = Debug.threadCpuTimeNanos() - cpu;
+                report.allocations[i] = Debug.getThreadAllocCount() - allocations;
+                report.invalidations[i] = metrics.getInvalidations() - invalidations;
+                event.recycle();
+            }
+        } finally {
+            Debug.stopAllocCounting();
+        }
+        settle(view);
+        view.getImageMatrix(report.finalMatrix);
+        return report;
+    }
+
+    /**
+     * Runs the animations of the view frame by frame until it stops animating.
+     */
+    static void settle(FFImageView view) {
+        final long end = SystemClock.uptimeMillis() + MAX_SETTLE_MILLIS;
+        while (view.runAnimationFrame() && SystemClock.uptimeMillis() < end) {
+            SystemClock.sleep(FRAME_MILLIS);
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package com.ssoliwal.image;
+
+import android.view.MotionEvent;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A gesture trace written by {@link GestureRecorder}, loaded back into memory.
+ *
+ * @author Shailesh Soliwal
+ */
+
+public class GestureTrace {
+    private final int mEventCount;
+    private final int[] mActions;
+    private final int[] mActionIndexes;
+    private final int[] mTimes;
+    private final int[] mPointerOffsets;
+    private final int[] mPointerIds;
+    private final float[] mPointerX;
+    private final float[] mPointerY;
+    // Historical samples of every event, oldest first; their coordinates are laid out sample by sample
+    private final int[] mHistoryOffsets;
+    private final int[] mHistoryTimes;
+    private final int[] mHistoryCoordOffsets;
+    private final float[] mHistoryX;
+    private final float[] mHistoryY;
+
+    private GestureTrace(int eventCount, int[] actions, int[] actionIndexes, int[] times,
+                         int[] pointerOffsets, int[] pointerIds, float[] pointerX, float[] pointerY,
+                         int[] historyOffsets, int[] historyTimes, int[] historyCoordOffsets, float[] historyX,
+                         float[] historyY) {
+        mEventCount = eventCount;
+        mActions = actions;
+        mActionIndexes = actionIndexes;
+        mTimes = times;
+        mPointerOffsets = pointerOffsets;
+        mPointerIds = pointerIds;
+        mPointerX = pointerX;
+        mPointerY = pointerY;
+        mHistoryOffsets = historyOffsets;
+        mHistoryTimes = historyTimes;
+        mHistoryCoordOffsets = historyCoordOffsets;
+        mHistoryX = historyX;
+        mHistoryY = historyY;
+    }
+
+    /**
+     * Reads a trace from the given stream, of this version or an earlier one. The stream is not closed.
+     */
+    public static GestureTrace read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        if (data.readInt() != GestureRecorder.MAGIC) {
+            throw new IOException("Not a gesture trace");
+        }
+        int version = data.readUnsignedByte();
+        if (version < 1 || version > GestureRecorder.VERSION) {
+            throw new IOException("Unsupported gesture trace version " + version);
+        }
+        int capacity = 64;
+        int pointerCapacity = 128;
+        int[] actions = new int[capacity];
+        int[] actionIndexes = new int[capacity];
+        int[] times = new int[capacity];
+        int[] pointerOffsets = new int[capacity + 1];
+        int[] pointerIds = new int[pointerCapacity];
+        float[] pointerX = new float[pointerCapacity];
+        float[] pointerY = new float[pointerCapacity];
+        int historyCapacity = 64;
+        int historyCoordCapacity = 128;
+        int[] historyOffsets = new int[capacity + 1];
+        int[] historyTimes = new int[historyCapacity];
+        int[] historyCoordOffsets = new int[capacity];
+        float[] historyX = new float[historyCoordCapacity];
+        float[] historyY = new float[historyCoordCapacity];
+        int count = 0;
+        int pointers = 0;
+        int samples = 0;
+        int coords = 0;
+        while (true) {
+            int action;
+            try {
+                action = data.readShort();
+            } catch (EOFException e) {
+                break;
+            }
+            if (count == capacity) {
+                capacity *= 2;
+                actions = grow(actions, capacity);
+                actionIndexes = grow(actionIndexes, capacity);
+                times = grow(times, capacity);
+                pointerOffsets = grow(pointerOffsets, capacity + 1);
+                historyOffsets = grow(historyOffsets, capacity + 1);
+                historyCoordOffsets = grow(historyCoordOffsets, capacity);
+            }
+            actions[count] = action;
+            actionIndexes[count] = data.readUnsignedByte();
+            times[count] = data.readInt();
+            int pointerCount = data.readUnsignedByte();
+            if (pointers + pointerCount > pointerCapacity) {
+                pointerCapacity = Math.max(pointerCapacity * 2, pointers + pointerCount);
+                pointerIds = grow(pointerIds, pointerCapacity);
+                pointerX = grow(pointerX, pointerCapacity);
+                pointerY = grow(pointerY, pointerCapacity);
+            }
+            pointerOffsets[count] = pointers;
+            for (int i = 0; i < pointerCount; i++) {
+                pointerIds[pointers] = data.readUnsignedByte();
+                pointerX[pointers] = data.readFloat();
+                pointerY[pointers] = data.readFloat();
+                pointers++;
+            }
+            historyOffsets[count] = samples;
+            historyCoordOffsets[count] = coords;
+            final int historySize = version >= 2 ? data.readUnsignedShort() : 0;
+            if (samples + historySize > historyCapacity) {
+                historyCapacity = Math.max(historyCapacity * 2, samples + historySize);
+                historyTimes = grow(historyTimes, historyCapacity);
+            }
+            if (coords + historySize * pointerCount > historyCoordCapacity) {
+                historyCoordCapacity = Math.max(historyCoordCapacity * 2, coords + historySize * pointerCount);
+                historyX = grow(historyX, historyCoordCapacity);
+                historyY = grow(historyY, historyCoordCapacity);
+            }
+            for (int h = 0; h < historySize; h++) {
+                historyTimes[samples++] = data.readInt();
+                for (int i = 0; i < pointerCount; i++) {
+                    historyX[coords] = data.readFloat();
+                    historyY[coords] = data.readFloat();
+                    coords++;
+                }
+            }
+            count++;
+        }
+        pointerOffsets[count] = pointers;
+        historyOffsets[count] = samples;
+        return new GestureTrace(count, actions, actionIndexes, times, pointerOffsets,
+                pointerIds, pointerX, pointerY, historyOffsets, historyTimes, historyCoordOffsets, historyX,
+                historyY);
+    }
+
+    private static int[] grow(int[] array, int size) {
+        int[] result = new int[size];
+        System.arraycopy(array, 0, result, 0, Math.min(array.length, size));
+        return result;
+    }
+
+    private static float[] grow(float[] array, int size) {
+        float[] result = new float[size];
+        System.arraycopy(array, 0, result, 0, Math.min(array.length, size));
+        return result;
+    }
+
+    public int getEventCount() {
+        return mEventCount;
+    }
+
+    /**
+     * @return time of the given event in ms, relative to the first event of the trace.
+     */
+    public int getEventTime(int index) {
+        return mTimes[index];
+    }
+
+    public int getPointerCount(int index) {
+        return mPointerOffsets[index + 1] - mPointerOffsets[index];
+    }
+
+    /**
+     * @return number of historical samples batched into the given event.
+     */
+    public int getHistorySize(int index) {
+        return mHistoryOffsets[index + 1] - mHistoryOffsets[index];
+    }
+
+    /**
+     * Builds a {@link MotionEvent} for the given event, with its historical samples. The caller must recycle
+     * it.
+     *
+     * @param index    event index
+     * @param baseTime uptime in ms the trace is replayed from
+     */
+    public MotionEvent obtainEvent(int index, long baseTime) {
+        final int offset = mPointerOffsets[index];
+        final int pointerCount = getPointerCount(index);
+        MotionEvent.PointerProperties[] properties = new MotionEvent.PointerProperties[pointerCount];
+        MotionEvent.PointerCoords[] coords = new MotionEvent.PointerCoords[pointerCount];
+        for (int i = 0; i < pointerCount; i++) {
+            properties[i] = new MotionEvent.PointerProperties();
+            properties[i].id = mPointerIds[offset + i];
+            properties[i].toolType = MotionEvent.TOOL_TYPE_FINGER;
+            coords[i] = new MotionEvent.PointerCoords();
+            coords[i].pressure = 1f;
+            coords[i].size = 1f;
+        }
+        int action = mActions[index];
+        if (action == MotionEvent.ACTION_POINTER_DOWN || action == MotionEvent.ACTION_POINTER_UP) {
+            action |= mActionIndexes[index] << MotionEvent.ACTION_POINTER_INDEX_SHIFT;
+        }
+        // The oldest sample starts the event, later ones are batched after it
+        final int historySize = getHistorySize(index);
+        final int history = mHistoryOffsets[index];
+        MotionEvent event = null;
+        for (int h = 0; h <= historySize; h++) {
+            final long time;
+            if (h < historySize) {
+                setCoords(coords, mHistoryX, mHistoryY, mHistoryCoordOffsets[index] + h * pointerCount);
+                time = baseTime + mHistoryTimes[history + h];
+            } else {
+                setCoords(coords, mPointerX, mPointerY, offset);
+                time = baseTime + mTimes[index];
+            }
+            if (event == null) {
+                event = MotionEvent.obtain(baseTime, time, action, pointerCount, properties, coords, 0, 0, 1f, 1f,
+                        0, 0, 0, 0);
+            } else {
+                event.addBatch(time, coords, 0);
+            }
+        }
+        return event;
+    }
+
+    private static void setCoords(MotionEvent.PointerCoords[] coords, float[] x, float[] y, int offset) {
+        for (int i = 0; i < coords.length; i++) {
+            coords[i].x = x[offset + i];
+            coords[i].y = y[offset + i];
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package com.ssoliwal.image;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Image downloaded over HTTP into a disk cache, shown while it arrives.
+ * <p>
+ * The data is streamed into a partial file in the cache directory by a {@link ResumableDownload}. An
+ * interrupted download is resumed with a range request, validated by the ETag of the first response, and a
+ * completed one is served from the cache without touching the network. Sources for the same URL share the
+ * cache entry and download it once. While data arrives, the partial file is decoded at preview size so
+ * that progressive and interlaced images show usable pixels early. Once complete, the file is handed to a
+ * {@link FileImageSource}, which decodes tiles for the visible region only.
+ * <p>
+ * Show it with {@link FFImageView#setImageSource(HttpImageSource)}, which starts the download and cancels it
+ * when the view moves on to another image.
+ *
+ * @author Shailesh Soliwal
+ */
+
+public class HttpImageSource {
+    private static final String TAG = "HttpImageSource";
+    private static final int THREADS = 2;
+    // A preview is decoded at most this often and only once this much new data arrived
+    private static final long PREVIEW_INTERVAL = 250L;
+    private static final long PREVIEW_MIN_BYTES = 32 * 1024;
+
+    private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(THREADS, THREADS,
+            5, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        private int mCount;
+
+        @Override
+        public synchronized Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, "FFImageView-http-" + mCount++);
+        }
+    });
+
+    static {
+        sExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Receives the progress of a download on the UI thread.
+     */
+    interface Listener {
+        /**
+         * The image header arrived. Called once, before any preview.
+         */
+        void onBounds(int width, int height, int rotation);
+
+        /**
+         * A new preview of the data received so far. The bitmap is handed over.
+         */
+        void onPreview(Bitmap preview);
+
+        /**
+         * The whole image is in the cache.
+         */
+        void onComplete(FileImageSource source);
+
+        void onError(IOException e);
+    }
+
+    private final URL mUrl;
+    private final ResumableDownload mDownload;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private volatile boolean mCancelled;
+    private Future<?> mTask;
+
+    /**
+     * @param url      image to download
+     * @param cacheDir directory holding downloaded and partially downloaded images
+     */
+    public HttpImageSource(URL url, File cacheDir) {
+        mUrl = url;
+        mDownload = new ResumableDownload(url, new File(cacheDir, hash(url.toString())));
+    }
+
+    public URL getUrl() {
+        return mUrl;
+    }
+
+    /**
+     * @return bytes of the image in the cache so far.
+     */
+    public long getReceivedBytes() {
+        return mDownload.getReceivedBytes();
+    }
+
+    /**
+     * @return size of the image in bytes, or -1 while it is not known.
+     */
+    public long getTotalBytes() {
+        return mDownload.getTotalBytes();
+    }
+
+    /**
+     * Starts the download in the background.
+     *
+     * @param previewWidth  previews are decoded subsampled to at least this width
+     * @param previewHeight or this height
+     */
+    synchronized void start(final int previewWidth, final int previewHeight, final Listener listener) {
+        if (mTask != null) {
+            throw new IllegalStateException("Already started");
+        }
+        mTask = sExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (!mDownload.run(new PreviewReceiver(previewWidth, previewHeight, listener))
+                            || mCancelled) {
+                        return;
+                    }
+                    final FileImageSource source = FileImageSource.open(mDownload.getFile());
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (mCancelled) {
+                                source.close();
+                                return;
+                            }
+                            listener.onComplete(source);
+                        }
+                    });
+                } catch (final IOException e) {
+                    if (mCancelled) {
+                        return;
+                    }
+                    Log.w(TAG, "Unable to download " + mUrl, e);
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (!mCancelled) {
+                                listener.onError(e);
+                            }
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops the download. What was received so far stays in the cache and is resumed next time.
+     */
+    public synchronized void cancel() {
+        mCancelled = true;
+        mDownload.cancel();
+        if (mTask != null) {
+            mTask.cancel(true);
+        }
+    }
+
+    /**
+     * Decodes previews of the partial file as data arrives, throttled to the preview interval.
+     */
+    private class PreviewReceiver implements ResumableDownload.Receiver {
+        private final int mPreviewWidth;
+        private final int mPreviewHeight;
+        private final Listener mListener;
+        private final BitmapFactory.Options mOptions = new BitmapFactory.Options();
+        private boolean mHasBounds;
+        private long mPreviewBytes = -1;
+        private long mPreviewTime;
+
+        PreviewReceiver(int previewWidth, int previewHeight, Listener listener) {
+            mPreviewWidth = previewWidth;
+            mPreviewHeight = previewHeight;
+            mListener = listener;
+        }
+
+        @Override
+        public void onReceived(RandomAccessFile file, long received, long total) throws IOException {
+            if (mPreviewBytes < 0) {
+                // Resumed data counts as seen
+                mPreviewBytes = received;
+            }
+            if (received - mPreviewBytes < PREVIEW_MIN_BYTES
+                    || System.currentTimeMillis() - mPreviewTime < PREVIEW_INTERVAL) {
+                return;
+            }
+            mPreviewBytes = received;
+            mPreviewTime = System.currentTimeMillis();
+            if (!mHasBounds) {
+                mHasBounds = readBounds(file, mOptions, mListener);
+                if (!mHasBounds) {
+                    return;
+                }
+            }
+            postPreview(mOptions, mPreviewWidth, mPreviewHeight, mListener);
+        }
+    }
+
+    /**
+     * Reads the image size from the partial file and reports it, together with the Exif rotation.
+     *
+     * @return false if the header has not arrived yet.
+     */
+    private boolean readBounds(RandomAccessFile file, BitmapFactory.Options options, final Listener listener)
+            throws IOException {
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(getPartPath(), options);
+        options.inJustDecodeBounds = false;
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return false;
+        }
+        final int width = options.outWidth;
+        final int height = options.outHeight;
+        final int rotation = ExifReader.readRotation(file.getChannel());
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!mCancelled) {
+                    listener.onBounds(width, height, rotation);
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Decodes what arrived so far at preview size; missing rows or passes are left blank by the decoder.
+     */
+    private void postPreview(BitmapFactory.Options options, int previewWidth, int previewHeight,
+                             final Listener listener) {
+        int sampleSize = 1;
+        while (options.outWidth / (sampleSize * 2) >= previewWidth
+                || options.outHeight / (sampleSize * 2) >= previewHeight) {
+            sampleSize *= 2;
+        }
+        options.inSampleSize = sampleSize;
+        options.inMutable = true;
+        final Bitmap preview = BitmapFactory.decodeFile(getPartPath(), options);
+        if (preview == null) {
+            return;
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mCancelled) {
+                    BitmapPool.put(preview);
+                    return;
+                }
+                listener.onPreview(preview);
+            }
+        });
+    }
+
+    private String getPartPath() {
+        return mDownload.getPartFile().getPath();
+    }
+
+    /**
+     * @return a file name safe hex digest of the given key.
+     */
+    static String hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(Charset.forName("UTF-8")));
+            StringBuilder name = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return name.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(key.hashCode());
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package com.ssoliwal.image;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Renders what a {@link FFImageView} shows, or its whole image with the current rotation, at source
+ * resolution on a background thread.
+ * <p>
+ * Files are written as PNG band by band: every band is assembled from small cells, each decoded from the
+ * original source with a region decode and drawn through the transform, then streamed to the encoder. Memory
+ * use depends on the output width, not on the size of the image, so exporting a rotated 100 MP file works
+ * on a normal heap. The transform is captured when the export is started; a bitmap shown by the view must
+ * not be recycled before the export completes.
+ *
+ * @author Shailesh Soliwal
+ */
+
+public class ImageExporter {
+    // Bands are at most this many pixels, cells at most CELL_SIZE square
+    private static final int MAX_BAND_PIXELS = 1024 * 1024;
+    private static final int CELL_SIZE = 1024;
+
+    private static final ExecutorService sExecutor = new ThreadPoolExecutor(0, 1, 1, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>());
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Receives the result of an export on the UI thread.
+     */
+    public interface Callback<T> {
+        void onExportComplete(T result);
+
+        void onExportFailed(Exception e);
+    }
+
+    private final TileSource mSource;
+    private final int mImageWidth;
+    private final int mImageHeight;
+    // Image to output transform, and output size
+    private final Matrix mOutputMatrix = new Matrix();
+    private final int mOutputWidth;
+    private final int mOutputHeight;
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG | Paint.DITHER_FLAG);
+
+    private ImageExporter(TileSource source, int imageWidth, int imageHeight, Matrix viewMatrix,
+                          int viewWidth, int viewHeight, boolean viewportOnly) {
+        mSource = source;
+        mImageWidth = imageWidth;
+        mImageHeight = imageHeight;
+        RectF bounds = new RectF(0, 0, imageWidth, imageHeight);
+        if (viewportOnly) {
+            // Same transform as on screen, scaled back to one output pixel per image pixel
+            float scale = viewMatrix.mapRadius(1f);
+            mOutputMatrix.set(viewMatrix);
+            viewMatrix.mapRect(bounds);
+            if (!bounds.intersect(0, 0, viewWidth, viewHeight)) {
+                bounds.setEmpty();
+            }
+            mOutputMatrix.postTranslate(-bounds.left, -bounds.top);
+            mOutputMatrix.postScale(1f / scale, 1f / scale);
+            mOutputWidth = (int) Math.ceil(bounds.width() / scale);
+            mOutputHeight = (int) Math.ceil(bounds.height() / scale);
+        } else {
+            float[] values = new float[9];
+            viewMatrix.getValues(values);
+            float degrees = (float) Math.toDegrees(Math.atan2(values[Matrix.MSKEW_Y], values[Matrix.MSCALE_X]));
+            mOutputMatrix.setRotate(degrees);
+            mOutputMatrix.mapRect(bounds);
+            mOutputMatrix.postTranslate(-bounds.left, -bounds.top);
+            mOutputWidth = Math.round(bounds.width());
+            mOutputHeight = Math.round(bounds.height());
+        }
+    }
+
+    /**
+     * Writes the part of the image visible in the view, as shown, to a PNG file.
+     */
+    public static void exportViewport(FFImageView view, File file, Callback<File> callback) {
+        exportToFile(view.createExporter(true), file, callback);
+    }
+
+    /**
+     * Writes the whole image, rotated as shown, to a PNG file.
+     */
+    public static void exportRotated(FFImageView view, File file, Callback<File> callback) {
+        exportToFile(view.createExporter(false), file, callback);
+    }
+
+    /**
+     * Renders the part of the image visible in the view, as shown, into a new bitmap.
+     */
+    public static void renderViewport(FFImageView view, final Callback<Bitmap> callback) {
+        final ImageExporter exporter = view.createExporter(true);
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    deliver(callback, exporter.render());
+                } catch (IOException | RuntimeException | OutOfMemoryError e) {
+                    fail(callback, e instanceof Exception ? (Exception) e : new IOException(e));
+                }
+            }
+        });
+    }
+
+    static ImageExporter create(TileSource source, int imageWidth, int imageHeight, Matrix viewMatrix,
+                                int viewWidth, int viewHeight, boolean viewportOnly) {
+        return new ImageExporter(source, imageWidth, imageHeight, viewMatrix, viewWidth, viewHeight,
+                viewportOnly);
+    }
+
+    private static void exportToFile(final ImageExporter exporter, final File file, final Callback<File> callback) {
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+                    try {
+                        exporter.writePng(out);
+                    } finally {
+                        out.close();
+                    }
+                    deliver(callback, file);
+                } catch (IOException | RuntimeException | OutOfMemoryError e) {
+                    // Never leave a partial PNG behind
+                    file.delete();
+                    fail(callback, e instanceof Exception ? (Exception) e : new IOException(e));
+                }
+            }
+        });
+    }
+
+    private static <T> void deliver(final Callback<T> callback, final T result) {
+        sMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onExportComplete(result);
+            }
+        });
+    }
+
+    private static void fail(final Callback<?> callback, final Exception e) {
+        sMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onExportFailed(e);
+            }
+        });
+    }
+
+    private void checkOutputSize() throws IOException {
+        if (mOutputWidth <= 0 || mOutputHeight <= 0) {
+            throw new IOException("Nothing to export");
+        }
+    }
+
+    private Bitmap render() throws IOException {
+        checkOutputSize();
+        Bitmap result = Bitmap.createBitmap(mOutputWidth, mOutputHeight, Bitmap.Config.ARGB_8888);
+        renderBand(new Canvas(result), 0, mOutputHeight);
+        return result;
+    }
+
+    private void writePng(OutputStream out) throws IOException {
+        checkOutputSize();
+        final int bandHeight = Math.max(1, Math.min(mOutputHeight, MAX_BAND_PIXELS / mOutputWidth));
+        Bitmap band = Bitmap.createBitmap(mOutputWidth, bandHeight, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(band);
+        int[] pixels = new int[mOutputWidth * bandHeight];
+        PngStreamWriter writer = null;
+        try {
+            writer = new PngStreamWriter(out, mOutputWidth, mOutputHeight);
+            for (int top = 0; top < mOutputHeight; top += bandHeight) {
+                final int rows = Math.min(bandHeight, mOutputHeight - top);
+                band.eraseColor(0);
+                int saveCount = canvas.save();
+                canvas.translate(0, -top);
+                renderBand(canvas, top, top + rows);
+                canvas.restoreToCount(saveCount);
+                band.getPixels(pixels, 0, mOutputWidth, 0, 0, mOutputWidth, rows);
+                writer.writeRows(pixels, 0, mOutputWidth, rows);
+            }
+            writer.finish();
+        } finally {
+            if (writer != null) {
+                writer.close();
+            }
+            band.recycle();
+        }
+    }
+
+    /**
+     * Draws output rows [top, bottom) into the canvas, which is set up in output coordinates, cell by cell.
+     */
+    private void renderBand(Canvas canvas, int top, int bottom) throws IOException {
+        final Matrix inverse = new Matrix();
+        mOutputMatrix.invert(inverse);
+        final float sourceScaleX = (float) mSource.getWidth() / mImageWidth;
+        final float sourceScaleY = (float) mSource.getHeight() / mImageHeight;
+        // Output pixels per source pixel
+        final float outputScale = mOutputMatrix.mapRadius(1f) / sourceScaleX;
+        int sampleSize = 1;
+        while (outputScale * sampleSize * 2 <= 1f) {
+            sampleSize *= 2;
+        }
+        final RectF cell = new RectF();
+        final Rect region = new Rect();
+        for (int cellTop = top; cellTop < bottom; cellTop += CELL_SIZE) {
+            for (int cellLeft = 0; cellLeft < mOutputWidth; cellLeft += CELL_SIZE) {
+                cell.set(cellLeft, cellTop, Math.min(cellLeft + CELL_SIZE, mOutputWidth),
+                        Math.min(cellTop + CELL_SIZE, bottom));
+                // Source pixels needed for this cell, one pixel wider for filtering
+                RectF needed = new RectF(cell);
+                inverse.mapRect(needed);
+                region.set((int) Math.floor(needed.left * sourceScaleX) - 1,
+                        (int) Math.floor(needed.top * sourceScaleY) - 1,
+                        (int) Math.ceil(needed.right * sourceScaleX) + 1,
+                        (int) Math.ceil(needed.bottom * sourceScaleY) + 1);
+                if (!region.intersect(0, 0, mSource.getWidth(), mSource.getHeight())) {
+                    continue;
+                }
+                Bitmap pixels = mSource.decodeRegion(region, sampleSize);
+                if (pixels == null) {
+                    throw new IOException("Unable to decode region " + region);
+                }
+                int saveCount = canvas.save();
+                canvas.clipRect(cell);
+                canvas.concat(mOutputMatrix);
+                canvas.scale(1f / sourceScaleX, 1f / sourceScaleY);
+                canvas.translate(region.left, region.top);
+                canvas.scale((float) region.width() / pixels.getWidth(),
+                        (float) region.height() / pixels.getHeight());
+                canvas.drawBitmap(pixels, 0, 0, mPaint);
+                canvas.restoreToCount(saveCount);
+                BitmapPool.put(pixels);
+            }
+        }
+    }
+}
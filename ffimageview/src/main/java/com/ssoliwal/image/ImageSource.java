@@ -0,0 +1,38 @@
+package com.ssoliwal.image;
+
+import android.graphics.Bitmap;
+
+import java.io.IOException;
+
+/**
+ * Encoded image a {@link FFImageView} decodes a base and tiles from, on demand.
+ *
+ * @author Shailesh Soliwal
+ */
+
+interface ImageSource extends TileSource {
+
+    /**
+     * @return clockwise rotation in degrees the image should be shown with.
+     */
+    int getRotation();
+
+    /**
+     * @return the largest power of two subsampling that keeps the image at least as large as the given
+     * size when fitted into it.
+     */
+    int computeSampleSize(int targetWidth, int targetHeight);
+
+    /**
+     * Decodes the whole image, subsampled.
+     */
+    Bitmap decode(int sampleSize) throws IOException;
+
+    /**
+     * Sets the config of the bitmaps decoded from now on, {@link Bitmap.Config#ARGB_8888} by default.
+     * RGB_565 is only honoured for opaque images.
+     */
+    void setConfig(Bitmap.Config config);
+
+    void close();
+}
@@ -0,0 +1,278 @@
+package com.ssoliwal.image;
+
+import android.graphics.Bitmap;
+
+/**
+ * Accounts for the pixel memory held by a {@link FFImageView}, split into layers, and for the whole process.
+ * <p>
+ * Every view owns one tracker, available from {@link FFImageView#getMemoryTracker()}. The static getters
+ * report the sum over all views plus memory held by process-wide caches, and may be polled from any thread.
+ * <p>
+ * When a budget is set and exceeded the view gives memory back in a fixed order: pooled bitmaps and
+ * compressed copies, which are shared by the process and only dropped for the process budget, then
+ * previews, then tiles, and finally the base bitmap is downsampled, only as far as the view's own budget
+ * requires.
+ * <p>
+ * A view's bytes leave the process totals when it is cleared or detached from its window, and come back
+ * when it is attached again.
+ *
+ * @author Shailesh Soliwal
+ */
+
+public class MemoryTracker {
+    /**
+     * The bitmap the view was given (or decoded), drawn when no better tile is available.
+     */
+    public static final int LAYER_BASE = 0;
+    /**
+     * Decoded tiles used for drawing large or zoomed images.
+     */
+    public static final int LAYER_TILES = 1;
+    /**
+     * Low resolution previews kept while the full image is not needed.
+     */
+    public static final int LAYER_PREVIEW = 2;
+    /**
+     * Bitmaps kept around for reuse.
+     */
+    public static final int LAYER_POOLED = 3;
+    /**
+     * Evicted tiles and layers kept in compressed form.
+     */
+    public static final int LAYER_COMPRESSED = 4;
+    static final int LAYER_COUNT = 5;
+
+    /**
+     * Budget value meaning no limit.
+     */
+    public static final long NO_BUDGET = Long.MAX_VALUE;
+
+    private static final long[] sProcessBytes = new long[LAYER_COUNT];
+    private static long sProcessBudget = NO_BUDGET;
+
+    private final long[] mBytes = new long[LAYER_COUNT];
+    // Part of mBytes that is counted in the process totals by its owner, e.g. a SharedBitmap
+    private final long[] mSharedBytes = new long[LAYER_COUNT];
+    // Bytes that mBytes would take on top in ARGB_8888, for pixels held as RGB_565
+    private final long[] mSavedBytes = new long[LAYER_COUNT];
+    private long mBudget = NO_BUDGET;
+
+    /**
+     * @return number of bytes held by the given bitmap, 0 for null.
+     */
+    public static long sizeOf(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return 0;
+        }
+        return (long) bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    /**
+     * @return bytes an ARGB_8888 copy of the given bitmap would take on top of it, 0 unless it is RGB_565.
+     */
+    static long savedBytesOf(Bitmap bitmap) {
+        return bitmap != null && bitmap.getConfig() == Bitmap.Config.RGB_565 ? sizeOf(bitmap) : 0;
+    }
+
+    /**
+     * @return bytes held by this view in the given layer.
+     */
+    public long getBytes(int layer) {
+        synchronized (MemoryTracker.class) {
+            return mBytes[layer];
+        }
+    }
+
+    /**
+     * @return bytes held by this view over all layers.
+     */
+    public long getTotalBytes() {
+        synchronized (MemoryTracker.class) {
+            long total = 0;
+            for (int i = 0; i < LAYER_COUNT; i++) {
+                total += mBytes[i];
+            }
+            return total;
+        }
+    }
+
+    /**
+     * @return bytes the current image of this view would take on top in the given layer if its opaque pixels
+     * were held in ARGB_8888 rather than RGB_565.
+     */
+    public long getSavedBytes(int layer) {
+        synchronized (MemoryTracker.class) {
+            return mSavedBytes[layer];
+        }
+    }
+
+    /**
+     * @return bytes saved over all layers, see {@link #getSavedBytes(int)}.
+     */
+    public long getTotalSavedBytes() {
+        synchronized (MemoryTracker.class) {
+            long total = 0;
+            for (int i = 0; i < LAYER_COUNT; i++) {
+                total += mSavedBytes[i];
+            }
+            return total;
+        }
+    }
+
+    public long getBudget() {
+        synchronized (MemoryTracker.class) {
+            return mBudget;
+        }
+    }
+
+    /**
+     * Sets the number of bytes this view may hold. Use {@link FFImageView#setMemoryBudget(long)} so the
+     * view can react immediately.
+     */
+    void setBudget(long bytes) {
+        synchronized (MemoryTracker.class) {
+            mBudget = bytes;
+        }
+    }
+
+    /**
+     * @return bytes held in the given layer by all views and process-wide caches.
+     */
+    public static long getProcessBytes(int layer) {
+        synchronized (MemoryTracker.class) {
+            return sProcessBytes[layer];
+        }
+    }
+
+    /**
+     * @return bytes held over all layers by all views and process-wide caches.
+     */
+    public static long getProcessTotalBytes() {
+        synchronized (MemoryTracker.class) {
+            long total = 0;
+            for (int i = 0; i < LAYER_COUNT; i++) {
+                total += sProcessBytes[i];
+            }
+            return total;
+        }
+    }
+
+    public static long getProcessBudget() {
+        synchronized (MemoryTracker.class) {
+            return sProcessBudget;
+        }
+    }
+
+    /**
+     * Sets the number of bytes all views together may hold. Views check it whenever they acquire pixels.
+     */
+    public static void setProcessBudget(long bytes) {
+        synchronized (MemoryTracker.class) {
+            sProcessBudget = bytes;
+        }
+    }
+
+    /**
+     * @return true if either this view or the process is over its budget.
+     */
+    public boolean isOverBudget() {
+        return getExcessBytes() > 0;
+    }
+
+    /**
+     * @return number of bytes that must be released to get back within both budgets.
+     */
+    public long getExcessBytes() {
+        return Math.max(getViewExcessBytes(), getProcessExcessBytes());
+    }
+
+    /**
+     * @return number of bytes this view holds over its own budget, 0 or less if within it.
+     */
+    public long getViewExcessBytes() {
+        synchronized (MemoryTracker.class) {
+            return mBudget != NO_BUDGET ? getTotalBytes() - mBudget : 0;
+        }
+    }
+
+    /**
+     * @return number of bytes all views and caches hold over the process budget, 0 or less if within it.
+     */
+    public static long getProcessExcessBytes() {
+        synchronized (MemoryTracker.class) {
+            return sProcessBudget != NO_BUDGET ? getProcessTotalBytes() - sProcessBudget : 0;
+        }
+    }
+
+    /**
+     * Sets the bytes held by this view in the given layer.
+     */
+    void set(int layer, long bytes) {
+        set(layer, bytes, 0);
+    }
+
+    /**
+     * Sets the bytes held by this view in the given layer, and how many of them were saved by RGB_565.
+     */
+    void set(int layer, long bytes, long savedBytes) {
+        synchronized (MemoryTracker.class) {
+            sProcessBytes[layer] += bytes - (mBytes[layer] - mSharedBytes[layer]);
+            mBytes[layer] = bytes;
+            mSharedBytes[layer] = 0;
+            mSavedBytes[layer] = savedBytes;
+        }
+    }
+
+    /**
+     * Sets the given bitmap as the only one held by this view in the given layer.
+     */
+    void set(int layer, Bitmap bitmap) {
+        set(layer, sizeOf(bitmap), savedBytesOf(bitmap));
+    }
+
+    /**
+     * Sets the bytes held by this view in the given layer, for pixels shared with other views.
+     * They are counted for this view only, their owner accounts for them in the process totals.
+     */
+    void setShared(int layer, long bytes) {
+        synchronized (MemoryTracker.class) {
+            sProcessBytes[layer] -= mBytes[layer] - mSharedBytes[layer];
+            mBytes[layer] = bytes;
+            mSharedBytes[layer] = bytes;
+            mSavedBytes[layer] = 0;
+        }
+    }
+
+    /**
+     * Adds to the bytes held by this view in the given layer.
+     */
+    void add(int layer, long delta) {
+        synchronized (MemoryTracker.class) {
+            mBytes[layer] += delta;
+            sProcessBytes[layer] += delta;
+        }
+    }
+
+    /**
+     * Adds bytes held by a process-wide cache that does not belong to a single view.
+     */
+    static void addProcessBytes(int layer, long delta) {
+        synchronized (MemoryTracker.class) {
+            sProcessBytes[layer] += delta;
+        }
+    }
+
+    /**
+     * Removes everything this view holds from the process totals.
+     */
+    void release() {
+        synchronized (MemoryTracker.class) {
+            for (int i = 0; i < LAYER_COUNT; i++) {
+                sProcessBytes[i] -= mBytes[i] - mSharedBytes[i];
+                mBytes[i] = 0;
+                mSharedBytes[i] = 0;
+                mSavedBytes[i] = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package com.ssoliwal.image;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.RectF;
+
+/**
+ * Overview of the whole image drawn in the top right corner of a {@link FFImageView} while it is zoomed in,
+ * with the visible part outlined. Tapping or dragging on it moves the view to that part of the image.
+ * <p>
+ * The overview is scaled once per image from the smallest level the view already holds, the tile preview
+ * or the base, and is then drawn as a small bitmap along with the outline in each frame of the view.
+ * <p>
+ * All methods must be called on the UI thread. Get the minimap with {@link FFImageView#getMinimap()}.
+ *
+ * @author Shailesh Soliwal
+ */
+
+public class Minimap {
+    // Shown once the image is zoomed in this far past fitting the view
+    private static final float MIN_ZOOM = 1.05f;
+
+    private final FFImageView mView;
+    private boolean mEnabled;
+    private float mSize;
+    private float mMargin;
+    private Bitmap mBitmap;
+    private Bitmap mSourceBitmap;
+    private boolean mVisible;
+
+    // Image to view coordinates of the overview, and back
+    private final Matrix mMatrix = new Matrix();
+    private final Matrix mInverse = new Matrix();
+    private final Matrix mDrawMatrix = new Matrix();
+    private final RectF mBounds = new RectF();
+    private final float[] mCorners = new float[8];
+    private final float[] mOutline = new float[16];
+    private final Paint mBitmapPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Paint mFramePaint = new Paint();
+    private final Paint mOutlinePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+    Minimap(FFImageView view) {
+        mView = view;
+        final float density = view.getResources().getDisplayMetrics().density;
+        mSize = 96 * density;
+        mMargin = 8 * density;
+        mFramePaint.setColor(0x80000000);
+        mOutlinePaint.setColor(Color.WHITE);
+        mOutlinePaint.setStyle(Paint.Style.STROKE);
+        mOutlinePaint.setStrokeWidth(2 * density);
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        if (mEnabled != enabled) {
+            mEnabled = enabled;
+            if (!enabled) {
+                release();
+            }
+            mView.invalidate();
+        }
+    }
+
+    /**
+     * Sets the length of the long side of the overview, in pixels.
+     */
+    public void setSize(float size) {
+        mSize = size;
+        release();
+        mView.invalidate();
+    }
+
+    public void setOutlineColor(int color) {
+        mOutlinePaint.setColor(color);
+        mView.invalidate();
+    }
+
+    /**
+     * @return true if the minimap was drawn in the last frame.
+     */
+    boolean isVisible() {
+        return mVisible;
+    }
+
+    boolean contains(float x, float y) {
+        return mVisible && mBounds.contains(x, y);
+    }
+
+    /**
+     * Maps a point of the overview, in view coordinates, to image coordinates in place.
+     */
+    void mapToImage(float[] point) {
+        mInverse.mapPoints(point);
+    }
+
+    /**
+     * Draws the overview and outlines the viewport.
+     *
+     * @param smallest   smallest copy of the image the view holds, stretched over the image rectangle
+     * @param zoom       scale of the view relative to the fitted scale; nothing is drawn near 1
+     * @param rotation   rotation of the image in the view, in degrees
+     * @param inverse    view to image transform
+     */
+    void draw(Canvas canvas, Bitmap smallest, int imageWidth, int imageHeight, float zoom, float rotation,
+              Matrix inverse, int viewWidth, int viewHeight) {
+        mVisible = mEnabled && smallest != null && zoom > MIN_ZOOM;
+        if (!mVisible) {
+            return;
+        }
+        if (smallest != mSourceBitmap) {
+            createBitmap(smallest);
+        }
+        // The overview is turned in quarter turns only, following the image
+        final float quarterTurns = Math.round(rotation / 90f) * 90f;
+        mMatrix.setRotate(quarterTurns);
+        mBounds.set(0, 0, imageWidth, imageHeight);
+        mMatrix.mapRect(mBounds);
+        final float scale = mSize / Math.max(mBounds.width(), mBounds.height());
+        mMatrix.postScale(scale, scale);
+        mBounds.set(0, 0, imageWidth, imageHeight);
+        mMatrix.mapRect(mBounds);
+        mMatrix.postTranslate(viewWidth - mMargin - mBounds.right, mMargin - mBounds.top);
+        mBounds.offset(viewWidth - mMargin - mBounds.right, mMargin - mBounds.top);
+        mMatrix.invert(mInverse);
+
+        canvas.drawRect(mBounds.left - 1, mBounds.top - 1, mBounds.right + 1, mBounds.bottom + 1, mFramePaint);
+        mDrawMatrix.setScale((float) imageWidth / mBitmap.getWidth(), (float) imageHeight / mBitmap.getHeight());
+        mDrawMatrix.postConcat(mMatrix);
+        canvas.drawBitmap(mBitmap, mDrawMatrix, mBitmapPaint);
+
+        // Corners of the view in image, then overview coordinates
+        mCorners[0] = 0;
+        mCorners[1] = 0;
+        mCorners[2] = viewWidth;
+        mCorners[3] = 0;
+        mCorners[4] = viewWidth;
+        mCorners[5] = viewHeight;
+        mCorners[6] = 0;
+        mCorners[7] = viewHeight;
+        inverse.mapPoints(mCorners);
+        mMatrix.mapPoints(mCorners);
+        for (int i = 0; i < 4; i++) {
+            mOutline[i * 4] = mCorners[i * 2];
+            mOutline[i * 4 + 1] = mCorners[i * 2 + 1];
+            mOutline[i * 4 + 2] = mCorners[(i * 2 + 2) % 8];
+            mOutline[i * 4 + 3] = mCorners[(i * 2 + 3) % 8];
+        }
+        int saveCount = canvas.save();
+        canvas.clipRect(mBounds);
+        canvas.drawLines(mOutline, mOutlinePaint);
+        canvas.restoreToCount(saveCount);
+    }
+
+    private void createBitmap(Bitmap smallest) {
+        release();
+        final float scale = Math.min(1f, mSize / Math.max(smallest.getWidth(), smallest.getHeight()));
+        final int width = Math.max(1, Math.round(smallest.getWidth() * scale));
+        final int height = Math.max(1, Math.round(smallest.getHeight() * scale));
+        mBitmap = BitmapPool.obtain(width, height, Bitmap.Config.ARGB_8888);
+        mBitmap.eraseColor(0);
+        mDrawMatrix.setScale((float) width / smallest.getWidth(), (float) height / smallest.getHeight());
+        new Canvas(mBitmap).drawBitmap(smallest, mDrawMatrix, mBitmapPaint);
+        mSourceBitmap = smallest;
+    }
+
+    /**
+     * Gives back the overview; it is created again on the next draw.
+     */
+    void release() {
+        if (mBitmap != null) {
+            BitmapPool.put(mBitmap);
+            mBitmap = null;
+        }
+        mSourceBitmap = null;
+        mVisible = false;
+    }
+}
@@ -0,0 +1,86 @@
+package com.ssoliwal.image;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Movie;
+import android.graphics.PorterDuff;
+
+import java.io.IOException;
+
+/**
+ * {@link FrameSource} for animated GIFs, backed by {@link Movie}.
+ * <p>
+ * {@link Movie} does not expose the frames of the animation, so it is sampled at a fixed interval.
+ *
+ * @author Shailesh Soliwal
+ */
+
+public class MovieFrameSource implements FrameSource {
+    public static final int DEFAULT_FRAME_INTERVAL = 40;
+
+    private final Movie mMovie;
+    private final int mFrameInterval;
+    private final int mFrameCount;
+    private Canvas mCanvas;
+    private Bitmap mCanvasTarget;
+
+    public MovieFrameSource(Movie movie, int frameInterval) {
+        mMovie = movie;
+        mFrameInterval = frameInterval;
+        int duration = movie.duration();
+        mFrameCount = duration > 0 ? (duration + frameInterval - 1) / frameInterval : 1;
+    }
+
+    public static MovieFrameSource fromFile(String path) throws IOException {
+        Movie movie = Movie.decodeFile(path);
+        if (movie == null) {
+            throw new IOException("Unable to decode " + path);
+        }
+        return new MovieFrameSource(movie, DEFAULT_FRAME_INTERVAL);
+    }
+
+    public static MovieFrameSource fromByteArray(byte[] data) throws IOException {
+        Movie movie = Movie.decodeByteArray(data, 0, data.length);
+        if (movie == null) {
+            throw new IOException("Unable to decode animation");
+        }
+        return new MovieFrameSource(movie, DEFAULT_FRAME_INTERVAL);
+    }
+
+    @Override
+    public int getWidth() {
+        return mMovie.width();
+    }
+
+    @Override
+    public int getHeight() {
+        return mMovie.height();
+    }
+
+    @Override
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    @Override
+    public int getFrameDuration(int index) {
+        int duration = mMovie.duration();
+        if (duration <= 0) {
+            return mFrameInterval;
+        }
+        // The last frame only lasts until the end of the movie
+        return Math.min(mFrameInterval, duration - index * mFrameInterval);
+    }
+
+    @Override
+    public void drawFrame(int index, Bitmap target) {
+        if (mCanvasTarget != target) {
+            mCanvas = new Canvas(target);
+            mCanvasTarget = target;
+        }
+        mCanvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+        mMovie.setTime(index * mFrameInterval);
+        mMovie.draw(mCanvas, 0, 0);
+    }
+}
@@ -0,0 +1,259 @@
+package com.ssoliwal.image;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+
+/**
+ * An event log written by {@link PhaseTracer#dump(java.io.OutputStream)}, loaded back into memory for
+ * offline analysis. This class uses plain Java only and runs on any JVM.
+ * <p>
+ * Format (big endian): magic {@code "FFPT"}, version byte, event count (int), then per event the time in
+ * ns from {@code System.nanoTime()} (long), the id of the thread (int), the phase (byte) and the event
+ * type (byte).
+ *
+ * @author Shailesh Soliwal
+ */
+
+public class PhaseTrace {
+    /**
+     * Decoding a base or a tile.
+     */
+    public static final int PHASE_DECODE = 0;
+    /**
+     * Looking a tile up in the compressed cache, inflating it on a hit.
+     */
+    public static final int PHASE_CACHE_LOOKUP = 1;
+    /**
+     * Building the view matrix from a solved transform.
+     */
+    public static final int PHASE_TRANSFORM = 2;
+    /**
+     * Keeping the image within the view edges.
+     */
+    public static final int PHASE_CLAMP = 3;
+    /**
+     * Drawing a frame of the view.
+     */
+    public static final int PHASE_DRAW = 4;
+    /**
+     * A frame draws bitmaps not drawn before, whose pixels the renderer has to upload. Marked only, the
+     * upload itself happens later on the render thread.
+     */
+    public static final int PHASE_UPLOAD = 5;
+    static final int PHASE_COUNT = 6;
+
+    public static final int EVENT_BEGIN = 0;
+    public static final int EVENT_END = 1;
+    public static final int EVENT_MARK = 2;
+
+    static final int MAGIC = 0x46465054; // "FFPT"
+    static final int VERSION = 1;
+
+    private static final String[] PHASE_NAMES = {
+            "decode", "cacheLookup", "transform", "clamp", "draw", "upload"
+    };
+
+    private final int mEventCount;
+    private final long[] mTimes;
+    private final int[] mThreads;
+    private final byte[] mPhases;
+    private final byte[] mTypes;
+    // Per phase: completed spans, their total and longest duration in ns, and marks
+    private final int[] mSpanCounts = new int[PHASE_COUNT];
+    private final long[] mTotalNanos = new long[PHASE_COUNT];
+    private final long[] mMaxNanos = new long[PHASE_COUNT];
+    private final int[] mMarkCounts = new int[PHASE_COUNT];
+
+    private PhaseTrace(int eventCount, long[] times, int[] threads, byte[] phases, byte[] types) {
+        mEventCount = eventCount;
+        mTimes = times;
+        mThreads = threads;
+        mPhases = phases;
+        mTypes = types;
+        measureSpans();
+    }
+
+    /**
+     * Reads a log from the given stream. The stream is not closed.
+     */
+    public static PhaseTrace read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        if (data.readInt() != MAGIC) {
+            throw new IOException("Not a phase trace");
+        }
+        int version = data.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported phase trace version " + version);
+        }
+        int count = data.readInt();
+        if (count < 0) {
+            throw new IOException("Invalid event count " + count);
+        }
+        long[] times = new long[count];
+        int[] threads = new int[count];
+        byte[] phases = new byte[count];
+        byte[] types = new byte[count];
+        for (int i = 0; i < count; i++) {
+            times[i] = data.readLong();
+            threads[i] = data.readInt();
+            phases[i] = data.readByte();
+            types[i] = data.readByte();
+            if (phases[i] < 0 || phases[i] >= PHASE_COUNT || types[i] < 0 || types[i] > EVENT_MARK) {
+                throw new IOException("Invalid event " + i);
+            }
+        }
+        return new PhaseTrace(count, times, threads, phases, types);
+    }
+
+    /**
+     * Writes events in the format read by {@link #read(InputStream)}. The stream is not closed.
+     *
+     * @param events per event its phase shifted left by 2, or'ed with its type
+     */
+    static void write(OutputStream out, long[] times, int[] threads, byte[] events) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeByte(VERSION);
+        data.writeInt(times.length);
+        for (int i = 0; i < times.length; i++) {
+            data.writeLong(times[i]);
+            data.writeInt(threads[i]);
+            data.writeByte(events[i] >> 2);
+            data.writeByte(events[i] & 3);
+        }
+        data.flush();
+    }
+
+    /**
+     * Pairs the begin and end events of each thread, innermost first. Spans cut off by the ring buffer are
+     * not counted: an end whose begin was overwritten is skipped, and a begin whose end is missing is dropped
+     * once an enclosing span of its thread ends.
+     */
+    private void measureSpans() {
+        // Open begins per thread, as event indexes; spans nest, so a stack per thread suffices
+        int[] stack = new int[mEventCount];
+        int[] stackThreads = new int[mEventCount];
+        int depth = 0;
+        for (int i = 0; i < mEventCount; i++) {
+            final int phase = mPhases[i];
+            if (mTypes[i] == EVENT_MARK) {
+                mMarkCounts[phase]++;
+            } else if (mTypes[i] == EVENT_BEGIN) {
+                stack[depth] = i;
+                stackThreads[depth] = mThreads[i];
+                depth++;
+            } else {
+                // Innermost open span of this thread and phase
+                int open = depth - 1;
+                while (open >= 0 && (stackThreads[open] != mThreads[i] || mPhases[stack[open]] != phase)) {
+                    open--;
+                }
+                if (open < 0) {
+                    continue;
+                }
+                final long nanos = mTimes[i] - mTimes[stack[open]];
+                mSpanCounts[phase]++;
+                mTotalNanos[phase] += nanos;
+                mMaxNanos[phase] = Math.max(mMaxNanos[phase], nanos);
+                // Close it along with the begins of this thread opened inside it, whose ends were lost
+                int kept = open;
+                for (int j = open + 1; j < depth; j++) {
+                    if (stackThreads[j] != mThreads[i]) {
+                        stack[kept] = stack[j];
+                        stackThreads[kept] = stackThreads[j];
+                        kept++;
+                    }
+                }
+                depth = kept;
+            }
+        }
+    }
+
+    public static String getPhaseName(int phase) {
+        return PHASE_NAMES[phase];
+    }
+
+    public int getEventCount() {
+        return mEventCount;
+    }
+
+    /**
+     * @return time of the given event in ns, relative to the first event of the log.
+     */
+    public long getEventTime(int index) {
+        return mTimes[index] - mTimes[0];
+    }
+
+    public int getEventThread(int index) {
+        return mThreads[index];
+    }
+
+    public int getEventPhase(int index) {
+        return mPhases[index];
+    }
+
+    /**
+     * @return one of {@link #EVENT_BEGIN}, {@link #EVENT_END} and {@link #EVENT_MARK}.
+     */
+    public int getEventType(int index) {
+        return mTypes[index];
+    }
+
+    /**
+     * @return number of complete spans of the given phase.
+     */
+    public int getSpanCount(int phase) {
+        return mSpanCounts[phase];
+    }
+
+    /**
+     * @return time spent in the given phase in ns, over all threads. Nested spans count toward each phase.
+     */
+    public long getTotalNanos(int phase) {
+        return mTotalNanos[phase];
+    }
+
+    public long getMaxNanos(int phase) {
+        return mMaxNanos[phase];
+    }
+
+    public long getAverageNanos(int phase) {
+        return mSpanCounts[phase] > 0 ? mTotalNanos[phase] / mSpanCounts[phase] : 0;
+    }
+
+    /**
+     * @return number of marks of the given phase, e.g. frames that uploaded new bitmaps.
+     */
+    public int getMarkCount(int phase) {
+        return mMarkCounts[phase];
+    }
+
+    /**
+     * @return one line per phase with its span count, total, average and longest duration in ms.
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (int phase = 0; phase < PHASE_COUNT; phase++) {
+            builder.append(PHASE_NAMES[phase]);
+            if (mMarkCounts[phase] > 0) {
+                builder.append(": marks=").append(mMarkCounts[phase]);
+            } else {
+                builder.append(": spans=").append(mSpanCounts[phase])
+                        .append(" total=").append(toMillis(mTotalNanos[phase]))
+                        .append("ms avg=").append(toMillis(getAverageNanos(phase)))
+                        .append("ms max=").append(toMillis(mMaxNanos[phase])).append("ms");
+            }
+            builder.append('\n');
+        }
+        return builder.toString();
+    }
+
+    private static String toMillis(long nanos) {
+        return String.format(Locale.US, "%.3f", nanos / 1e6);
+    }
+}
@@ -0,0 +1,148 @@
+package com.ssoliwal.image;
+
+import android.support.v4.os.TraceCompat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Traces the phases of {@link FFImageView} listed in {@link PhaseTrace}: decode, cache lookup, transform,
+ * clamp, draw and upload.
+ * <p>
+ * Phases can be shown as sections in systrace and Perfetto with {@link #setSectionsEnabled(boolean)}, and
+ * recorded into an in-memory ring buffer with nanosecond timestamps with {@link #startLog(int)}. Save the
+ * log with {@link #dump(OutputStream)} and analyse it offline with {@link PhaseTrace}. While both are off,
+ * a traced phase costs one volatile read.
+ * <p>
+ * Changes apply to phases that begin afterwards; sections are best switched while no view is busy, as a
+ * phase running across the switch leaves its section open. All methods may be called from any thread.
+ *
+ * @author Shailesh Soliwal
+ */
+
+public class PhaseTracer {
+    private static final String[] SECTION_NAMES = new String[PhaseTrace.PHASE_COUNT];
+
+    static {
+        for (int i = 0; i < PhaseTrace.PHASE_COUNT; i++) {
+            SECTION_NAMES[i] = "FFImageView:" + PhaseTrace.getPhaseName(i);
+        }
+    }
+
+    // Sections or the log are on
+    private static volatile boolean sActive;
+    private static volatile boolean sSections;
+    // Ring buffer, guarded by PhaseTracer.class
+    private static long[] sTimes;
+    private static int[] sThreads;
+    private static byte[] sEvents;
+    private static int sNext;
+    private static int sCount;
+
+    private PhaseTracer() {
+    }
+
+    public static void setSectionsEnabled(boolean enabled) {
+        synchronized (PhaseTracer.class) {
+            sSections = enabled;
+            sActive = enabled || sTimes != null;
+        }
+    }
+
+    /**
+     * Starts recording events into a new ring buffer that keeps the most recent ones.
+     *
+     * @param capacity number of events kept; each takes 14 bytes
+     */
+    public static void startLog(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        synchronized (PhaseTracer.class) {
+            sTimes = new long[capacity];
+            sThreads = new int[capacity];
+            sEvents = new byte[capacity];
+            sNext = 0;
+            sCount = 0;
+            sActive = true;
+        }
+    }
+
+    /**
+     * Stops recording and drops the log.
+     */
+    public static void stopLog() {
+        synchronized (PhaseTracer.class) {
+            sTimes = null;
+            sThreads = null;
+            sEvents = null;
+            sCount = 0;
+            sActive = sSections;
+        }
+    }
+
+    /**
+     * Writes the events in the log, oldest first, in the format read by {@link PhaseTrace#read}. Recording
+     * continues. The stream is not closed.
+     */
+    public static void dump(OutputStream out) throws IOException {
+        final long[] times;
+        final int[] threads;
+        final byte[] events;
+        synchronized (PhaseTracer.class) {
+            final int count = sCount;
+            times = new long[count];
+            threads = new int[count];
+            events = new byte[count];
+            final int first = sTimes != null ? (sNext - count + sTimes.length) % sTimes.length : 0;
+            for (int i = 0; i < count; i++) {
+                final int slot = (first + i) % sTimes.length;
+                times[i] = sTimes[slot];
+                threads[i] = sThreads[slot];
+                events[i] = sEvents[slot];
+            }
+        }
+        PhaseTrace.write(out, times, threads, events);
+    }
+
+    static void begin(int phase) {
+        if (sActive) {
+            if (sSections) {
+                TraceCompat.beginSection(SECTION_NAMES[phase]);
+            }
+            log(phase, PhaseTrace.EVENT_BEGIN);
+        }
+    }
+
+    static void end(int phase) {
+        if (sActive) {
+            log(phase, PhaseTrace.EVENT_END);
+            if (sSections) {
+                TraceCompat.endSection();
+            }
+        }
+    }
+
+    /**
+     * Records an instant of the given phase; it is not shown as a section.
+     */
+    static void mark(int phase) {
+        if (sActive) {
+            log(phase, PhaseTrace.EVENT_MARK);
+        }
+    }
+
+    private static void log(int phase, int type) {
+        final long now = System.nanoTime();
+        synchronized (PhaseTracer.class) {
+            if (sTimes == null) {
+                return;
+            }
+            sTimes[sNext] = now;
+            sThreads[sNext] = (int) Thread.currentThread().getId();
+            sEvents[sNext] = (byte) (phase << 2 | type);
+            sNext = (sNext + 1) % sTimes.length;
+            sCount = Math.min(sCount + 1, sTimes.length);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.ssoliwal.image;
+
+/**
+ * {@link PixelTarget} backed by an int array, usable without the Android framework.
+ *
+ * @author Shailesh Soliwal
+ */
+
+public class PixelBuffer implements PixelTarget {
+    private final int mWidth;
+    private final int mHeight;
+    private final int[] mPixels;
+
+    public PixelBuffer(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+        mPixels = new int[width * height];
+    }
+
+    @Override
+    public int getWidth() {
+        return mWidth;
+    }
+
+    @Override
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * @return the non-premultiplied ARGB colors, row by row.
+     */
+    public int[] getPixels() {
+        return mPixels;
+    }
+
+    public int getPixel(int x, int y) {
+        return mPixels[y * mWidth + x];
+    }
+
+    @Override
+    public void setPixels(int[] pixels, int offset, int stride, int x, int y, int width, int height) {
+        if (x < 0 || y < 0 || x + width > mWidth || y + height > mHeight) {
+            throw new IllegalArgumentException("Area outside of the " + mWidth + "x" + mHeight + " buffer");
+        }
+        for (int row = 0; row < height; row++) {
+            System.arraycopy(pixels, offset + row * stride, mPixels, (y + row) * mWidth + x, width);
+        }
+    }
+}
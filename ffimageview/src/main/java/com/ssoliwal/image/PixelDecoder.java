@@ -0,0 +1,47 @@
+package com.ssoliwal.image;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Decoder for one encoded image, kept open for repeated region decodes.
+ * <p>
+ * Opening a decoder only reads the header, which makes it the bounds probe; a full decode is a decode of
+ * the region covering the whole image. Bounds are plain ints so that implementations and their callers do
+ * not depend on the Android framework. Implementations need not be thread safe.
+ *
+ * @author Shailesh Soliwal
+ */
+
+public interface PixelDecoder {
+
+    int getWidth();
+
+    int getHeight();
+
+    boolean hasAlpha();
+
+    /**
+     * Decodes the region from {@code left, top} inclusive to {@code right, bottom} exclusive, keeping every
+     * {@code sampleSize}th pixel of every {@code sampleSize}th row. The result is written to the top left
+     * corner of the target, which must be at least {@code (right - left + sampleSize - 1) / sampleSize}
+     * by {@code (bottom - top + sampleSize - 1) / sampleSize} pixels.
+     */
+    void decodeRegion(int left, int top, int right, int bottom, int sampleSize, PixelTarget target)
+            throws IOException;
+
+    void close();
+
+    /**
+     * Opens decoders for the formats an implementation supports.
+     */
+    interface Factory {
+
+        /**
+         * Reads the header of the given file.
+         *
+         * @throws IOException if the format is not supported or the header is invalid
+         */
+        PixelDecoder open(File file) throws IOException;
+    }
+}
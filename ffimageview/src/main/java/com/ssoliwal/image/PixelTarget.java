@@ -0,0 +1,24 @@
+package com.ssoliwal.image;
+
+/**
+ * Destination a {@link PixelDecoder} writes decoded pixels into. Targets are meant to be reused across
+ * decodes; a decode only writes the area it covers.
+ *
+ * @author Shailesh Soliwal
+ */
+
+public interface PixelTarget {
+
+    int getWidth();
+
+    int getHeight();
+
+    /**
+     * Copies pixels into the target, as {@code Bitmap.setPixels} does.
+     *
+     * @param pixels non-premultiplied ARGB colors
+     * @param offset index of the first color to copy
+     * @param stride colors between the starts of two rows in {@code pixels}
+     */
+    void setPixels(int[] pixels, int offset, int stride, int x, int y, int width, int height);
+}
@@ -0,0 +1,132 @@
+package com.ssoliwal.image;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes an RGBA PNG row by row, so images larger than memory can be encoded from bands.
+ * <p>
+ * Rows are passed as ARGB ints, as returned by {@code Bitmap.getPixels}. Compressed data is flushed in IDAT
+ * chunks as it is produced; only one row and one chunk buffer are held at a time. The compressor holds native
+ * memory until {@link #finish()} or {@link #close()}; close the writer when an export fails half way.
+ *
+ * @author Shailesh Soliwal
+ */
+
+class PngStreamWriter implements Closeable {
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final OutputStream mOut;
+    private final int mWidth;
+    private final int mHeight;
+    private final Deflater mDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    private final CRC32 mCrc = new CRC32();
+    private final byte[] mRow;
+    private final byte[] mChunk = new byte[CHUNK_SIZE];
+    private final byte[] mInt = new byte[4];
+    private int mRowsWritten;
+
+    PngStreamWriter(OutputStream out, int width, int height) throws IOException {
+        mOut = out;
+        mWidth = width;
+        mHeight = height;
+        // Filter type byte followed by RGBA
+        mRow = new byte[1 + width * 4];
+        try {
+            mOut.write(SIGNATURE);
+            byte[] header = new byte[13];
+            putInt(header, 0, width);
+            putInt(header, 4, height);
+            header[8] = 8; // bit depth
+            header[9] = 6; // color type RGBA
+            writeChunk("IHDR", header, header.length);
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes the next rows of the image.
+     *
+     * @param pixels ARGB pixels, {@code stride} ints per row
+     */
+    void writeRows(int[] pixels, int offset, int stride, int rows) throws IOException {
+        for (int y = 0; y < rows; y++) {
+            if (mRowsWritten == mHeight) {
+                throw new IOException("Too many rows");
+            }
+            int p = offset + y * stride;
+            int b = 1;
+            mRow[0] = 0; // no filter
+            for (int x = 0; x < mWidth; x++) {
+                int argb = pixels[p++];
+                mRow[b++] = (byte) (argb >> 16);
+                mRow[b++] = (byte) (argb >> 8);
+                mRow[b++] = (byte) argb;
+                mRow[b++] = (byte) (argb >>> 24);
+            }
+            mDeflater.setInput(mRow);
+            while (!mDeflater.needsInput()) {
+                deflate();
+            }
+            mRowsWritten++;
+        }
+    }
+
+    /**
+     * Writes the remaining data and the end chunk. The stream is not closed.
+     */
+    void finish() throws IOException {
+        if (mRowsWritten != mHeight) {
+            throw new IOException("Missing rows: " + mRowsWritten + " of " + mHeight);
+        }
+        mDeflater.finish();
+        while (!mDeflater.finished()) {
+            deflate();
+        }
+        mDeflater.end();
+        writeChunk("IEND", mChunk, 0);
+        mOut.flush();
+    }
+
+    /**
+     * Frees the compressor. Rows can no longer be written; the stream is not closed. Safe to call more
+     * than once and after {@link #finish()}.
+     */
+    @Override
+    public void close() {
+        mDeflater.end();
+    }
+
+    private void deflate() throws IOException {
+        int length = mDeflater.deflate(mChunk);
+        if (length > 0) {
+            writeChunk("IDAT", mChunk, length);
+        }
+    }
+
+    private void writeChunk(String type, byte[] data, int length) throws IOException {
+        putInt(mInt, 0, length);
+        mOut.write(mInt);
+        byte[] typeBytes = type.getBytes("US-ASCII");
+        mCrc.reset();
+        mCrc.update(typeBytes);
+        mCrc.update(data, 0, length);
+        mOut.write(typeBytes);
+        mOut.write(data, 0, length);
+        putInt(mInt, 0, (int) mCrc.getValue());
+        mOut.write(mInt);
+    }
+
+    private static void putInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+}
@@ -0,0 +1,553 @@
+package com.ssoliwal.image;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * {@link PixelDecoder} written in plain Java, for non-interlaced PNG and binary PPM/PGM files.
+ * <p>
+ * It serves as a reference for other decoders and lets the layers above the decoder run on a plain JVM.
+ * Subsampling keeps the top left pixel of each block rather than averaging it. PNG rows are inflated in
+ * order and the decode stops after the last row of the region; PPM rows are read in place.
+ *
+ * @author Shailesh Soliwal
+ */
+
+public abstract class ReferenceDecoder implements PixelDecoder {
+    public static final PixelDecoder.Factory FACTORY = new PixelDecoder.Factory() {
+        @Override
+        public PixelDecoder open(File file) throws IOException {
+            return ReferenceDecoder.open(file);
+        }
+    };
+
+    private static final long PNG_SIGNATURE = 0x89504E470D0A1A0AL;
+
+    protected final File mFile;
+    protected int mWidth;
+    protected int mHeight;
+
+    ReferenceDecoder(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Reads the header of a PNG or PPM file.
+     *
+     * @throws IOException if the file is neither, or uses a feature this decoder does not support
+     */
+    public static ReferenceDecoder open(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            in.mark(8);
+            int magic = in.readUnsignedShort();
+            in.reset();
+            ReferenceDecoder decoder;
+            if (magic == ('P' << 8 | '5') || magic == ('P' << 8 | '6')) {
+                decoder = new Ppm(file);
+            } else if (magic == 0x8950) {
+                decoder = new Png(file);
+            } else {
+                throw new IOException("Unsupported image format");
+            }
+            decoder.readHeader(in);
+            return decoder;
+        } finally {
+            in.close();
+        }
+    }
+
+    @Override
+    public int getWidth() {
+        return mWidth;
+    }
+
+    @Override
+    public int getHeight() {
+        return mHeight;
+    }
+
+    @Override
+    public void close() {
+        // Files are only open while decoding
+    }
+
+    abstract void readHeader(DataInputStream in) throws IOException;
+
+    void checkRegion(int left, int top, int right, int bottom, int sampleSize, PixelTarget target) {
+        if (left < 0 || top < 0 || right > mWidth || bottom > mHeight || left >= right || top >= bottom) {
+            throw new IllegalArgumentException("Invalid region " + left + "," + top + "-" + right + "," + bottom);
+        }
+        if (sampleSize < 1) {
+            throw new IllegalArgumentException("Invalid sample size " + sampleSize);
+        }
+        if (target.getWidth() < (right - left + sampleSize - 1) / sampleSize
+                || target.getHeight() < (bottom - top + sampleSize - 1) / sampleSize) {
+            throw new IllegalArgumentException("Target too small");
+        }
+    }
+
+    /**
+     * Binary greyscale (P5) or RGB (P6) portable pixmap, 8 or 16 bits per sample.
+     */
+    private static class Ppm extends ReferenceDecoder {
+        private int mChannels;
+        private int mMaxValue;
+        private long mDataOffset;
+
+        Ppm(File file) {
+            super(file);
+        }
+
+        @Override
+        public boolean hasAlpha() {
+            return false;
+        }
+
+        @Override
+        void readHeader(DataInputStream in) throws IOException {
+            in.readUnsignedByte();
+            mChannels = in.readUnsignedByte() == '5' ? 1 : 3;
+            long[] offset = {2};
+            mWidth = readNumber(in, offset);
+            mHeight = readNumber(in, offset);
+            mMaxValue = readNumber(in, offset);
+            // The single whitespace after the maximum value, consumed above, ends the header
+            mDataOffset = offset[0];
+            if (mWidth <= 0 || mHeight <= 0 || mMaxValue <= 0 || mMaxValue > 65535) {
+                throw new IOException("Invalid PPM header");
+            }
+        }
+
+        private static int readNumber(DataInputStream in, long[] offset) throws IOException {
+            int c = in.readUnsignedByte();
+            offset[0]++;
+            while (Character.isWhitespace(c) || c == '#') {
+                if (c == '#') {
+                    while (c != '\n' && c != '\r') {
+                        c = in.readUnsignedByte();
+                        offset[0]++;
+                    }
+                }
+                c = in.readUnsignedByte();
+                offset[0]++;
+            }
+            int value = 0;
+            while (c >= '0' && c <= '9') {
+                value = value * 10 + c - '0';
+                c = in.readUnsignedByte();
+                offset[0]++;
+            }
+            // The whitespace after the number was consumed as well
+            return value;
+        }
+
+        @Override
+        public void decodeRegion(int left, int top, int right, int bottom, int sampleSize, PixelTarget target)
+                throws IOException {
+            checkRegion(left, top, right, bottom, sampleSize, target);
+            final int bytesPerSample = mMaxValue < 256 ? 1 : 2;
+            final int bytesPerPixel = mChannels * bytesPerSample;
+            final int outWidth = (right - left + sampleSize - 1) / sampleSize;
+            final byte[] row = new byte[(right - left) * bytesPerPixel];
+            final int[] colors = new int[outWidth];
+            RandomAccessFile file = new RandomAccessFile(mFile, "r");
+            try {
+                for (int y = top, outY = 0; y < bottom; y += sampleSize, outY++) {
+                    file.seek(mDataOffset + ((long) y * mWidth + left) * bytesPerPixel);
+                    file.readFully(row);
+                    for (int x = 0; x < outWidth; x++) {
+                        int index = x * sampleSize * bytesPerPixel;
+                        int r = sample(row, index, bytesPerSample);
+                        if (mChannels == 1) {
+                            colors[x] = 0xFF000000 | r << 16 | r << 8 | r;
+                        } else {
+                            int g = sample(row, index + bytesPerSample, bytesPerSample);
+                            int b = sample(row, index + 2 * bytesPerSample, bytesPerSample);
+                            colors[x] = 0xFF000000 | r << 16 | g << 8 | b;
+                        }
+                    }
+                    target.setPixels(colors, 0, outWidth, 0, outY, outWidth, 1);
+                }
+            } finally {
+                file.close();
+            }
+        }
+
+        private int sample(byte[] row, int index, int bytesPerSample) {
+            int value = row[index] & 0xFF;
+            if (bytesPerSample == 2) {
+                value = value << 8 | (row[index + 1] & 0xFF);
+            }
+            return mMaxValue == 255 ? value : (value * 255 + mMaxValue / 2) / mMaxValue;
+        }
+    }
+
+    /**
+     * Non-interlaced PNG of any colour type and bit depth.
+     */
+    private static class Png extends ReferenceDecoder {
+        private static final int TYPE_GREY = 0;
+        private static final int TYPE_RGB = 2;
+        private static final int TYPE_PALETTE = 3;
+        private static final int TYPE_GREY_ALPHA = 4;
+        private static final int TYPE_RGB_ALPHA = 6;
+        private static final int CHUNK_IHDR = 0x49484452;
+        private static final int CHUNK_PLTE = 0x504C5445;
+        private static final int CHUNK_TRNS = 0x74524E53;
+        private static final int CHUNK_IDAT = 0x49444154;
+        private static final int CHUNK_IEND = 0x49454E44;
+
+        private int mBitDepth;
+        private int mColorType;
+        private int mChannels;
+        private int[] mPalette;
+        // Transparent grey or RGB sample values from tRNS
+        private int mTransparent = -1;
+        private int[] mTransparentRgb;
+
+        Png(File file) {
+            super(file);
+        }
+
+        @Override
+        public boolean hasAlpha() {
+            return mColorType == TYPE_GREY_ALPHA || mColorType == TYPE_RGB_ALPHA || mTransparent >= 0
+                    || mTransparentRgb != null
+                    || mColorType == TYPE_PALETTE && mPalette != null && hasPaletteAlpha();
+        }
+
+        private boolean hasPaletteAlpha() {
+            for (int color : mPalette) {
+                if (color >>> 24 != 0xFF) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        void readHeader(DataInputStream in) throws IOException {
+            if (in.readLong() != PNG_SIGNATURE) {
+                throw new IOException("Invalid PNG signature");
+            }
+            // Read the chunks before the pixel data
+            while (true) {
+                int length = in.readInt();
+                int type = in.readInt();
+                if (type == CHUNK_IDAT || type == CHUNK_IEND) {
+                    break;
+                }
+                byte[] data = new byte[length];
+                in.readFully(data);
+                in.readInt();
+                onChunk(type, data);
+            }
+            if (mWidth <= 0 || mHeight <= 0) {
+                throw new IOException("Missing IHDR");
+            }
+            if (mColorType == TYPE_PALETTE && mPalette == null) {
+                throw new IOException("Missing PLTE");
+            }
+        }
+
+        private void onChunk(int type, byte[] data) throws IOException {
+            if (type == CHUNK_IHDR) {
+                mWidth = readInt(data, 0);
+                mHeight = readInt(data, 4);
+                mBitDepth = data[8];
+                mColorType = data[9];
+                if (data[10] != 0 || data[11] != 0) {
+                    throw new IOException("Unknown PNG compression or filter method");
+                }
+                if (data[12] != 0) {
+                    throw new IOException("Interlaced PNG is not supported");
+                }
+                switch (mColorType) {
+                    case TYPE_GREY:
+                    case TYPE_PALETTE:
+                        mChannels = 1;
+                        break;
+                    case TYPE_GREY_ALPHA:
+                        mChannels = 2;
+                        break;
+                    case TYPE_RGB:
+                        mChannels = 3;
+                        break;
+                    case TYPE_RGB_ALPHA:
+                        mChannels = 4;
+                        break;
+                    default:
+                        throw new IOException("Invalid PNG colour type " + mColorType);
+                }
+            } else if (type == CHUNK_PLTE) {
+                mPalette = new int[data.length / 3];
+                for (int i = 0; i < mPalette.length; i++) {
+                    mPalette[i] = 0xFF000000 | (data[i * 3] & 0xFF) << 16 | (data[i * 3 + 1] & 0xFF) << 8
+                            | (data[i * 3 + 2] & 0xFF);
+                }
+            } else if (type == CHUNK_TRNS) {
+                if (mColorType == TYPE_PALETTE && mPalette != null) {
+                    for (int i = 0; i < data.length && i < mPalette.length; i++) {
+                        mPalette[i] = (mPalette[i] & 0xFFFFFF) | (data[i] & 0xFF) << 24;
+                    }
+                } else if (mColorType == TYPE_GREY && data.length >= 2) {
+                    mTransparent = readShort(data, 0);
+                } else if (mColorType == TYPE_RGB && data.length >= 6) {
+                    mTransparentRgb = new int[]{readShort(data, 0), readShort(data, 2), readShort(data, 4)};
+                }
+            }
+        }
+
+        private static int readInt(byte[] data, int offset) {
+            return (data[offset] & 0xFF) << 24 | (data[offset + 1] & 0xFF) << 16 | (data[offset + 2] & 0xFF) << 8
+                    | (data[offset + 3] & 0xFF);
+        }
+
+        private static int readShort(byte[] data, int offset) {
+            return (data[offset] & 0xFF) << 8 | (data[offset + 1] & 0xFF);
+        }
+
+        @Override
+        public void decodeRegion(int left, int top, int right, int bottom, int sampleSize, PixelTarget target)
+                throws IOException {
+            checkRegion(left, top, right, bottom, sampleSize, target);
+            final int bitsPerPixel = mChannels * mBitDepth;
+            final int bytesPerPixel = Math.max(1, bitsPerPixel / 8);
+            final int rowBytes = (mWidth * bitsPerPixel + 7) / 8;
+            final int outWidth = (right - left + sampleSize - 1) / sampleSize;
+            byte[] previous = new byte[rowBytes];
+            byte[] current = new byte[rowBytes];
+            final int[] colors = new int[outWidth];
+
+            ChunkStream in = new ChunkStream(mFile);
+            Inflater inflater = new Inflater();
+            try {
+                for (int y = 0, outY = 0; y < bottom; y++) {
+                    int filter = inflate(in, inflater, current, -1);
+                    inflate(in, inflater, current, rowBytes);
+                    unfilter(filter, current, previous, bytesPerPixel);
+                    if (y >= top && (y - top) % sampleSize == 0) {
+                        toColors(current, left, sampleSize, colors);
+                        target.setPixels(colors, 0, outWidth, 0, outY++, outWidth, 1);
+                    }
+                    byte[] swap = previous;
+                    previous = current;
+                    current = swap;
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt PNG data", e);
+            } finally {
+                inflater.end();
+                in.close();
+            }
+        }
+
+        /**
+         * Inflates {@code length} bytes into the row, or a single byte that is returned if length is -1.
+         */
+        private static int inflate(ChunkStream in, Inflater inflater, byte[] row, int length)
+                throws IOException, DataFormatException {
+            final int count = length < 0 ? 1 : length;
+            int done = 0;
+            while (done < count) {
+                int inflated = inflater.inflate(row, done, count - done);
+                done += inflated;
+                if (inflated == 0) {
+                    if (inflater.finished() || inflater.needsDictionary()) {
+                        throw new EOFException("PNG data ends early");
+                    }
+                    if (inflater.needsInput()) {
+                        in.feed(inflater);
+                    }
+                }
+            }
+            return length < 0 ? row[0] & 0xFF : length;
+        }
+
+        private static void unfilter(int filter, byte[] row, byte[] previous, int bpp) throws IOException {
+            final int length = row.length;
+            switch (filter) {
+                case 0:
+                    break;
+                case 1:
+                    for (int i = bpp; i < length; i++) {
+                        row[i] += row[i - bpp];
+                    }
+                    break;
+                case 2:
+                    for (int i = 0; i < length; i++) {
+                        row[i] += previous[i];
+                    }
+                    break;
+                case 3:
+                    for (int i = 0; i < length; i++) {
+                        int a = i >= bpp ? row[i - bpp] & 0xFF : 0;
+                        row[i] += (a + (previous[i] & 0xFF)) >> 1;
+                    }
+                    break;
+                case 4:
+                    for (int i = 0; i < length; i++) {
+                        int a = i >= bpp ? row[i - bpp] & 0xFF : 0;
+                        int b = previous[i] & 0xFF;
+                        int c = i >= bpp ? previous[i - bpp] & 0xFF : 0;
+                        int p = a + b - c;
+                        int pa = Math.abs(p - a);
+                        int pb = Math.abs(p - b);
+                        int pc = Math.abs(p - c);
+                        row[i] += pa <= pb && pa <= pc ? a : pb <= pc ? b : c;
+                    }
+                    break;
+                default:
+                    throw new IOException("Invalid PNG filter " + filter);
+            }
+        }
+
+        /**
+         * Converts every {@code sampleSize}th pixel from {@code left} on to non-premultiplied ARGB.
+         */
+        private void toColors(byte[] row, int left, int sampleSize, int[] colors) {
+            for (int x = 0; x < colors.length; x++) {
+                final int px = left + x * sampleSize;
+                int color;
+                switch (mColorType) {
+                    case TYPE_GREY: {
+                        int raw = sample(row, px, 0);
+                        int v = scale(raw);
+                        color = (raw == mTransparent ? 0 : 0xFF000000) | v << 16 | v << 8 | v;
+                        break;
+                    }
+                    case TYPE_PALETTE: {
+                        int index = sample(row, px, 0);
+                        color = index < mPalette.length ? mPalette[index] : 0xFF000000;
+                        break;
+                    }
+                    case TYPE_GREY_ALPHA: {
+                        int v = scale(sample(row, px, 0));
+                        color = scale(sample(row, px, 1)) << 24 | v << 16 | v << 8 | v;
+                        break;
+                    }
+                    case TYPE_RGB: {
+                        int r = sample(row, px, 0);
+                        int g = sample(row, px, 1);
+                        int b = sample(row, px, 2);
+                        boolean transparent = mTransparentRgb != null && r == mTransparentRgb[0]
+                                && g == mTransparentRgb[1] && b == mTransparentRgb[2];
+                        color = (transparent ? 0 : 0xFF000000) | scale(r) << 16 | scale(g) << 8 | scale(b);
+                        break;
+                    }
+                    default:
+                        color = scale(sample(row, px, 3)) << 24 | scale(sample(row, px, 0)) << 16
+                                | scale(sample(row, px, 1)) << 8 | scale(sample(row, px, 2));
+                        break;
+                }
+                colors[x] = color;
+            }
+        }
+
+        /**
+         * @return the raw value of the given channel of the pixel at {@code x}.
+         */
+        private int sample(byte[] row, int x, int channel) {
+            switch (mBitDepth) {
+                case 8:
+                    return row[x * mChannels + channel] & 0xFF;
+                case 16: {
+                    int index = (x * mChannels + channel) * 2;
+                    return (row[index] & 0xFF) << 8 | (row[index + 1] & 0xFF);
+                }
+                default: {
+                    // 1, 2 or 4 bits, single channel, most significant bits first
+                    int bit = x * mBitDepth;
+                    int shift = 8 - mBitDepth - (bit & 7);
+                    return (row[bit >> 3] >> shift) & ((1 << mBitDepth) - 1);
+                }
+            }
+        }
+
+        /**
+         * Scales a raw sample to 8 bits. Palette indices are not samples and are never scaled.
+         */
+        private int scale(int value) {
+            switch (mBitDepth) {
+                case 8:
+                    return value;
+                case 16:
+                    return value >> 8;
+                default:
+                    return value * 255 / ((1 << mBitDepth) - 1);
+            }
+        }
+    }
+
+    /**
+     * Reads the contents of consecutive IDAT chunks.
+     */
+    private static class ChunkStream {
+        private final DataInputStream mIn;
+        private final byte[] mBuffer = new byte[16 * 1024];
+        private int mRemaining;
+        private boolean mEnded;
+
+        ChunkStream(File file) throws IOException {
+            InputStream in = new BufferedInputStream(new FileInputStream(file));
+            mIn = new DataInputStream(in);
+            mIn.readLong();
+        }
+
+        /**
+         * Hands the next piece of image data to the inflater.
+         */
+        void feed(Inflater inflater) throws IOException {
+            while (mRemaining == 0) {
+                if (mEnded) {
+                    throw new EOFException("PNG data ends early");
+                }
+                int length = mIn.readInt();
+                int type = mIn.readInt();
+                if (type == Png.CHUNK_IDAT) {
+                    mRemaining = length;
+                } else if (type == Png.CHUNK_IEND) {
+                    mEnded = true;
+                } else {
+                    skipFully(length);
+                }
+                if (mRemaining == 0) {
+                    // Empty chunk or one that is not image data: skip its CRC
+                    mIn.readInt();
+                }
+            }
+            int count = mIn.read(mBuffer, 0, Math.min(mBuffer.length, mRemaining));
+            if (count < 0) {
+                throw new EOFException("PNG data ends early");
+            }
+            mRemaining -= count;
+            if (mRemaining == 0) {
+                mIn.readInt();
+            }
+            inflater.setInput(mBuffer, 0, count);
+        }
+
+        private void skipFully(int length) throws IOException {
+            while (length > 0) {
+                int skipped = mIn.skipBytes(length);
+                if (skipped <= 0) {
+                    throw new EOFException("PNG data ends early");
+                }
+                length -= skipped;
+            }
+        }
+
+        void close() throws IOException {
+            mIn.close();
+        }
+    }
+}
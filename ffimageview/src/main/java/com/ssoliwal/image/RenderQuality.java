@@ -0,0 +1,90 @@
+package com.ssoliwal.image;
+
+/**
+ * Chooses between full and reduced render quality for each frame of a {@link FFImageView}.
+ * <p>
+ * At rest the view always draws at full quality: bitmap filtering and dithering on, and tiles at full
+ * resolution. While a gesture or an animation is running, the time spent drawing each frame is measured,
+ * from the start to the end of {@code onDraw}, and once it goes over the budget the view switches to reduced quality (no filtering, no dithering, no new tiles) until the
+ * interaction ends. The first frame at rest is drawn at full quality again.
+ *
+ * @author Shailesh Soliwal
+ */
+
+public class RenderQuality {
+    /**
+     * Half a frame at 60 Hz: the rest of the frame is left to the render thread and to other views.
+     */
+    public static final long DEFAULT_FRAME_BUDGET_NANOS = 8333333L;
+    // Weight of the newest frame in the moving average
+    private static final float FRAME_TIME_SMOOTHING = 0.25f;
+
+    private long mFrameBudgetNanos = DEFAULT_FRAME_BUDGET_NANOS;
+    private boolean mAlwaysReduceWhileInteracting;
+    private boolean mHighQuality = true;
+    private boolean mInteracting;
+    private long mFrameStart;
+    private float mAverageFrameTime;
+
+    /**
+     * Sets the draw time above which quality is reduced during interaction.
+     */
+    public void setFrameBudgetNanos(long budget) {
+        mFrameBudgetNanos = budget;
+    }
+
+    public long getFrameBudgetNanos() {
+        return mFrameBudgetNanos;
+    }
+
+    /**
+     * Reduces quality during every interaction, whatever the frame time. Useful on devices known to be slow.
+     */
+    public void setAlwaysReduceWhileInteracting(boolean always) {
+        mAlwaysReduceWhileInteracting = always;
+    }
+
+    public boolean isHighQuality() {
+        return mHighQuality;
+    }
+
+    /**
+     * Called at the start of every frame.
+     *
+     * @param interacting true while a gesture or an animation is running
+     * @return true if the frame is to be drawn at full quality
+     */
+    boolean beginFrame(boolean interacting, ViewMetrics metrics) {
+        mInteracting = interacting;
+        boolean high;
+        if (!interacting) {
+            mAverageFrameTime = 0;
+            high = true;
+        } else {
+            // Once reduced, stay reduced until the interaction ends so quality does not flicker
+            high = mHighQuality && !mAlwaysReduceWhileInteracting && mAverageFrameTime <= mFrameBudgetNanos;
+        }
+        metrics.onFrame();
+        if (high != mHighQuality) {
+            mHighQuality = high;
+            metrics.onQualitySwitch();
+        }
+        mFrameStart = System.nanoTime();
+        return high;
+    }
+
+    /**
+     * Called once the frame begun by {@link #beginFrame(boolean, ViewMetrics)} is drawn.
+     */
+    void endFrame(ViewMetrics metrics) {
+        if (!mInteracting) {
+            return;
+        }
+        final long frameTime = System.nanoTime() - mFrameStart;
+        mAverageFrameTime = mAverageFrameTime == 0 ? frameTime
+                : mAverageFrameTime + (frameTime - mAverageFrameTime) * FRAME_TIME_SMOOTHING;
+        if (frameTime > mFrameBudgetNanos) {
+            metrics.onSlowFrame();
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package com.ssoliwal.image;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Downloads a URL into a file, resuming from a partial file left by an earlier attempt.
+ * <p>
+ * Data goes to {@code <file>.part} and the file only appears once complete. A resumed request carries a
+ * range from the end of the partial data and an {@code If-Range} with the ETag of the first response, so
+ * a changed image is sent in full instead of being spliced onto stale bytes. Downloads into the same file
+ * run one at a time; the ones waiting find the file complete or resume where the previous one stopped.
+ * <p>
+ * Plain Java, so it runs and is tested off the device.
+ *
+ * @author Shailesh Soliwal
+ */
+
+class ResumableDownload {
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int CONNECT_TIMEOUT = 15000;
+    private static final int READ_TIMEOUT = 30000;
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+    private static final String PART_SUFFIX = ".part";
+    private static final String ETAG_SUFFIX = ".etag";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Files being written, by path
+    private static final Set<String> sInFlight = new HashSet<>();
+
+    /**
+     * Told about data as it is written, on the downloading thread.
+     */
+    interface Receiver {
+        /**
+         * @param file  the partial file, positioned after the data received so far
+         * @param total size of the whole file, or -1 while it is not known
+         */
+        void onReceived(RandomAccessFile file, long received, long total) throws IOException;
+    }
+
+    private final URL mUrl;
+    private final File mFile;
+    private final File mPartFile;
+    private final File mEtagFile;
+    private volatile boolean mCancelled;
+    private volatile long mReceivedBytes;
+    private volatile long mTotalBytes = -1;
+
+    ResumableDownload(URL url, File file) {
+        mUrl = url;
+        mFile = file;
+        mPartFile = new File(file.getPath() + PART_SUFFIX);
+        mEtagFile = new File(file.getPath() + ETAG_SUFFIX);
+    }
+
+    File getFile() {
+        return mFile;
+    }
+
+    File getPartFile() {
+        return mPartFile;
+    }
+
+    long getReceivedBytes() {
+        return mReceivedBytes;
+    }
+
+    long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    /**
+     * Downloads the file unless it is complete already. Blocks while another download writes the same file.
+     *
+     * @param receiver told about new data, or null
+     * @return false if cancelled before the file was complete.
+     * @throws InterruptedIOException if the thread was interrupted while waiting for the other download
+     */
+    boolean run(Receiver receiver) throws IOException {
+        final String path = mFile.getAbsolutePath();
+        synchronized (sInFlight) {
+            while (!sInFlight.add(path)) {
+                if (mCancelled) {
+                    return false;
+                }
+                try {
+                    sInFlight.wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Cancelled waiting for " + mFile);
+                }
+            }
+        }
+        try {
+            if (mFile.exists()) {
+                mReceivedBytes = mTotalBytes = mFile.length();
+                return true;
+            }
+            return download(true, receiver);
+        } finally {
+            synchronized (sInFlight) {
+                sInFlight.remove(path);
+                sInFlight.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Stops the download after the current read. The partial file is kept for the next attempt.
+     */
+    void cancel() {
+        mCancelled = true;
+    }
+
+    private boolean download(boolean resume, Receiver receiver) throws IOException {
+        long offset = resume ? mPartFile.length() : 0;
+        String etag = offset > 0 ? readEtag() : null;
+        if (offset > 0 && etag == null) {
+            // Nothing to validate the partial data against
+            offset = 0;
+        }
+
+        HttpURLConnection connection = (HttpURLConnection) mUrl.openConnection();
+        try {
+            connection.setConnectTimeout(CONNECT_TIMEOUT);
+            connection.setReadTimeout(READ_TIMEOUT);
+            if (offset > 0) {
+                connection.setRequestProperty("Range", "bytes=" + offset + "-");
+                connection.setRequestProperty("If-Range", etag);
+            }
+            final int code = connection.getResponseCode();
+            if (code == HttpURLConnection.HTTP_PARTIAL) {
+                mTotalBytes = parseTotal(connection.getHeaderField("Content-Range"));
+            } else if (code == HttpURLConnection.HTTP_OK) {
+                // Full body: the server ignored the range or the image changed
+                offset = 0;
+                mTotalBytes = connection.getContentLength();
+            } else if (code == HTTP_RANGE_NOT_SATISFIABLE && offset > 0) {
+                // Nothing past the partial data: complete if the sizes agree, else start over
+                final String range = connection.getHeaderField("Content-Range");
+                final long total = range != null ? parseTotal(range) : -1;
+                if (total < 0 || total == offset) {
+                    mReceivedBytes = mTotalBytes = offset;
+                    finish();
+                    return true;
+                }
+                connection.disconnect();
+                return download(false, receiver);
+            } else {
+                throw new IOException("HTTP " + code + " for " + mUrl);
+            }
+            writeEtag(connection.getHeaderField("ETag"));
+
+            InputStream in = connection.getInputStream();
+            RandomAccessFile out = new RandomAccessFile(mPartFile, "rw");
+            try {
+                out.setLength(offset);
+                out.seek(offset);
+                receive(in, out, offset, receiver);
+            } finally {
+                out.close();
+                in.close();
+            }
+        } finally {
+            connection.disconnect();
+        }
+        if (mCancelled) {
+            return false;
+        }
+        if (mTotalBytes >= 0 && mPartFile.length() != mTotalBytes) {
+            throw new IOException("Download of " + mUrl + " ended early");
+        }
+        finish();
+        return true;
+    }
+
+    private void receive(InputStream in, RandomAccessFile out, long offset, Receiver receiver)
+            throws IOException {
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        mReceivedBytes = offset;
+        int read;
+        while (!mCancelled && (read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+            mReceivedBytes += read;
+            if (receiver != null) {
+                receiver.onReceived(out, mReceivedBytes, mTotalBytes);
+            }
+        }
+    }
+
+    private void finish() throws IOException {
+        if (!mPartFile.renameTo(mFile)) {
+            throw new IOException("Unable to move " + mPartFile + " into place");
+        }
+        mEtagFile.delete();
+    }
+
+    private static long parseTotal(String contentRange) throws IOException {
+        // bytes <first>-<last>/<total>, or bytes */<total> with a 416
+        int slash = contentRange != null ? contentRange.lastIndexOf('/') : -1;
+        if (slash < 0) {
+            throw new IOException("Invalid Content-Range: " + contentRange);
+        }
+        String total = contentRange.substring(slash + 1).trim();
+        try {
+            return "*".equals(total) ? -1 : Long.parseLong(total);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid Content-Range: " + contentRange);
+        }
+    }
+
+    private String readEtag() {
+        if (!mEtagFile.exists()) {
+            return null;
+        }
+        byte[] data = new byte[(int) mEtagFile.length()];
+        try {
+            FileInputStream in = new FileInputStream(mEtagFile);
+            try {
+                int length = 0;
+                while (length < data.length) {
+                    int read = in.read(data, length, data.length - length);
+                    if (read < 0) {
+                        return null;
+                    }
+                    length += read;
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        return new String(data, UTF_8);
+    }
+
+    private void writeEtag(String etag) throws IOException {
+        if (etag == null) {
+            mEtagFile.delete();
+            return;
+        }
+        FileOutputStream out = new FileOutputStream(mEtagFile);
+        try {
+            out.write(etag.getBytes(UTF_8));
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.ssoliwal.image;
+
+import android.view.MotionEvent;
+
+/**
+ * Detects the rotation of the line between the first two pointers of a touch gesture and reports it in
+ * increments. Rotation below a slop angle is ignored, so that pinching does not turn the image.
+ *
+ * @author Shailesh Soliwal
+ */
+
+class RotateGestureDetector {
+    private static final float SLOP_DEGREES = 10f;
+
+    interface OnRotateListener {
+        /**
+         * @param degrees clockwise rotation since the last call
+         * @param focusX  midpoint of the two pointers
+         * @param focusY  midpoint of the two pointers
+         */
+        void onRotate(float degrees, float focusX, float focusY);
+
+        /**
+         * The gesture ended after at least one call to {@link #onRotate(float, float, float)}.
+         */
+        void onRotateEnd();
+    }
+
+    private final OnRotateListener mListener;
+    private boolean mTracking;
+    // Take the angle of the next move as the new reference, the pointers changed
+    private boolean mRebase;
+    private float mLastAngle;
+    // Rotation accumulated while within the slop
+    private float mPending;
+    private boolean mRotating;
+
+    RotateGestureDetector(OnRotateListener listener) {
+        mListener = listener;
+    }
+
+    boolean isRotating() {
+        return mRotating;
+    }
+
+    void onTouchEvent(MotionEvent event) {
+        switch (event.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN:
+                end();
+                break;
+            case MotionEvent.ACTION_POINTER_DOWN:
+                mTracking = true;
+                mRebase = true;
+                break;
+            case MotionEvent.ACTION_MOVE:
+                if (mTracking && event.getPointerCount() >= 2) {
+                    onMove(event);
+                }
+                break;
+            case MotionEvent.ACTION_POINTER_UP:
+                if (event.getPointerCount() <= 2) {
+                    end();
+                } else {
+                    mRebase = true;
+                }
+                break;
+            case MotionEvent.ACTION_UP:
+            case MotionEvent.ACTION_CANCEL:
+                end();
+                break;
+        }
+    }
+
+    private void onMove(MotionEvent event) {
+        final float dx = event.getX(1) - event.getX(0);
+        final float dy = event.getY(1) - event.getY(0);
+        final float angle = (float) Math.toDegrees(Math.atan2(dy, dx));
+        if (mRebase) {
+            mRebase = false;
+            mLastAngle = angle;
+            return;
+        }
+        float delta = angle - mLastAngle;
+        mLastAngle = angle;
+        // Across the -180/180 seam
+        if (delta > 180f) {
+            delta -= 360f;
+        } else if (delta < -180f) {
+            delta += 360f;
+        }
+        if (!mRotating) {
+            mPending += delta;
+            if (Math.abs(mPending) < SLOP_DEGREES) {
+                return;
+            }
+            mRotating = true;
+            // Start from the slop rather than jump by it
+            delta = mPending - Math.signum(mPending) * SLOP_DEGREES;
+        }
+        mListener.onRotate(delta, (event.getX(0) + event.getX(1)) / 2f, (event.getY(0) + event.getY(1)) / 2f);
+    }
+
+    private void end() {
+        final boolean rotating = mRotating;
+        mTracking = false;
+        mRotating = false;
+        mPending = 0f;
+        if (rotating) {
+            mListener.onRotateEnd();
+        }
+    }
+}
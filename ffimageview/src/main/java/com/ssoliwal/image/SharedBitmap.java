@@ -0,0 +1,156 @@
+package com.ssoliwal.image;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * Ref-counted handle to a decoded bitmap that can be shown by several {@link FFImageView}s at once.
+ * <p>
+ * Handles obtained with the same key share one decode. Every {@link #obtain(String, Loader)} and
+ * {@link #acquire()} must be matched by a {@link #release()}; when the last holder releases, the pixels
+ * are handed to the {@link BitmapPool}. Views passed a handle through {@link FFImageView#setSharedBitmap(SharedBitmap)}
+ * take their own reference and drop it on {@link FFImageView#clear()} or when detached.
+ * <p>
+ * Shared pixels are counted once in the process-wide base layer of {@link MemoryTracker}.
+ *
+ * @author Shailesh Soliwal
+ */
+
+public class SharedBitmap {
+
+    /**
+     * Decodes the pixels of a shared bitmap. Called at most once per decode, on the thread calling obtain.
+     */
+    public interface Loader {
+        Bitmap load() throws IOException;
+    }
+
+    private static final HashMap<String, SharedBitmap> sCache = new HashMap<>();
+
+    private final String mKey;
+    private final Loader mLoader;
+    private Bitmap mBitmap;
+    private int mRefCount;
+
+    private SharedBitmap(String key, Loader loader) {
+        mKey = key;
+        mLoader = loader;
+    }
+
+    /**
+     * Returns a handle to the bitmap with the given key, decoding it with the loader if no other
+     * handle holds it. The caller owns one reference.
+     */
+    public static SharedBitmap obtain(String key, Loader loader) throws IOException {
+        SharedBitmap shared;
+        synchronized (sCache) {
+            shared = sCache.get(key);
+            if (shared == null) {
+                shared = new SharedBitmap(key, loader);
+                sCache.put(key, shared);
+            }
+            shared.mRefCount++;
+        }
+        try {
+            shared.load();
+        } catch (IOException | RuntimeException e) {
+            shared.release();
+            throw e;
+        }
+        return shared;
+    }
+
+    /**
+     * Returns a shared handle to a drawable resource. The resource is decoded mutable so its pixels
+     * can be pooled once released.
+     */
+    public static SharedBitmap obtainResource(final Resources res, final int drawableId) throws IOException {
+        return obtain("res:" + drawableId, new Loader() {
+            @Override
+            public Bitmap load() {
+                BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inMutable = true;
+                return BitmapFactory.decodeResource(res, drawableId, options);
+            }
+        });
+    }
+
+    private synchronized void load() throws IOException {
+        if (mBitmap != null) {
+            return;
+        }
+        Bitmap bitmap = mLoader.load();
+        if (bitmap == null) {
+            throw new IOException("Unable to decode " + mKey);
+        }
+        mBitmap = bitmap;
+        MemoryTracker.addProcessBytes(MemoryTracker.LAYER_BASE, MemoryTracker.sizeOf(bitmap));
+    }
+
+    public String getKey() {
+        return mKey;
+    }
+
+    /**
+     * Returns a new handle for the same key, decoding again if the pixels were released in the meantime.
+     */
+    public SharedBitmap reopen() throws IOException {
+        return obtain(mKey, mLoader);
+    }
+
+    /**
+     * @return the shared pixels. Must not be modified or recycled by the caller.
+     */
+    public synchronized Bitmap getBitmap() {
+        return mBitmap;
+    }
+
+    /**
+     * Takes an additional reference.
+     */
+    public SharedBitmap acquire() {
+        synchronized (sCache) {
+            if (mRefCount <= 0) {
+                throw new IllegalStateException("Shared bitmap " + mKey + " already released");
+            }
+            mRefCount++;
+        }
+        return this;
+    }
+
+    /**
+     * Drops one reference. The pixels go to the {@link BitmapPool} when the last reference is dropped.
+     */
+    public void release() {
+        synchronized (sCache) {
+            if (mRefCount <= 0) {
+                throw new IllegalStateException("Shared bitmap " + mKey + " already released");
+            }
+            if (--mRefCount > 0) {
+                return;
+            }
+            if (sCache.get(mKey) == this) {
+                sCache.remove(mKey);
+            }
+        }
+        Bitmap bitmap;
+        synchronized (this) {
+            bitmap = mBitmap;
+            mBitmap = null;
+        }
+        if (bitmap != null) {
+            MemoryTracker.addProcessBytes(MemoryTracker.LAYER_BASE, -MemoryTracker.sizeOf(bitmap));
+            BitmapPool.put(bitmap);
+        }
+    }
+
+    public int getRefCount() {
+        synchronized (sCache) {
+            return mRefCount;
+        }
+    }
+}
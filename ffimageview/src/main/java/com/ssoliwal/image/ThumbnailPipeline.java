@@ -0,0 +1,423 @@
+package com.ssoliwal.image;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Makes thumbnails for many images at once with bounded work in flight.
+ * <p>
+ * Each request runs through four stages: bounds probe, subsampled decode, filtered downscale and a write to
+ * the thumbnail cache, after which the thumbnail is delivered on the UI thread. Stages are connected by
+ * bounded queues, so a slow stage holds back the ones before it instead of piling up decoded bitmaps. The
+ * decode stage runs on one thread per core but one, the other stages on one thread each. Thumbnails found
+ * in the cache skip every stage after the probe.
+ * <p>
+ * When the first queue is full, {@link #submit(File, Callback)} blocks or drops the request, depending on
+ * the policy. Cancelled requests are dropped by the next stage they reach.
+ *
+ * @author Shailesh Soliwal
+ */
+
+public class ThumbnailPipeline {
+    /**
+     * {@link #submit(File, Callback)} waits for room in the queue.
+     */
+    public static final int POLICY_BLOCK = 0;
+    /**
+     * {@link #submit(File, Callback)} returns null at once if the queue is full.
+     */
+    public static final int POLICY_DROP = 1;
+
+    private static final String TAG = "ThumbnailPipeline";
+    private static final int DECODE_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+    private static final int JPEG_QUALITY = 90;
+
+    /**
+     * Receives thumbnails on the UI thread. Nothing is delivered for cancelled requests.
+     */
+    public interface Callback {
+        /**
+         * The thumbnail is handed over.
+         */
+        void onThumbnail(File file, Bitmap thumbnail);
+
+        void onError(File file, IOException e);
+    }
+
+    /**
+     * Thumbnail request, as returned by {@link #submit(File, Callback)}.
+     */
+    public static class Request {
+        private final File mFile;
+        private final Callback mCallback;
+        private volatile boolean mCancelled;
+        private File mCacheFile;
+        private ImageSource mSource;
+        private Bitmap mDecoded;
+        private Bitmap mThumbnail;
+
+        Request(File file, Callback callback) {
+            mFile = file;
+            mCallback = callback;
+        }
+
+        public File getFile() {
+            return mFile;
+        }
+
+        /**
+         * Stops the request, for example when its cell scrolls away.
+         */
+        public void cancel() {
+            mCancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        /**
+         * Gives back what the stages so far have allocated.
+         */
+        void release() {
+            if (mSource != null) {
+                mSource.close();
+                mSource = null;
+            }
+            if (mDecoded != null) {
+                BitmapPool.put(mDecoded);
+                mDecoded = null;
+            }
+            if (mThumbnail != null) {
+                BitmapPool.put(mThumbnail);
+                mThumbnail = null;
+            }
+        }
+    }
+
+    private final File mCacheDir;
+    private final int mSize;
+    private final int mPolicy;
+    private final PixelDecoder.Factory mDecoderFactory;
+    private final BlockingQueue<Request> mProbeQueue;
+    private final BlockingQueue<Request> mDecodeQueue = new ArrayBlockingQueue<>(DECODE_THREADS);
+    // Holds full decoded bitmaps, so no more than one per decode thread waits here
+    private final BlockingQueue<Request> mScaleQueue = new ArrayBlockingQueue<>(DECODE_THREADS);
+    private final BlockingQueue<Request> mWriteQueue;
+    private final List<Thread> mThreads = new ArrayList<>();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG | Paint.DITHER_FLAG);
+    private final AtomicInteger mCompleted = new AtomicInteger();
+    private final AtomicInteger mDropped = new AtomicInteger();
+    private volatile boolean mShutdown;
+
+    /**
+     * @param cacheDir      directory thumbnails are cached in
+     * @param size          largest dimension of a thumbnail
+     * @param queueCapacity requests waiting to be probed before {@code policy} applies
+     * @param policy        {@link #POLICY_BLOCK} or {@link #POLICY_DROP}
+     */
+    public ThumbnailPipeline(File cacheDir, int size, int queueCapacity, int policy) {
+        this(cacheDir, size, queueCapacity, policy, null);
+    }
+
+    /**
+     * @param decoderFactory opens the images, or null to read them as {@link FileImageSource}s
+     */
+    public ThumbnailPipeline(File cacheDir, int size, int queueCapacity, int policy,
+                             PixelDecoder.Factory decoderFactory) {
+        mCacheDir = cacheDir;
+        mSize = size;
+        mPolicy = policy;
+        mDecoderFactory = decoderFactory;
+        mProbeQueue = new ArrayBlockingQueue<>(queueCapacity);
+        mWriteQueue = new ArrayBlockingQueue<>(queueCapacity);
+        start(new ProbeStage(), 1);
+        start(new DecodeStage(), DECODE_THREADS);
+        start(new ScaleStage(), 1);
+        start(new WriteStage(), 1);
+    }
+
+    private void start(Stage stage, int threads) {
+        for (int i = 0; i < threads; i++) {
+            Thread thread = new Thread(stage, "FFImageView-thumbnail-" + stage.getName() + "-" + i);
+            mThreads.add(thread);
+            thread.start();
+        }
+    }
+
+    /**
+     * Queues a thumbnail for the given image.
+     *
+     * @return the request, or null if it was dropped because the queue is full or the pipeline shut down.
+     */
+    public Request submit(File file, Callback callback) {
+        if (mShutdown) {
+            return null;
+        }
+        Request request = new Request(file, callback);
+        if (mPolicy == POLICY_BLOCK) {
+            try {
+                mProbeQueue.put(request);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        } else if (!mProbeQueue.offer(request)) {
+            mDropped.incrementAndGet();
+            return null;
+        }
+        return request;
+    }
+
+    /**
+     * @return number of thumbnails delivered.
+     */
+    public int getCompletedCount() {
+        return mCompleted.get();
+    }
+
+    /**
+     * @return number of requests dropped because the queue was full.
+     */
+    public int getDroppedCount() {
+        return mDropped.get();
+    }
+
+    /**
+     * Stops all threads. Queued requests are dropped without a callback.
+     */
+    public void shutdown() {
+        mShutdown = true;
+        for (Thread thread : mThreads) {
+            thread.interrupt();
+        }
+    }
+
+    private void deliver(final Request request) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (request.isCancelled()) {
+                    request.release();
+                    return;
+                }
+                Bitmap thumbnail = request.mThumbnail;
+                request.mThumbnail = null;
+                mCompleted.incrementAndGet();
+                request.mCallback.onThumbnail(request.mFile, thumbnail);
+            }
+        });
+    }
+
+    private void fail(final Request request, final IOException e) {
+        Log.w(TAG, "Unable to create a thumbnail for " + request.mFile, e);
+        request.release();
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!request.isCancelled()) {
+                    request.mCallback.onError(request.mFile, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Worker loop taking requests from one queue and handing them on to the next.
+     */
+    private abstract class Stage implements Runnable {
+        private final BlockingQueue<Request> mInput;
+        private final BlockingQueue<Request> mOutput;
+
+        Stage(BlockingQueue<Request> input, BlockingQueue<Request> output) {
+            mInput = input;
+            mOutput = output;
+        }
+
+        abstract String getName();
+
+        /**
+         * @return true to hand the request to the next stage.
+         */
+        abstract boolean process(Request request) throws IOException;
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            while (!mShutdown) {
+                Request request;
+                try {
+                    request = mInput.take();
+                } catch (InterruptedException e) {
+                    break;
+                }
+                if (request.isCancelled()) {
+                    request.release();
+                    continue;
+                }
+                try {
+                    if (process(request) && mOutput != null) {
+                        // Blocks while the next stage is behind
+                        mOutput.put(request);
+                    }
+                } catch (IOException e) {
+                    fail(request, e);
+                } catch (InterruptedException e) {
+                    request.release();
+                    break;
+                }
+            }
+            drain(mInput);
+        }
+
+        private void drain(BlockingQueue<Request> queue) {
+            Request request;
+            while ((request = queue.poll()) != null) {
+                request.release();
+            }
+        }
+    }
+
+    private class ProbeStage extends Stage {
+        ProbeStage() {
+            super(mProbeQueue, mDecodeQueue);
+        }
+
+        @Override
+        String getName() {
+            return "probe";
+        }
+
+        @Override
+        boolean process(Request request) throws IOException {
+            final File file = request.mFile;
+            request.mCacheFile = new File(mCacheDir, HttpImageSource.hash(
+                    file.getAbsolutePath() + ':' + file.lastModified() + ':' + file.length() + ':' + mSize));
+            if (request.mCacheFile.exists()) {
+                BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inMutable = true;
+                request.mThumbnail = BitmapFactory.decodeFile(request.mCacheFile.getPath(), options);
+                if (request.mThumbnail != null) {
+                    deliver(request);
+                    return false;
+                }
+            }
+            request.mSource = mDecoderFactory != null
+                    ? DecoderImageSource.open(file, mDecoderFactory) : FileImageSource.open(file);
+            return true;
+        }
+    }
+
+    private class DecodeStage extends Stage {
+        DecodeStage() {
+            super(mDecodeQueue, mScaleQueue);
+        }
+
+        @Override
+        String getName() {
+            return "decode";
+        }
+
+        @Override
+        boolean process(Request request) throws IOException {
+            final ImageSource source = request.mSource;
+            request.mDecoded = source.decode(source.computeSampleSize(mSize, mSize));
+            return true;
+        }
+    }
+
+    private class ScaleStage extends Stage {
+        private final Matrix mMatrix = new Matrix();
+
+        ScaleStage() {
+            super(mScaleQueue, mWriteQueue);
+        }
+
+        @Override
+        String getName() {
+            return "scale";
+        }
+
+        @Override
+        boolean process(Request request) {
+            final ImageSource source = request.mSource;
+            final Bitmap decoded = request.mDecoded;
+            final int rotation = source.getRotation();
+            final boolean swap = rotation == 90 || rotation == 270;
+            final int width = swap ? decoded.getHeight() : decoded.getWidth();
+            final int height = swap ? decoded.getWidth() : decoded.getHeight();
+            final float scale = Math.min(1f, (float) mSize / Math.max(width, height));
+            final int thumbWidth = Math.max(1, Math.round(width * scale));
+            final int thumbHeight = Math.max(1, Math.round(height * scale));
+
+            Bitmap thumbnail = BitmapPool.obtain(thumbWidth, thumbHeight, Bitmap.Config.ARGB_8888);
+            // ARGB_8888 always reports alpha, and a pooled bitmap keeps what its last user set
+            thumbnail.setHasAlpha(source.hasAlpha());
+            if (source.hasAlpha()) {
+                thumbnail.eraseColor(0);
+            }
+            // Rotate around the centre of the decoded bitmap, then scale it into the thumbnail
+            mMatrix.setRotate(rotation, decoded.getWidth() / 2f, decoded.getHeight() / 2f);
+            mMatrix.postTranslate((width - decoded.getWidth()) / 2f, (height - decoded.getHeight()) / 2f);
+            mMatrix.postScale((float) thumbWidth / width, (float) thumbHeight / height);
+            new Canvas(thumbnail).drawBitmap(decoded, mMatrix, mPaint);
+
+            request.mThumbnail = thumbnail;
+            request.mSource.close();
+            request.mSource = null;
+            BitmapPool.put(decoded);
+            request.mDecoded = null;
+            return true;
+        }
+    }
+
+    private class WriteStage extends Stage {
+        WriteStage() {
+            super(mWriteQueue, null);
+        }
+
+        @Override
+        String getName() {
+            return "write";
+        }
+
+        @Override
+        boolean process(Request request) throws IOException {
+            final Bitmap thumbnail = request.mThumbnail;
+            File temp = new File(request.mCacheFile.getPath() + ".tmp");
+            FileOutputStream out = new FileOutputStream(temp);
+            try {
+                if (thumbnail.hasAlpha()) {
+                    thumbnail.compress(Bitmap.CompressFormat.PNG, 100, out);
+                } else {
+                    thumbnail.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+                }
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(request.mCacheFile)) {
+                temp.delete();
+                Log.w(TAG, "Unable to cache the thumbnail of " + request.mFile);
+            }
+            deliver(request);
+            return false;
+        }
+    }
+}
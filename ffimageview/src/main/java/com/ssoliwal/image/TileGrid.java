@@ -0,0 +1,112 @@
+package com.ssoliwal.image;
+
+import java.io.IOException;
+
+/**
+ * Cuts a source into tiles at power of two sample levels. A tile of level n covers {@code tileSize << n}
+ * source pixels in each direction and decodes to at most {@code tileSize} pixels; tiles at the right and
+ * bottom edge are cut short by the source.
+ * <p>
+ * Plain ints only, so the tiling is tested off the device against any {@link PixelDecoder}.
+ *
+ * @author Shailesh Soliwal
+ */
+
+final class TileGrid {
+    private final int mWidth;
+    private final int mHeight;
+    private final int mTileSize;
+
+    TileGrid(int width, int height, int tileSize) {
+        mWidth = width;
+        mHeight = height;
+        mTileSize = tileSize;
+    }
+
+    int getTileSize() {
+        return mTileSize;
+    }
+
+    /**
+     * @return source pixels covered by a tile of the given level, in each direction.
+     */
+    int getSpan(int level) {
+        return mTileSize << level;
+    }
+
+    int getCols(int level) {
+        return (mWidth + getSpan(level) - 1) / getSpan(level);
+    }
+
+    int getRows(int level) {
+        return (mHeight + getSpan(level) - 1) / getSpan(level);
+    }
+
+    /**
+     * @return column of the tile containing the given source x, clamped to the grid.
+     */
+    int colAt(int level, float x) {
+        return clamp((int) x / getSpan(level), getCols(level));
+    }
+
+    /**
+     * @return row of the tile containing the given source y, clamped to the grid.
+     */
+    int rowAt(int level, float y) {
+        return clamp((int) y / getSpan(level), getRows(level));
+    }
+
+    int getLeft(int level, int col) {
+        return col * getSpan(level);
+    }
+
+    int getTop(int level, int row) {
+        return row * getSpan(level);
+    }
+
+    int getRight(int level, int col) {
+        return Math.min((col + 1) * getSpan(level), mWidth);
+    }
+
+    int getBottom(int level, int row) {
+        return Math.min((row + 1) * getSpan(level), mHeight);
+    }
+
+    /**
+     * @return width of the given tile once decoded.
+     */
+    int getTileWidth(int level, int col) {
+        return (getRight(level, col) - getLeft(level, col) + (1 << level) - 1) >> level;
+    }
+
+    /**
+     * @return height of the given tile once decoded.
+     */
+    int getTileHeight(int level, int row) {
+        return (getBottom(level, row) - getTop(level, row) + (1 << level) - 1) >> level;
+    }
+
+    /**
+     * @return the first level whose whole image is not wider than a preview of the given width. Tiles of
+     * that level and above would not show more than the preview does.
+     */
+    int getPreviewLevel(int previewWidth) {
+        int level = 0;
+        while (mWidth >> (level + 1) >= previewWidth) {
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * Decodes a tile into the top left corner of the target.
+     */
+    void decodeTile(PixelDecoder decoder, int level, int col, int row, PixelTarget target) throws IOException {
+        decoder.decodeRegion(getLeft(level, col), getTop(level, row), getRight(level, col),
+                getBottom(level, row), 1 << level, target);
+    }
+
+    private static int clamp(int value, int count) {
+        return Math.max(0, Math.min(count - 1, value));
+    }
+}
@@ -0,0 +1,510 @@
+package com.ssoliwal.image;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.IOException;
+import java.util.concurrent.Future;
+
+/**
+ * Draws an image that is larger than the maximum texture size of the canvas.
+ * <p>
+ * While the image is shown small enough a subsampled preview that fits in one texture is drawn. When zoomed
+ * in further, the source is cut into texture sized tiles and only tiles that intersect the viewport are
+ * loaded and drawn, on top of the preview. Tiles that left the viewport stay in a {@link TileTable} up to
+ * {@link #MAX_RETAINED_BYTES}; least recently drawn ones are then evicted to the {@link BitmapPool}, or to
+ * the {@link CompressedCache} if reloading them from the source would mean decoding. Compressed tiles are
+ * keyed by the source's {@link TileSource#getCacheKey() identity}, so a later renderer of the same image
+ * finds them.
+ * <p>
+ * Tiles are loaded on the {@link DecodeQueue}, also when cut from a bitmap in memory, so a frame never
+ * waits for them; the preview is drawn in their place until they arrive. A preview the renderer makes
+ * itself is scaled there too, nothing is drawn before it arrives.
+ * <p>
+ * Tiles are cut by a {@link TileGrid} from power of two sample levels chosen by {@link ZoomLevels}, so
+ * that zooming keeps hitting the same cached tiles instead of decoding at every new scale.
+ *
+ * @author Shailesh Soliwal
+ */
+
+class TileRenderer {
+    private static final int MAX_TILE_SIZE = 1024;
+    private static final int MAX_PREVIEW_SIZE = 2048;
+    // Tiles outside the viewport are kept while all tiles take less than this
+    private static final long MAX_RETAINED_BYTES = 16L * 1024 * 1024;
+    // Largest distance, in levels, an animation target is moved to end on a cached level
+    private static final float SNAP_RANGE = 0.4f;
+    private static final int MAX_LEVELS = 64;
+
+    private final TileSource mSource;
+    // Identity of the tiles in the compressed cache, null if they are not cached there
+    private final String mCacheIdentity;
+    private final TileGrid mGrid;
+    private final TileTable<Bitmap> mTiles = new TileTable<>(64);
+    private final TileTable<Future<?>> mPending = new TileTable<>(16);
+    // Null until a preview made by the renderer arrives
+    private Bitmap mPreview;
+    private Future<?> mPreviewLoad;
+    private final boolean mOwnsPreview;
+    private final int mPreviewLevel;
+    private final ZoomLevels mLevels;
+    // Level drawn last, -1 before the first draw
+    private int mLevel = -1;
+    // Tiles per level in mTiles
+    private final int[] mLevelTiles = new int[MAX_LEVELS];
+    // Bit n is set if tiles of level n were handed to the compressed cache
+    private long mCompressedLevels;
+    private final Runnable mOnTileLoaded;
+    private final ViewMetrics mMetrics;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private volatile boolean mReleased;
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Matrix mInverse = new Matrix();
+    private final RectF mVisible = new RectF();
+    private final RectF mDst = new RectF();
+    private final Rect mSrc = new Rect();
+    private long mTileBytes;
+    // Tiles were loaded since the last draw
+    private boolean mNewTiles;
+    // Part of mTileBytes saved by tiles held as RGB_565
+    private long mSavedTileBytes;
+    // Tiles of the current level inside the viewport, from the last draw
+    private int mFirstCol;
+    private int mLastCol = -1;
+    private int mFirstRow;
+    private int mLastRow = -1;
+
+    /**
+     * @param source         the pixels to draw
+     * @param maxTextureSize largest bitmap dimension the target canvas can draw
+     * @param preview        subsampled copy of the source that fits in a texture, or null to create one.
+     *                       A given preview stays owned by the caller.
+     * @param onTileLoaded   run on the UI thread when a tile loaded in the background is ready
+     * @param metrics        receives level switches and tile loads
+     */
+    TileRenderer(TileSource source, int maxTextureSize, Bitmap preview, Runnable onTileLoaded,
+                 ViewMetrics metrics) {
+        mSource = source;
+        mOnTileLoaded = onTileLoaded;
+        mMetrics = metrics;
+        mGrid = new TileGrid(source.getWidth(), source.getHeight(), Math.min(MAX_TILE_SIZE, maxTextureSize));
+        // Tiles are cut to the texture size, so renderers with another size cannot share them
+        final String cacheKey = source.isInMemory() ? null : source.getCacheKey();
+        mCacheIdentity = cacheKey != null ? cacheKey + '@' + mGrid.getTileSize() : null;
+
+        mOwnsPreview = preview == null;
+        final int previewWidth;
+        if (preview != null) {
+            mPreview = preview;
+            previewWidth = preview.getWidth();
+        } else {
+            int previewSize = Math.min(MAX_PREVIEW_SIZE, maxTextureSize);
+            int sampleSize = 1;
+            while (source.getWidth() / sampleSize > previewSize
+                    || source.getHeight() / sampleSize > previewSize) {
+                sampleSize *= 2;
+            }
+            previewWidth = Math.max(1, source.getWidth() / sampleSize);
+            mPreviewLoad = DecodeQueue.submit(new PreviewTask(sampleSize));
+        }
+        // Levels at or above the one of the preview are drawn from the preview
+        mPreviewLevel = mGrid.getPreviewLevel(previewWidth);
+        mLevels = new ZoomLevels(mPreviewLevel);
+    }
+
+    /**
+     * @return true if the given bitmap does not fit in a texture of the canvas.
+     */
+    static boolean needsTiling(Canvas canvas, Bitmap bitmap) {
+        return bitmap.getWidth() > canvas.getMaximumBitmapWidth()
+                || bitmap.getHeight() > canvas.getMaximumBitmapHeight();
+    }
+
+    TileSource getSource() {
+        return mSource;
+    }
+
+    /**
+     * @return the subsampled copy of the whole source drawn below the tiles.
+     */
+    Bitmap getPreview() {
+        return mPreview;
+    }
+
+    long getTileBytes() {
+        return mTileBytes;
+    }
+
+    /**
+     * @return bytes the tiles would take on top of {@link #getTileBytes()} in ARGB_8888.
+     */
+    long getSavedTileBytes() {
+        return mSavedTileBytes;
+    }
+
+    /**
+     * @return bytes of the preview owned by this renderer.
+     */
+    /**
+     * @return true if the preview was made by the renderer rather than given to it.
+     */
+    boolean ownsPreview() {
+        return mOwnsPreview;
+    }
+
+    long getPreviewBytes() {
+        return mOwnsPreview ? MemoryTracker.sizeOf(mPreview) : 0;
+    }
+
+    long getSavedPreviewBytes() {
+        return mOwnsPreview ? MemoryTracker.savedBytesOf(mPreview) : 0;
+    }
+
+    /**
+     * Returns the view scale near the given one at which a cached level is drawn 1:1, so that an animation
+     * ending there draws from tiles that need no decoding. Returns the given scale if no cached level is
+     * close enough.
+     *
+     * @param viewScale  scale of the image to view matrix
+     * @param imageWidth width of the image rectangle the source is stretched over
+     */
+    float snapScale(float viewScale, int imageWidth) {
+        final float sourceScale = (float) imageWidth / mSource.getWidth();
+        final float exact = ZoomLevels.exactLevel(viewScale * sourceScale);
+        float snapped = viewScale;
+        float distance = SNAP_RANGE;
+        for (int level = 0; level <= mPreviewLevel; level++) {
+            if (isCached(level) && Math.abs(exact - level) <= distance) {
+                distance = Math.abs(exact - level);
+                snapped = ZoomLevels.scaleOf(level) / sourceScale;
+            }
+        }
+        return snapped;
+    }
+
+    private boolean isCached(int level) {
+        return level == mPreviewLevel || mLevelTiles[level] > 0 || (mCompressedLevels & (1L << level)) != 0;
+    }
+
+    /**
+     * Draws the source, stretched over the image rectangle, through the given image to view matrix.
+     *
+     * @param highQuality false to draw unfiltered and from tiles already loaded only
+     */
+    void draw(Canvas canvas, Matrix matrix, int viewWidth, int viewHeight, int imageWidth, int imageHeight,
+              boolean highQuality) {
+        mPaint.setFilterBitmap(highQuality);
+        mPaint.setDither(highQuality);
+        final float sourceScaleX = (float) imageWidth / mSource.getWidth();
+        final float sourceScaleY = (float) imageHeight / mSource.getHeight();
+
+        int saveCount = canvas.save();
+        canvas.concat(matrix);
+        if (mPreview != null) {
+            mDst.set(0, 0, imageWidth, imageHeight);
+            canvas.drawBitmap(mPreview, null, mDst, mPaint);
+        }
+
+        // Screen pixels per source pixel; tiles are only worth it when the preview would be magnified
+        final float screenScale = matrix.mapRadius(1f) * sourceScaleX;
+        final int level = mLevels.select(screenScale);
+        if (level != mLevel) {
+            if (mLevel >= 0) {
+                mMetrics.onLevelSwitch();
+            }
+            mLevel = level;
+        }
+        if (level >= mPreviewLevel) {
+            setVisibleTiles(0, -1, 0, -1);
+            canvas.restoreToCount(saveCount);
+            return;
+        }
+
+        // Find the part of the source inside the viewport
+        matrix.invert(mInverse);
+        mVisible.set(0, 0, viewWidth, viewHeight);
+        mInverse.mapRect(mVisible);
+        setVisibleTiles(mGrid.colAt(level, mVisible.left / sourceScaleX),
+                mGrid.colAt(level, mVisible.right / sourceScaleX),
+                mGrid.rowAt(level, mVisible.top / sourceScaleY),
+                mGrid.rowAt(level, mVisible.bottom / sourceScaleY));
+
+        canvas.scale(sourceScaleX, sourceScaleY);
+        for (int row = mFirstRow; row <= mLastRow; row++) {
+            for (int col = mFirstCol; col <= mLastCol; col++) {
+                final long key = TileTable.key(level, col, row);
+                Bitmap tile = highQuality ? getTile(key) : mTiles.get(key);
+                if (tile != null) {
+                    setTileRegion(mSrc, level, col, row);
+                    mDst.set(mSrc);
+                    canvas.drawBitmap(tile, null, mDst, mPaint);
+                }
+            }
+        }
+        canvas.restoreToCount(saveCount);
+        if (mNewTiles) {
+            // Loaded tiles are drawn in the next frame at the latest
+            mNewTiles = false;
+            PhaseTracer.mark(PhaseTrace.PHASE_UPLOAD);
+        }
+        trimRetained(MAX_RETAINED_BYTES);
+    }
+
+    /**
+     * Sets the tiles of the current level inside the viewport and cancels loads of tiles outside of it.
+     */
+    private void setVisibleTiles(int firstCol, int lastCol, int firstRow, int lastRow) {
+        mFirstCol = firstCol;
+        mLastCol = lastCol;
+        mFirstRow = firstRow;
+        mLastRow = lastRow;
+        for (int slot = mPending.eldest(); slot >= 0; ) {
+            final int next = mPending.newer(slot);
+            if (!isVisible(mPending.keyAt(slot))) {
+                mPending.removeAt(slot).cancel(false);
+            }
+            slot = next;
+        }
+    }
+
+    private boolean isVisible(long key) {
+        final int col = TileTable.colOf(key);
+        final int row = TileTable.rowOf(key);
+        return TileTable.levelOf(key) == mLevel && col >= mFirstCol && col <= mLastCol
+                && row >= mFirstRow && row <= mLastRow;
+    }
+
+    /**
+     * Evicts the least recently drawn tiles until all tiles take at most the given bytes. Tiles visible in
+     * the last draw are never evicted.
+     */
+    void trimRetained(long maxBytes) {
+        while (mTileBytes > maxBytes) {
+            final int slot = mTiles.eldest();
+            if (slot < 0 || isVisible(mTiles.keyAt(slot))) {
+                // Visible tiles were drawn last, everything older is gone already
+                return;
+            }
+            evictTile(slot);
+        }
+    }
+
+    /**
+     * Sets the given rect to the source region covered by a tile.
+     */
+    private void setTileRegion(Rect region, int level, int col, int row) {
+        region.set(mGrid.getLeft(level, col), mGrid.getTop(level, row), mGrid.getRight(level, col),
+                mGrid.getBottom(level, row));
+    }
+
+    /**
+     * Decodes a tile on a decode thread. Sources that are a {@link PixelDecoder} are cut by the grid straight
+     * into a pooled bitmap of the tile's size; others cut the region themselves.
+     *
+     * @return the tile, or null if it could not be decoded.
+     */
+    private Bitmap decodeTile(int level, int col, int row) {
+        if (!(mSource instanceof PixelDecoder)) {
+            Rect region = new Rect();
+            setTileRegion(region, level, col, row);
+            return mSource.decodeRegion(region, 1 << level);
+        }
+        final Bitmap tile = BitmapPool.obtain(mGrid.getTileWidth(level, col), mGrid.getTileHeight(level, row),
+                mSource.getConfig());
+        if (mSource.hasAlpha()) {
+            tile.eraseColor(0);
+        }
+        try {
+            mGrid.decodeTile((PixelDecoder) mSource, level, col, row, new BitmapPixelTarget(tile));
+            return tile;
+        } catch (IOException e) {
+            BitmapPool.put(tile);
+            return null;
+        } catch (RuntimeException e) {
+            BitmapPool.put(tile);
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the given tile, or null if it is still being loaded.
+     */
+    private Bitmap getTile(long key) {
+        Bitmap tile = mTiles.get(key);
+        if (tile == null && mPending.peek(key) == null) {
+            mPending.put(key, DecodeQueue.submit(new TileTask(key)));
+        }
+        return tile;
+    }
+
+    private void onTileLoaded(long key, Bitmap tile) {
+        if (tile != null) {
+            mTiles.put(key, tile);
+            mNewTiles = true;
+            mTileBytes += MemoryTracker.sizeOf(tile);
+            mSavedTileBytes += MemoryTracker.savedBytesOf(tile);
+            mLevelTiles[TileTable.levelOf(key)]++;
+        }
+    }
+
+    /**
+     * Scales the whole source down to the preview in the background and hands it to the UI thread.
+     */
+    private class PreviewTask implements Runnable {
+        private final int mSampleSize;
+
+        PreviewTask(int sampleSize) {
+            mSampleSize = sampleSize;
+        }
+
+        @Override
+        public void run() {
+            if (mReleased) {
+                return;
+            }
+            Bitmap preview;
+            PhaseTracer.begin(PhaseTrace.PHASE_DECODE);
+            try {
+                preview = mSource.decodeRegion(new Rect(0, 0, mSource.getWidth(), mSource.getHeight()),
+                        mSampleSize);
+            } finally {
+                PhaseTracer.end(PhaseTrace.PHASE_DECODE);
+            }
+            final Bitmap result = preview;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mReleased) {
+                        BitmapPool.put(result);
+                        return;
+                    }
+                    mPreview = result;
+                    mPreviewLoad = null;
+                    mOnTileLoaded.run();
+                }
+            });
+        }
+    }
+
+    /**
+     * Loads one tile in the background and hands it to the UI thread.
+     */
+    private class TileTask implements Runnable {
+        private final long mKey;
+
+        TileTask(long key) {
+            mKey = key;
+        }
+
+        @Override
+        public void run() {
+            final int level = TileTable.levelOf(mKey);
+            final int col = TileTable.colOf(mKey);
+            final int row = TileTable.rowOf(mKey);
+            Bitmap tile = null;
+            if (mCacheIdentity != null) {
+                PhaseTracer.begin(PhaseTrace.PHASE_CACHE_LOOKUP);
+                try {
+                    final CompressedCache cache = CompressedCache.getInstance();
+                    tile = cache.get(CompressedCache.tileKey(cache.getImageId(mCacheIdentity), level, col, row), 1,
+                            mSource.getConfig());
+                } finally {
+                    PhaseTracer.end(PhaseTrace.PHASE_CACHE_LOOKUP);
+                }
+            }
+            final boolean cached = tile != null;
+            if (tile == null) {
+                PhaseTracer.begin(PhaseTrace.PHASE_DECODE);
+                try {
+                    tile = decodeTile(level, col, row);
+                } finally {
+                    PhaseTracer.end(PhaseTrace.PHASE_DECODE);
+                }
+            }
+            final Bitmap result = tile;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (cached) {
+                        mMetrics.onTileCacheHit();
+                    } else {
+                        mMetrics.onTileDecode();
+                    }
+                    if (mReleased || mPending.remove(mKey) == null || mTiles.peek(mKey) != null) {
+                        BitmapPool.put(result);
+                        return;
+                    }
+                    onTileLoaded(mKey, result);
+                    mOnTileLoaded.run();
+                }
+            });
+        }
+    }
+
+    private void evictTile(int slot) {
+        evictTile(slot, true);
+    }
+
+    /**
+     * @param compress hand the tile to the compressed cache if its source has an identity, else pool it
+     */
+    private void evictTile(int slot, boolean compress) {
+        final long key = mTiles.keyAt(slot);
+        final Bitmap tile = mTiles.removeAt(slot);
+        final int level = TileTable.levelOf(key);
+        mTileBytes -= MemoryTracker.sizeOf(tile);
+        mSavedTileBytes -= MemoryTracker.savedBytesOf(tile);
+        mLevelTiles[level]--;
+        if (compress && mCacheIdentity != null) {
+            final CompressedCache cache = CompressedCache.getInstance();
+            cache.put(CompressedCache.tileKey(cache.getImageId(mCacheIdentity), level, TileTable.colOf(key),
+                    TileTable.rowOf(key)), tile, true);
+            mCompressedLevels |= 1L << level;
+        } else {
+            BitmapPool.put(tile);
+        }
+    }
+
+    /**
+     * Drops all tiles into the compressed cache; the visible ones are reloaded on the next draw.
+     */
+    void trimTiles() {
+        dropTiles(true);
+    }
+
+    private void dropTiles(boolean compress) {
+        for (int slot = mPending.eldest(); slot >= 0; ) {
+            final int next = mPending.newer(slot);
+            mPending.removeAt(slot).cancel(false);
+            slot = next;
+        }
+        for (int slot = mTiles.eldest(); slot >= 0; ) {
+            final int next = mTiles.newer(slot);
+            evictTile(slot, compress);
+            slot = next;
+        }
+    }
+
+    /**
+     * Drops all tiles and the preview. The renderer must not be used afterwards. Tiles go back to the
+     * {@link BitmapPool} for the next image rather than being encoded.
+     */
+    void release() {
+        dropTiles(false);
+        mReleased = true;
+        if (mPreviewLoad != null) {
+            mPreviewLoad.cancel(false);
+            mPreviewLoad = null;
+        }
+        if (mOwnsPreview && mPreview != null) {
+            BitmapPool.put(mPreview);
+            mPreview = null;
+        }
+    }
+}
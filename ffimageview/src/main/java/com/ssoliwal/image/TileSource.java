@@ -0,0 +1,43 @@
+package com.ssoliwal.image;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+
+/**
+ * Pixels a {@link TileRenderer} cuts its preview and tiles from.
+ *
+ * @author Shailesh Soliwal
+ */
+
+interface TileSource {
+
+    int getWidth();
+
+    int getHeight();
+
+    boolean hasAlpha();
+
+    /**
+     * @return true if the pixels are held in memory, so reloading a region costs less than inflating a
+     * compressed copy of it.
+     */
+    boolean isInMemory();
+
+    /**
+     * @return config of the bitmaps returned by {@link #decodeRegion(Rect, int)}.
+     */
+    Bitmap.Config getConfig();
+
+    /**
+     * @return identity of the pixels that stays the same across renderers and changes with the image, such as
+     * its path, size and modification time; null if there is none. Tiles of a source without one are never
+     * kept in the {@link CompressedCache}.
+     */
+    String getCacheKey();
+
+    /**
+     * Returns the given region of the source, subsampled by {@code sampleSize}. The result may come from
+     * the {@link BitmapPool} and is owned by the caller.
+     */
+    Bitmap decodeRegion(Rect region, int sampleSize);
+}
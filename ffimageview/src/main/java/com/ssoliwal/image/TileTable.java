@@ -0,0 +1,283 @@
+package com.ssoliwal.image;
+
+import java.util.Arrays;
+
+/**
+ * Map from packed tile positions to values, ordered from least to most recently used.
+ * <p>
+ * Keys are primitive longs built with {@link #key(int, int, int)} and stored in an open addressing table
+ * with linear probing, so lookups on the draw path neither box nor allocate. The recency order is an
+ * intrusive doubly linked list threaded through the slots. Removed slots become tombstones instead of
+ * moving other entries, so the table can be walked with {@link #eldest()} and {@link #newer(int)} while
+ * entries are removed. Only {@link #put(long, Object)} may grow the table.
+ * <p>
+ * Not thread safe.
+ *
+ * @author Shailesh Soliwal
+ */
+
+class TileTable<T> {
+    private static final long EMPTY = -1L;
+    private static final long DELETED = -2L;
+    private static final int NONE = -1;
+
+    private long[] mKeys;
+    private Object[] mValues;
+    private int[] mPrev;
+    private int[] mNext;
+    private int mMask;
+    private int mEldest = NONE;
+    private int mNewest = NONE;
+    private int mSize;
+    // Live entries plus tombstones
+    private int mUsed;
+    // Arrays of the last table of the same size, reused when tombstones are dropped
+    private long[] mSpareKeys;
+    private Object[] mSpareValues;
+    private int[] mSparePrev;
+    private int[] mSpareNext;
+
+    /**
+     * @param capacity number of entries to hold before the table grows
+     */
+    TileTable(int capacity) {
+        allocate(tableSize(capacity));
+    }
+
+    /**
+     * Packs a tile position into a key: 6 bits of level and 21 bits each for column and row.
+     */
+    static long key(int level, int col, int row) {
+        return ((long) (level & 0x3F) << 42) | ((long) (col & 0x1FFFFF) << 21) | (row & 0x1FFFFF);
+    }
+
+    static int levelOf(long key) {
+        return (int) (key >>> 42) & 0x3F;
+    }
+
+    static int colOf(long key) {
+        return (int) (key >>> 21) & 0x1FFFFF;
+    }
+
+    static int rowOf(long key) {
+        return (int) key & 0x1FFFFF;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns the value for the given key and marks it most recently used, or returns null.
+     */
+    T get(long key) {
+        final int slot = find(key);
+        if (slot == NONE) {
+            return null;
+        }
+        unlink(slot);
+        linkNewest(slot);
+        return valueAt(slot);
+    }
+
+    /**
+     * Returns the value for the given key without changing the recency order, or returns null.
+     */
+    T peek(long key) {
+        final int slot = find(key);
+        return slot == NONE ? null : valueAt(slot);
+    }
+
+    /**
+     * Maps the key to the given value, as most recently used.
+     *
+     * @return the previous value, or null.
+     */
+    T put(long key, T value) {
+        int slot = find(key);
+        if (slot != NONE) {
+            T previous = valueAt(slot);
+            mValues[slot] = value;
+            unlink(slot);
+            linkNewest(slot);
+            return previous;
+        }
+        if ((mUsed + 1) * 4 > mKeys.length * 3) {
+            // Grow if mostly live, otherwise just drop the tombstones
+            rehash(tableSize(Math.max(mSize + 1, mKeys.length / 4) * 2));
+        }
+        slot = hash(key) & mMask;
+        while (mKeys[slot] != EMPTY && mKeys[slot] != DELETED) {
+            slot = (slot + 1) & mMask;
+        }
+        if (mKeys[slot] == EMPTY) {
+            mUsed++;
+        }
+        mKeys[slot] = key;
+        mValues[slot] = value;
+        mSize++;
+        linkNewest(slot);
+        return null;
+    }
+
+    /**
+     * Removes the given key.
+     *
+     * @return the removed value, or null.
+     */
+    T remove(long key) {
+        final int slot = find(key);
+        return slot == NONE ? null : removeAt(slot);
+    }
+
+    /**
+     * Removes the entry in the given slot, as returned by {@link #eldest()} or {@link #newer(int)}.
+     *
+     * @return the removed value.
+     */
+    T removeAt(int slot) {
+        T value = valueAt(slot);
+        unlink(slot);
+        mKeys[slot] = DELETED;
+        mValues[slot] = null;
+        mSize--;
+        return value;
+    }
+
+    /**
+     * @return slot of the least recently used entry, or -1 if the table is empty.
+     */
+    int eldest() {
+        return mEldest;
+    }
+
+    /**
+     * @return slot of the entry used next after the one in the given slot, or -1 if there is none.
+     */
+    int newer(int slot) {
+        return mNext[slot];
+    }
+
+    long keyAt(int slot) {
+        return mKeys[slot];
+    }
+
+    @SuppressWarnings("unchecked")
+    T valueAt(int slot) {
+        return (T) mValues[slot];
+    }
+
+    void clear() {
+        Arrays.fill(mKeys, EMPTY);
+        Arrays.fill(mValues, null);
+        mEldest = NONE;
+        mNewest = NONE;
+        mSize = 0;
+        mUsed = 0;
+    }
+
+    private int find(long key) {
+        int slot = hash(key) & mMask;
+        long current;
+        while ((current = mKeys[slot]) != EMPTY) {
+            if (current == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mMask;
+        }
+        return NONE;
+    }
+
+    private void unlink(int slot) {
+        final int prev = mPrev[slot];
+        final int next = mNext[slot];
+        if (prev == NONE) {
+            mEldest = next;
+        } else {
+            mNext[prev] = next;
+        }
+        if (next == NONE) {
+            mNewest = prev;
+        } else {
+            mPrev[next] = prev;
+        }
+    }
+
+    private void linkNewest(int slot) {
+        mPrev[slot] = mNewest;
+        mNext[slot] = NONE;
+        if (mNewest == NONE) {
+            mEldest = slot;
+        } else {
+            mNext[mNewest] = slot;
+        }
+        mNewest = slot;
+    }
+
+    private void allocate(int size) {
+        mKeys = new long[size];
+        mValues = new Object[size];
+        mPrev = new int[size];
+        mNext = new int[size];
+        mMask = size - 1;
+        clear();
+    }
+
+    /**
+     * Moves all entries into a table of the given size, keeping their order. Dropping tombstones keeps the
+     * size, and then swaps between two sets of arrays instead of allocating.
+     */
+    private void rehash(int size) {
+        final long[] keys = mKeys;
+        final Object[] values = mValues;
+        final int[] prev = mPrev;
+        final int[] next = mNext;
+        final int eldest = mEldest;
+        final boolean sameSize = size == keys.length;
+        if (sameSize && mSpareKeys != null) {
+            mKeys = mSpareKeys;
+            mValues = mSpareValues;
+            mPrev = mSparePrev;
+            mNext = mSpareNext;
+            clear();
+        } else {
+            allocate(size);
+        }
+        for (int slot = eldest; slot != NONE; slot = next[slot]) {
+            @SuppressWarnings("unchecked")
+            T value = (T) values[slot];
+            put(keys[slot], value);
+        }
+        if (sameSize) {
+            Arrays.fill(values, null);
+            mSpareKeys = keys;
+            mSpareValues = values;
+            mSparePrev = prev;
+            mSpareNext = next;
+        } else {
+            mSpareKeys = null;
+            mSpareValues = null;
+            mSparePrev = null;
+            mSpareNext = null;
+        }
+    }
+
+    private static int tableSize(int capacity) {
+        // Power of two with the load factor at most 3/4
+        int size = 8;
+        while (size * 3 < capacity * 4) {
+            size <<= 1;
+        }
+        return size;
+    }
+
+    private static int hash(long key) {
+        // Finaliser of MurmurHash3; positions of neighbouring tiles differ in their low bits only
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+}
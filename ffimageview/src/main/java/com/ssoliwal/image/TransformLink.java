@@ -0,0 +1,94 @@
+package com.ssoliwal.image;
+
+import android.support.v4.view.ViewCompat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Keeps the transforms of several {@link FFImageView}s in step, for example to compare two versions of an
+ * image side by side.
+ * <p>
+ * When a view of the group changes its transform, the group reads it once on the next animation frame as a
+ * normalised transform: the image point at the view centre as a fraction of the image size, the zoom
+ * relative to the fitted scale and the rotation. Every other view rebuilds its matrix from these values and
+ * clamps it for its own size. Transforms applied by the group are not sent back to it.
+ * <p>
+ * Views join with {@link #add(FFImageView)}; the group must be used on the UI thread.
+ *
+ * @author Shailesh Soliwal
+ */
+
+public class TransformLink {
+    private final List<FFImageView> mViews = new ArrayList<>();
+    // centre x, centre y, zoom and rotation last sent to the group
+    private final float[] mTransform = new float[4];
+    private final float[] mSent = new float[4];
+    private FFImageView mSource;
+    private boolean mScheduled;
+    private final Runnable mDispatchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            dispatch();
+        }
+    };
+
+    /**
+     * Links the view to the group; it takes the transform of the group on the next change. A view is in one
+     * group at most, adding it leaves its previous group.
+     */
+    public void add(FFImageView view) {
+        if (mViews.contains(view)) {
+            return;
+        }
+        TransformLink previous = view.getTransformLink();
+        if (previous != null) {
+            previous.remove(view);
+        }
+        mViews.add(view);
+        view.setTransformLink(this);
+    }
+
+    public void remove(FFImageView view) {
+        if (mViews.remove(view)) {
+            view.setTransformLink(null);
+            if (mSource == view) {
+                mSource = null;
+            }
+        }
+    }
+
+    /**
+     * Called by a view of the group whose transform changed other than through the group.
+     */
+    void onTransformChanged(FFImageView view) {
+        mSource = view;
+        if (!mScheduled) {
+            mScheduled = true;
+            ViewCompat.postOnAnimation(view, mDispatchRunnable);
+        }
+    }
+
+    /**
+     * Sends the transform of the view that changed last to the other views, at most once per frame.
+     */
+    private void dispatch() {
+        mScheduled = false;
+        final FFImageView source = mSource;
+        if (source == null || !source.getNormalizedTransform(mTransform)) {
+            return;
+        }
+        if (Arrays.equals(mTransform, mSent)) {
+            // Nothing changed since the last frame, for example a redraw without a new transform
+            return;
+        }
+        System.arraycopy(mTransform, 0, mSent, 0, mTransform.length);
+        for (int i = 0; i < mViews.size(); i++) {
+            FFImageView view = mViews.get(i);
+            if (view != source) {
+                view.applyNormalizedTransform(mTransform);
+            }
+        }
+    }
+}
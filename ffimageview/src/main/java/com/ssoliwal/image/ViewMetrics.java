@@ -0,0 +1,119 @@
+package com.ssoliwal.image;
+
+/**
+ * Counters collected by a {@link FFImageView} while it runs.
+ * <p>
+ * Values are plain counters updated on the UI thread; read them from the UI thread as well.
+ *
+ * @author Shailesh Soliwal
+ */
+
+public class ViewMetrics {
+    private long mInvalidations;
+    private long mFrames;
+    private long mSlowFrames;
+    private long mQualitySwitches;
+    private long mLevelSwitches;
+    private long mTileCacheHits;
+    private long mTileDecodes;
+
+    void onInvalidate() {
+        mInvalidations++;
+    }
+
+    void onFrame() {
+        mFrames++;
+    }
+
+    void onSlowFrame() {
+        mSlowFrames++;
+    }
+
+    void onQualitySwitch() {
+        mQualitySwitches++;
+    }
+
+    void onLevelSwitch() {
+        mLevelSwitches++;
+    }
+
+    void onTileCacheHit() {
+        mTileCacheHits++;
+    }
+
+    void onTileDecode() {
+        mTileDecodes++;
+    }
+
+    /**
+     * @return number of times the view requested a redraw.
+     */
+    public long getInvalidations() {
+        return mInvalidations;
+    }
+
+    /**
+     * @return number of frames drawn.
+     */
+    public long getFrames() {
+        return mFrames;
+    }
+
+    /**
+     * @return number of frames during interaction that took longer to draw than the {@link RenderQuality}
+     * budget.
+     */
+    public long getSlowFrames() {
+        return mSlowFrames;
+    }
+
+    /**
+     * @return number of switches between full and reduced render quality.
+     */
+    public long getQualitySwitches() {
+        return mQualitySwitches;
+    }
+
+    /**
+     * @return number of times the tile renderer moved to another zoom level. Decodes pending for the old level
+     * are cancelled; its decoded tiles stay retained until the tile budget evicts them.
+     */
+    public long getLevelSwitches() {
+        return mLevelSwitches;
+    }
+
+    /**
+     * @return number of tiles inflated from the {@link CompressedCache}.
+     */
+    public long getTileCacheHits() {
+        return mTileCacheHits;
+    }
+
+    /**
+     * @return number of tiles decoded from the image source.
+     */
+    public long getTileDecodes() {
+        return mTileDecodes;
+    }
+
+    /**
+     * @return share of tile loads served from the {@link CompressedCache}, between 0 and 1.
+     */
+    public float getTileCacheHitRate() {
+        final long loads = mTileCacheHits + mTileDecodes;
+        return loads == 0 ? 0f : (float) mTileCacheHits / loads;
+    }
+
+    /**
+     * Resets all counters to zero.
+     */
+    public void reset() {
+        mInvalidations = 0;
+        mFrames = 0;
+        mSlowFrames = 0;
+        mQualitySwitches = 0;
+        mLevelSwitches = 0;
+        mTileCacheHits = 0;
+        mTileDecodes = 0;
+    }
+}
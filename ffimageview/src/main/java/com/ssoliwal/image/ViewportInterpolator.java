@@ -0,0 +1,76 @@
+package com.ssoliwal.image;
+
+/**
+ * Interpolates between two solved viewports: the scale geometrically, the rotation and the image point at
+ * the view centre linearly, all eased in and out. A frame is a fixed amount of arithmetic whatever the
+ * angle or distance, and the last frame lands exactly on the target.
+ *
+ * @author Shailesh Soliwal
+ */
+
+final class ViewportInterpolator {
+    private float mStartDegrees;
+    private float mStartScale;
+    private float mStartX;
+    private float mStartY;
+    private float mTargetDegrees;
+    private float mTargetScale;
+    private float mTargetX;
+    private float mTargetY;
+    private float mDegrees;
+    private float mScale;
+    private float mX;
+    private float mY;
+
+    void set(float startDegrees, float startScale, float startX, float startY,
+             float targetDegrees, float targetScale, float targetX, float targetY) {
+        mStartDegrees = startDegrees;
+        mStartScale = startScale;
+        mStartX = startX;
+        mStartY = startY;
+        mTargetDegrees = targetDegrees;
+        mTargetScale = targetScale;
+        mTargetX = targetX;
+        mTargetY = targetY;
+        update(0f);
+    }
+
+    boolean isRotating() {
+        return mStartDegrees != mTargetDegrees;
+    }
+
+    /**
+     * @param t progress from 0 to 1; 1 and above give the target as it was set
+     */
+    void update(float t) {
+        if (t >= 1f) {
+            mDegrees = mTargetDegrees;
+            mScale = mTargetScale;
+            mX = mTargetX;
+            mY = mTargetY;
+            return;
+        }
+        // Accelerate then decelerate
+        final float eased = (float) (1 - Math.cos(t * Math.PI)) / 2f;
+        mDegrees = mStartDegrees + (mTargetDegrees - mStartDegrees) * eased;
+        mScale = mStartScale * (float) Math.pow(mTargetScale / mStartScale, eased);
+        mX = mStartX + (mTargetX - mStartX) * eased;
+        mY = mStartY + (mTargetY - mStartY) * eased;
+    }
+
+    float getDegrees() {
+        return mDegrees;
+    }
+
+    float getScale() {
+        return mScale;
+    }
+
+    float getX() {
+        return mX;
+    }
+
+    float getY() {
+        return mY;
+    }
+}
@@ -0,0 +1,78 @@
+package com.ssoliwal.image;
+
+/**
+ * Maps the continuous zoom of a view to power of two sample levels.
+ * <p>
+ * Level n holds the source subsampled by 2^n. The sharpest level that is not magnified is chosen, but a
+ * level is kept until the zoom moves past it by {@link #HYSTERESIS} of a level, so that small pinch
+ * movements keep drawing from, and caching under, the same level instead of decoding a new one.
+ *
+ * @author Shailesh Soliwal
+ */
+
+class ZoomLevels {
+    /**
+     * Part of a level, in powers of two, the zoom may move past the current level before switching.
+     */
+    static final float HYSTERESIS = 0.25f;
+
+    private static final double LOG_2 = Math.log(2);
+
+    private final int mMaxLevel;
+    private int mLevel = -1;
+
+    /**
+     * @param maxLevel coarsest level, used for every zoom below it
+     */
+    ZoomLevels(int maxLevel) {
+        mMaxLevel = Math.max(0, maxLevel);
+    }
+
+    /**
+     * @param screenScale screen pixels per source pixel
+     * @return the level whose samples match the given scale exactly, fractional and not clamped.
+     */
+    static float exactLevel(float screenScale) {
+        return (float) (Math.log(1f / screenScale) / LOG_2);
+    }
+
+    /**
+     * @return the screen scale, in screen pixels per source pixel, at which the given level is drawn 1:1.
+     */
+    static float scaleOf(int level) {
+        return 1f / (1 << level);
+    }
+
+    /**
+     * Chooses the level to draw at the given scale.
+     *
+     * @param screenScale screen pixels per source pixel
+     */
+    int select(float screenScale) {
+        final float exact = exactLevel(screenScale);
+        final int candidate = clamp((int) Math.floor(exact));
+        if (mLevel < 0) {
+            mLevel = candidate;
+        } else if (candidate != mLevel
+                && (exact < mLevel - HYSTERESIS || exact >= mLevel + 1 + HYSTERESIS
+                || candidate == mMaxLevel && exact >= mMaxLevel)) {
+            mLevel = candidate;
+        }
+        return mLevel;
+    }
+
+    /**
+     * @return the level chosen by the last {@link #select(float)}, or -1 if none was chosen yet.
+     */
+    int getLevel() {
+        return mLevel;
+    }
+
+    int getMaxLevel() {
+        return mMaxLevel;
+    }
+
+    private int clamp(int level) {
+        return Math.max(0, Math.min(mMaxLevel, level));
+    }
+}
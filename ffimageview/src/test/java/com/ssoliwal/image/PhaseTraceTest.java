@@ -0,0 +1,142 @@
+package com.ssoliwal.image;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Reading logs written the way {@link PhaseTracer#dump(java.io.OutputStream)} writes them, and pairing their
+ * spans: nested, interleaved across threads and cut off by the ring buffer.
+ *
+ * @author Shailesh Soliwal
+ */
+
+public class PhaseTraceTest {
+    private static final int UI = 1;
+    private static final int DECODER = 7;
+
+    @Test
+    public void readsWhatWasWritten() throws IOException {
+        PhaseTrace trace = new Log()
+                .add(5000, UI, PhaseTrace.PHASE_DRAW, PhaseTrace.EVENT_BEGIN)
+                .add(5100, UI, PhaseTrace.PHASE_UPLOAD, PhaseTrace.EVENT_MARK)
+                .add(5900, DECODER, PhaseTrace.PHASE_DECODE, PhaseTrace.EVENT_BEGIN)
+                .add(8000, UI, PhaseTrace.PHASE_DRAW, PhaseTrace.EVENT_END)
+                .read();
+        assertEquals(4, trace.getEventCount());
+        assertEquals(0, trace.getEventTime(0));
+        assertEquals(900, trace.getEventTime(2));
+        assertEquals(DECODER, trace.getEventThread(2));
+        assertEquals(PhaseTrace.PHASE_UPLOAD, trace.getEventPhase(1));
+        assertEquals(PhaseTrace.EVENT_MARK, trace.getEventType(1));
+        assertEquals(PhaseTrace.EVENT_END, trace.getEventType(3));
+        assertEquals(1, trace.getMarkCount(PhaseTrace.PHASE_UPLOAD));
+        assertEquals(1, trace.getSpanCount(PhaseTrace.PHASE_DRAW));
+        assertEquals(3000, trace.getTotalNanos(PhaseTrace.PHASE_DRAW));
+        // Still running when the log was written
+        assertEquals(0, trace.getSpanCount(PhaseTrace.PHASE_DECODE));
+    }
+
+    @Test
+    public void pairsNestedSpansPerThread() throws IOException {
+        // A draw transforming and clamping, while a decode thread looks a tile up and decodes twice
+        PhaseTrace trace = new Log()
+                .add(0, UI, PhaseTrace.PHASE_DRAW, PhaseTrace.EVENT_BEGIN)
+                .add(10, DECODER, PhaseTrace.PHASE_DECODE, PhaseTrace.EVENT_BEGIN)
+                .add(20, UI, PhaseTrace.PHASE_TRANSFORM, PhaseTrace.EVENT_BEGIN)
+                .add(25, UI, PhaseTrace.PHASE_CLAMP, PhaseTrace.EVENT_BEGIN)
+                .add(30, DECODER, PhaseTrace.PHASE_CACHE_LOOKUP, PhaseTrace.EVENT_BEGIN)
+                .add(35, UI, PhaseTrace.PHASE_CLAMP, PhaseTrace.EVENT_END)
+                .add(50, UI, PhaseTrace.PHASE_TRANSFORM, PhaseTrace.EVENT_END)
+                .add(60, DECODER, PhaseTrace.PHASE_CACHE_LOOKUP, PhaseTrace.EVENT_END)
+                .add(100, DECODER, PhaseTrace.PHASE_DECODE, PhaseTrace.EVENT_END)
+                .add(110, DECODER, PhaseTrace.PHASE_DECODE, PhaseTrace.EVENT_BEGIN)
+                .add(150, UI, PhaseTrace.PHASE_DRAW, PhaseTrace.EVENT_END)
+                .add(160, DECODER, PhaseTrace.PHASE_DECODE, PhaseTrace.EVENT_END)
+                .read();
+        assertSpans(trace, PhaseTrace.PHASE_DRAW, 1, 150, 150);
+        assertSpans(trace, PhaseTrace.PHASE_TRANSFORM, 1, 30, 30);
+        assertSpans(trace, PhaseTrace.PHASE_CLAMP, 1, 10, 10);
+        assertSpans(trace, PhaseTrace.PHASE_CACHE_LOOKUP, 1, 30, 30);
+        assertSpans(trace, PhaseTrace.PHASE_DECODE, 2, 140, 90);
+    }
+
+    @Test
+    public void skipsSpansCutOffByTheRingBuffer() throws IOException {
+        PhaseTrace trace = new Log()
+                // Their begins were overwritten
+                .add(0, UI, PhaseTrace.PHASE_TRANSFORM, PhaseTrace.EVENT_END)
+                .add(5, UI, PhaseTrace.PHASE_DRAW, PhaseTrace.EVENT_END)
+                .add(10, UI, PhaseTrace.PHASE_DRAW, PhaseTrace.EVENT_BEGIN)
+                // Its end was lost, as when the log is stopped and started mid-phase
+                .add(20, UI, PhaseTrace.PHASE_CLAMP, PhaseTrace.EVENT_BEGIN)
+                .add(30, DECODER, PhaseTrace.PHASE_DECODE, PhaseTrace.EVENT_BEGIN)
+                .add(40, UI, PhaseTrace.PHASE_DRAW, PhaseTrace.EVENT_END)
+                // Later spans of the thread still pair up
+                .add(50, UI, PhaseTrace.PHASE_DRAW, PhaseTrace.EVENT_BEGIN)
+                .add(55, UI, PhaseTrace.PHASE_CLAMP, PhaseTrace.EVENT_BEGIN)
+                .add(58, UI, PhaseTrace.PHASE_CLAMP, PhaseTrace.EVENT_END)
+                .add(70, UI, PhaseTrace.PHASE_DRAW, PhaseTrace.EVENT_END)
+                // Other threads are left alone
+                .add(90, DECODER, PhaseTrace.PHASE_DECODE, PhaseTrace.EVENT_END)
+                .read();
+        assertSpans(trace, PhaseTrace.PHASE_TRANSFORM, 0, 0, 0);
+        assertSpans(trace, PhaseTrace.PHASE_DRAW, 2, 50, 30);
+        assertSpans(trace, PhaseTrace.PHASE_CLAMP, 1, 3, 3);
+        assertSpans(trace, PhaseTrace.PHASE_DECODE, 1, 60, 60);
+    }
+
+    @Test
+    public void rejectsOtherData() {
+        for (byte[] data : new byte[][]{
+                {'P', 'N', 'G', 0, 1},
+                {'F', 'F', 'P', 'T', 9, 0, 0, 0, 0},
+                {'F', 'F', 'P', 'T', 1, 0, 0, 0, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1, 99, 0}}) {
+            try {
+                PhaseTrace.read(new ByteArrayInputStream(data));
+                fail("Read a trace from " + Arrays.toString(data));
+            } catch (IOException expected) {
+                // Wrong magic, version or phase
+            }
+        }
+    }
+
+    private static void assertSpans(PhaseTrace trace, int phase, int count, long totalNanos, long maxNanos) {
+        final String name = PhaseTrace.getPhaseName(phase);
+        assertEquals(name, count, trace.getSpanCount(phase));
+        assertEquals(name, totalNanos, trace.getTotalNanos(phase));
+        assertEquals(name, maxNanos, trace.getMaxNanos(phase));
+    }
+
+    /**
+     * Events in the order the ring buffer hands them to {@link PhaseTracer#dump(java.io.OutputStream)}.
+     */
+    private static class Log {
+        private long[] mTimes = new long[0];
+        private int[] mThreads = new int[0];
+        private byte[] mEvents = new byte[0];
+
+        Log add(long time, int thread, int phase, int type) {
+            final int count = mTimes.length;
+            mTimes = Arrays.copyOf(mTimes, count + 1);
+            mThreads = Arrays.copyOf(mThreads, count + 1);
+            mEvents = Arrays.copyOf(mEvents, count + 1);
+            mTimes[count] = time;
+            mThreads[count] = thread;
+            mEvents[count] = (byte) (phase << 2 | type);
+            return this;
+        }
+
+        PhaseTrace read() throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            PhaseTrace.write(out, mTimes, mThreads, mEvents);
+            return PhaseTrace.read(new ByteArrayInputStream(out.toByteArray()));
+        }
+    }
+}
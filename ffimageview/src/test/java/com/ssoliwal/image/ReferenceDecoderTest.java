@@ -0,0 +1,524 @@
+package com.ssoliwal.image;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Decodes PNG and PPM files built sample by sample in the test, and compares every pixel with colours
+ * computed from those samples.
+ *
+ * @author Shailesh Soliwal
+ */
+
+public class ReferenceDecoderTest {
+    private static final int GREY = 0;
+    private static final int RGB = 2;
+    private static final int PALETTE = 3;
+    private static final int GREY_ALPHA = 4;
+    private static final int RGB_ALPHA = 6;
+    // Not a multiple of 8, so packed rows end inside a byte
+    private static final int WIDTH = 13;
+    private static final int HEIGHT = 11;
+
+    private File mDir;
+    private int mFiles;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = Files.createTempDirectory("decoder").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : mDir.listFiles()) {
+            file.delete();
+        }
+        mDir.delete();
+    }
+
+    @Test
+    public void unfiltersEveryFilterType() throws IOException {
+        for (int colorType : new int[]{GREY, RGB, GREY_ALPHA, RGB_ALPHA}) {
+            for (int filter = 0; filter <= 4; filter++) {
+                Image image = new Image(colorType, 8, 1);
+                image.filters = new int[]{filter};
+                check(image);
+            }
+            // Each row with another filter than the one above it
+            Image image = new Image(colorType, 8, 2);
+            image.filters = new int[]{0, 1, 2, 3, 4};
+            check(image);
+        }
+    }
+
+    @Test
+    public void decodesLowBitDepths() throws IOException {
+        for (int bitDepth : new int[]{1, 2, 4}) {
+            Image grey = new Image(GREY, bitDepth, bitDepth);
+            grey.filters = new int[]{0, 1, 2, 3, 4};
+            check(grey);
+
+            Image palette = new Image(PALETTE, bitDepth, 10 + bitDepth);
+            palette.filters = new int[]{4, 3, 2, 1, 0};
+            check(palette);
+        }
+    }
+
+    @Test
+    public void decodesSixteenBitDepth() throws IOException {
+        for (int colorType : new int[]{GREY, RGB, GREY_ALPHA, RGB_ALPHA}) {
+            Image image = new Image(colorType, 16, 20 + colorType);
+            image.filters = new int[]{0, 1, 2, 3, 4};
+            check(image);
+        }
+    }
+
+    @Test
+    public void appliesPaletteTransparency() throws IOException {
+        for (int bitDepth : new int[]{1, 2, 4, 8}) {
+            Image image = new Image(PALETTE, bitDepth, 30 + bitDepth);
+            // Shorter than the palette: the entries after it stay opaque
+            image.trns = new byte[Math.max(1, image.paletteSize / 2)];
+            new Random(bitDepth).nextBytes(image.trns);
+            image.trns[0] = 0;
+            PixelDecoder decoder = check(image);
+            assertTrue(decoder.hasAlpha());
+        }
+        Image opaque = new Image(PALETTE, 8, 40);
+        assertFalse(check(opaque).hasAlpha());
+    }
+
+    @Test
+    public void appliesGreyAndRgbTransparency() throws IOException {
+        for (int bitDepth : new int[]{1, 2, 4, 8, 16}) {
+            Image grey = new Image(GREY, bitDepth, 50 + bitDepth);
+            grey.trns = shortBytes(grey.samples[0]);
+            assertTrue(check(grey).hasAlpha());
+        }
+        for (int bitDepth : new int[]{8, 16}) {
+            Image rgb = new Image(RGB, bitDepth, 60 + bitDepth);
+            // The colour of the second pixel becomes transparent wherever it occurs
+            rgb.trns = new byte[6];
+            for (int channel = 0; channel < 3; channel++) {
+                System.arraycopy(shortBytes(rgb.samples[3 + channel]), 0, rgb.trns, channel * 2, 2);
+            }
+            assertTrue(check(rgb).hasAlpha());
+        }
+        assertFalse(check(new Image(RGB, 8, 70)).hasAlpha());
+    }
+
+    @Test
+    public void decodesRegionsSubsampled() throws IOException {
+        for (int colorType : new int[]{GREY, PALETTE, RGB_ALPHA}) {
+            Image image = new Image(colorType, colorType == PALETTE ? 4 : 16, 80 + colorType);
+            image.filters = new int[]{1, 4, 2, 0, 3};
+            File file = image.write();
+            PixelDecoder decoder = ReferenceDecoder.open(file);
+            int[] expected = image.colors();
+            for (int sampleSize = 1; sampleSize <= 5; sampleSize++) {
+                checkRegion(decoder, expected, 0, 0, WIDTH, HEIGHT, sampleSize);
+                checkRegion(decoder, expected, 3, 2, 11, 9, sampleSize);
+                checkRegion(decoder, expected, 12, 10, 13, 11, sampleSize);
+                checkRegion(decoder, expected, 1, 0, 2, HEIGHT, sampleSize);
+            }
+        }
+    }
+
+    @Test
+    public void readsDataSplitOverChunks() throws IOException {
+        Image image = new Image(RGB_ALPHA, 8, 90);
+        image.filters = new int[]{0, 1, 2, 3, 4};
+        image.chunkSize = 7;
+        image.ancillary = true;
+        check(image);
+    }
+
+    @Test
+    public void readsPngStreamWriterOutput() throws IOException {
+        int[] colors = new int[WIDTH * HEIGHT];
+        Random random = new Random(100);
+        for (int i = 0; i < colors.length; i++) {
+            colors[i] = random.nextInt();
+        }
+        File file = newFile();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            PngStreamWriter writer = new PngStreamWriter(out, WIDTH, HEIGHT);
+            // In uneven bands
+            writer.writeRows(colors, 0, WIDTH, 4);
+            writer.writeRows(colors, 4 * WIDTH, WIDTH, HEIGHT - 4);
+            writer.finish();
+            // As an export does whether or not it finished
+            writer.close();
+        } finally {
+            out.close();
+        }
+        PixelDecoder decoder = ReferenceDecoder.open(file);
+        PixelBuffer buffer = new PixelBuffer(WIDTH, HEIGHT);
+        decoder.decodeRegion(0, 0, WIDTH, HEIGHT, 1, buffer);
+        assertArrayEquals(colors, buffer.getPixels());
+        assertTrue(decoder.hasAlpha());
+    }
+
+    @Test
+    public void scalesPpmMaximumValue() throws IOException {
+        Random random = new Random(110);
+        for (int maxValue : new int[]{1, 15, 255, 1023, 65535}) {
+            for (int channels : new int[]{1, 3}) {
+                int[] samples = new int[WIDTH * HEIGHT * channels];
+                for (int i = 0; i < samples.length; i++) {
+                    samples[i] = random.nextInt(maxValue + 1);
+                }
+                File file = writePpm(channels, maxValue, samples);
+                PixelDecoder decoder = ReferenceDecoder.open(file);
+                assertEquals(WIDTH, decoder.getWidth());
+                assertEquals(HEIGHT, decoder.getHeight());
+                assertFalse(decoder.hasAlpha());
+                int[] expected = new int[WIDTH * HEIGHT];
+                for (int i = 0; i < expected.length; i++) {
+                    int r = scalePpm(samples[i * channels], maxValue);
+                    int g = channels == 1 ? r : scalePpm(samples[i * 3 + 1], maxValue);
+                    int b = channels == 1 ? r : scalePpm(samples[i * 3 + 2], maxValue);
+                    expected[i] = 0xFF000000 | r << 16 | g << 8 | b;
+                }
+                for (int sampleSize = 1; sampleSize <= 3; sampleSize++) {
+                    checkRegion(decoder, expected, 0, 0, WIDTH, HEIGHT, sampleSize);
+                    checkRegion(decoder, expected, 2, 5, 9, 11, sampleSize);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void rejectsUnsupportedFiles() throws IOException {
+        Image interlaced = new Image(RGB, 8, 120);
+        interlaced.interlace = 1;
+        try {
+            ReferenceDecoder.open(interlaced.write());
+            fail("Interlaced PNG opened");
+        } catch (IOException expected) {
+            // Not supported
+        }
+        File text = newFile();
+        Files.write(text.toPath(), "GIF89a".getBytes("US-ASCII"));
+        try {
+            ReferenceDecoder.open(text);
+            fail("GIF opened");
+        } catch (IOException expected) {
+            // Not supported
+        }
+    }
+
+    @Test
+    public void rejectsTruncatedData() throws IOException {
+        Image image = new Image(RGB, 8, 130);
+        byte[] data = Files.readAllBytes(image.write().toPath());
+        File truncated = newFile();
+        Files.write(truncated.toPath(), java.util.Arrays.copyOf(data, data.length - 40));
+        PixelDecoder decoder = ReferenceDecoder.open(truncated);
+        try {
+            decoder.decodeRegion(0, 0, WIDTH, HEIGHT, 1, new PixelBuffer(WIDTH, HEIGHT));
+            fail("Truncated PNG decoded");
+        } catch (IOException expected) {
+            // Ends early or fails its data check
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsRegionOutsideImage() throws IOException {
+        PixelDecoder decoder = ReferenceDecoder.open(new Image(GREY, 8, 140).write());
+        decoder.decodeRegion(0, 0, WIDTH + 1, HEIGHT, 1, new PixelBuffer(WIDTH + 1, HEIGHT));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsSmallTarget() throws IOException {
+        PixelDecoder decoder = ReferenceDecoder.open(new Image(GREY, 8, 150).write());
+        decoder.decodeRegion(0, 0, WIDTH, HEIGHT, 2, new PixelBuffer(WIDTH / 2, HEIGHT / 2));
+    }
+
+    private PixelDecoder check(Image image) throws IOException {
+        PixelDecoder decoder = ReferenceDecoder.open(image.write());
+        assertEquals(WIDTH, decoder.getWidth());
+        assertEquals(HEIGHT, decoder.getHeight());
+        PixelBuffer buffer = new PixelBuffer(WIDTH, HEIGHT);
+        decoder.decodeRegion(0, 0, WIDTH, HEIGHT, 1, buffer);
+        assertArrayEquals(image.toString(), image.colors(), buffer.getPixels());
+        return decoder;
+    }
+
+    /**
+     * Decodes the region and compares it with the top left pixel of every block of the expected image.
+     */
+    private static void checkRegion(PixelDecoder decoder, int[] expected, int left, int top, int right,
+                                    int bottom, int sampleSize) throws IOException {
+        final int width = (right - left + sampleSize - 1) / sampleSize;
+        final int height = (bottom - top + sampleSize - 1) / sampleSize;
+        PixelBuffer buffer = new PixelBuffer(width, height);
+        decoder.decodeRegion(left, top, right, bottom, sampleSize, buffer);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                final int color = expected[(top + y * sampleSize) * WIDTH + left + x * sampleSize];
+                if (buffer.getPixel(x, y) != color) {
+                    fail("Region " + left + "," + top + "-" + right + "," + bottom + " sample size "
+                            + sampleSize + " differs at " + x + "," + y);
+                }
+            }
+        }
+    }
+
+    private File newFile() {
+        return new File(mDir, "image" + mFiles++);
+    }
+
+    private File writePpm(int channels, int maxValue, int[] samples) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        String header = (channels == 1 ? "P5" : "P6") + "\n# written by the test\n" + WIDTH + " " + HEIGHT
+                + "\n" + maxValue + "\n";
+        out.write(header.getBytes("US-ASCII"));
+        for (int sample : samples) {
+            if (maxValue > 255) {
+                out.write(sample >> 8);
+            }
+            out.write(sample);
+        }
+        File file = newFile();
+        Files.write(file.toPath(), out.toByteArray());
+        return file;
+    }
+
+    private static int scalePpm(int value, int maxValue) {
+        return maxValue == 255 ? value : (value * 255 + maxValue / 2) / maxValue;
+    }
+
+    private static byte[] shortBytes(int value) {
+        return new byte[]{(byte) (value >> 8), (byte) value};
+    }
+
+    /**
+     * Random samples of one colour type and bit depth, written as a PNG the way an encoder would.
+     */
+    private class Image {
+        final int colorType;
+        final int bitDepth;
+        final int channels;
+        // Raw samples, channel after channel, pixel after pixel
+        final int[] samples;
+        final int paletteSize;
+        byte[] palette;
+        byte[] trns;
+        int[] filters = {0};
+        int chunkSize = Integer.MAX_VALUE;
+        int interlace;
+        // Put chunks the decoder must skip between the data chunks
+        boolean ancillary;
+
+        Image(int colorType, int bitDepth, long seed) {
+            this.colorType = colorType;
+            this.bitDepth = bitDepth;
+            channels = colorType == RGB ? 3 : colorType == GREY_ALPHA ? 2 : colorType == RGB_ALPHA ? 4 : 1;
+            Random random = new Random(seed);
+            paletteSize = colorType == PALETTE ? Math.min(1 << bitDepth, 200) : 0;
+            if (colorType == PALETTE) {
+                palette = new byte[paletteSize * 3];
+                random.nextBytes(palette);
+            }
+            samples = new int[WIDTH * HEIGHT * channels];
+            final int limit = colorType == PALETTE ? paletteSize : 1 << bitDepth;
+            for (int i = 0; i < samples.length; i++) {
+                samples[i] = random.nextInt(limit);
+            }
+        }
+
+        /**
+         * @return non-premultiplied ARGB colours the samples stand for.
+         */
+        int[] colors() {
+            int[] colors = new int[WIDTH * HEIGHT];
+            for (int i = 0; i < colors.length; i++) {
+                final int s = i * channels;
+                switch (colorType) {
+                    case GREY: {
+                        int v = scale(samples[s]);
+                        boolean transparent = trns != null && samples[s] == readShort(trns, 0);
+                        colors[i] = (transparent ? 0 : 0xFF000000) | v << 16 | v << 8 | v;
+                        break;
+                    }
+                    case PALETTE: {
+                        int index = samples[s];
+                        int alpha = trns != null && index < trns.length ? trns[index] & 0xFF : 0xFF;
+                        colors[i] = alpha << 24 | (palette[index * 3] & 0xFF) << 16
+                                | (palette[index * 3 + 1] & 0xFF) << 8 | (palette[index * 3 + 2] & 0xFF);
+                        break;
+                    }
+                    case GREY_ALPHA: {
+                        int v = scale(samples[s]);
+                        colors[i] = scale(samples[s + 1]) << 24 | v << 16 | v << 8 | v;
+                        break;
+                    }
+                    case RGB: {
+                        boolean transparent = trns != null && samples[s] == readShort(trns, 0)
+                                && samples[s + 1] == readShort(trns, 2) && samples[s + 2] == readShort(trns, 4);
+                        colors[i] = (transparent ? 0 : 0xFF000000) | scale(samples[s]) << 16
+                                | scale(samples[s + 1]) << 8 | scale(samples[s + 2]);
+                        break;
+                    }
+                    default:
+                        colors[i] = scale(samples[s + 3]) << 24 | scale(samples[s]) << 16
+                                | scale(samples[s + 1]) << 8 | scale(samples[s + 2]);
+                        break;
+                }
+            }
+            return colors;
+        }
+
+        private int scale(int value) {
+            return bitDepth == 16 ? value >> 8 : bitDepth == 8 ? value : value * 255 / ((1 << bitDepth) - 1);
+        }
+
+        File write() throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.write(new byte[]{(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'});
+            byte[] header = new byte[13];
+            putInt(header, 0, WIDTH);
+            putInt(header, 4, HEIGHT);
+            header[8] = (byte) bitDepth;
+            header[9] = (byte) colorType;
+            header[12] = (byte) interlace;
+            writeChunk(out, "IHDR", header);
+            if (palette != null) {
+                writeChunk(out, "PLTE", palette);
+            }
+            if (trns != null) {
+                writeChunk(out, "tRNS", trns);
+            }
+            byte[] data = deflate(filteredRows());
+            for (int offset = 0; offset < data.length; offset += chunkSize) {
+                writeChunk(out, "IDAT", java.util.Arrays.copyOfRange(data, offset,
+                        (int) Math.min(data.length, (long) offset + chunkSize)));
+                if (ancillary) {
+                    writeChunk(out, "tEXt", "Comment\0between data".getBytes("ISO-8859-1"));
+                }
+            }
+            writeChunk(out, "IEND", new byte[0]);
+            File file = newFile();
+            Files.write(file.toPath(), out.toByteArray());
+            return file;
+        }
+
+        private byte[] filteredRows() {
+            final int bitsPerPixel = channels * bitDepth;
+            final int rowBytes = (WIDTH * bitsPerPixel + 7) / 8;
+            final int bpp = Math.max(1, bitsPerPixel / 8);
+            byte[] previous = new byte[rowBytes];
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            for (int y = 0; y < HEIGHT; y++) {
+                byte[] row = new byte[rowBytes];
+                for (int i = 0; i < WIDTH * channels; i++) {
+                    final int value = samples[y * WIDTH * channels + i];
+                    if (bitDepth == 16) {
+                        row[i * 2] = (byte) (value >> 8);
+                        row[i * 2 + 1] = (byte) value;
+                    } else if (bitDepth == 8) {
+                        row[i] = (byte) value;
+                    } else {
+                        final int bit = i * bitDepth;
+                        row[bit >> 3] |= value << (8 - bitDepth - (bit & 7));
+                    }
+                }
+                final int filter = filters[y % filters.length];
+                out.write(filter);
+                for (int i = 0; i < rowBytes; i++) {
+                    final int a = i >= bpp ? row[i - bpp] & 0xFF : 0;
+                    final int b = previous[i] & 0xFF;
+                    final int c = i >= bpp ? previous[i - bpp] & 0xFF : 0;
+                    final int predicted;
+                    switch (filter) {
+                        case 1:
+                            predicted = a;
+                            break;
+                        case 2:
+                            predicted = b;
+                            break;
+                        case 3:
+                            predicted = (a + b) >> 1;
+                            break;
+                        case 4: {
+                            int p = a + b - c;
+                            int pa = Math.abs(p - a);
+                            int pb = Math.abs(p - b);
+                            int pc = Math.abs(p - c);
+                            predicted = pa <= pb && pa <= pc ? a : pb <= pc ? b : c;
+                            break;
+                        }
+                        default:
+                            predicted = 0;
+                            break;
+                    }
+                    out.write((row[i] - predicted) & 0xFF);
+                }
+                previous = row;
+            }
+            return out.toByteArray();
+        }
+
+        @Override
+        public String toString() {
+            return "colour type " + colorType + ", " + bitDepth + " bits" + (trns != null ? ", tRNS" : "");
+        }
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater();
+        deflater.setInput(data);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        while (!deflater.finished()) {
+            out.write(buffer, 0, deflater.deflate(buffer));
+        }
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    private static void writeChunk(ByteArrayOutputStream out, String type, byte[] data) throws IOException {
+        byte[] length = new byte[4];
+        putInt(length, 0, data.length);
+        out.write(length);
+        byte[] typeBytes = type.getBytes("US-ASCII");
+        out.write(typeBytes);
+        out.write(data);
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data);
+        byte[] value = new byte[4];
+        putInt(value, 0, (int) crc.getValue());
+        out.write(value);
+    }
+
+    private static void putInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    private static int readShort(byte[] data, int offset) {
+        return (data[offset] & 0xFF) << 8 | (data[offset + 1] & 0xFF);
+    }
+}
@@ -0,0 +1,270 @@
+package com.ssoliwal.image;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Resume, revalidation and de-duplication of downloads against an embedded HTTP server.
+ *
+ * @author Shailesh Soliwal
+ */
+
+public class ResumableDownloadTest {
+    private static final String ETAG = "\"v1\"";
+
+    private HttpServer mServer;
+    private File mDir;
+    private File mFile;
+    private URL mUrl;
+    private volatile byte[] mBody = bytes(100000, 1);
+    private volatile String mEtag = ETAG;
+    private volatile CountDownLatch mRequestArrived;
+    private volatile CountDownLatch mRelease;
+    private final List<String> mRanges = Collections.synchronizedList(new ArrayList<String>());
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = Files.createTempDirectory("download").toFile();
+        mFile = new File(mDir, "image");
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/image", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        mServer.start();
+        mUrl = new URL("http://127.0.0.1:" + mServer.getAddress().getPort() + "/image");
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop(0);
+        for (File file : mDir.listFiles()) {
+            file.delete();
+        }
+        mDir.delete();
+    }
+
+    /**
+     * A minimal server for a single resource: ranges, If-Range against the current ETag and 416.
+     */
+    private void serve(HttpExchange exchange) throws IOException {
+        if (mRequestArrived != null) {
+            mRequestArrived.countDown();
+        }
+        if (mRelease != null) {
+            try {
+                mRelease.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        final byte[] body = mBody;
+        final String range = exchange.getRequestHeaders().getFirst("Range");
+        final String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+        mRanges.add(range);
+        exchange.getResponseHeaders().set("ETag", mEtag);
+        int first = 0;
+        if (range != null && (ifRange == null || ifRange.equals(mEtag))) {
+            first = Integer.parseInt(range.substring("bytes=".length(), range.indexOf('-')));
+            if (first >= body.length) {
+                exchange.getResponseHeaders().set("Content-Range", "bytes */" + body.length);
+                exchange.sendResponseHeaders(416, -1);
+                exchange.close();
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Range",
+                    "bytes " + first + "-" + (body.length - 1) + "/" + body.length);
+            exchange.sendResponseHeaders(206, body.length - first);
+        } else {
+            exchange.sendResponseHeaders(200, body.length);
+        }
+        OutputStream out = exchange.getResponseBody();
+        out.write(body, first, body.length - first);
+        out.close();
+    }
+
+    @Test
+    public void downloadsWholeFile() throws IOException {
+        ResumableDownload download = new ResumableDownload(mUrl, mFile);
+        assertTrue(download.run(null));
+        assertArrayEquals(mBody, Files.readAllBytes(mFile.toPath()));
+        assertEquals(mBody.length, download.getTotalBytes());
+        assertFalse(download.getPartFile().exists());
+        assertEquals(Collections.singletonList((String) null), mRanges);
+    }
+
+    @Test
+    public void resumesPartialFile() throws IOException {
+        writePartial(40000, ETAG);
+        ResumableDownload download = new ResumableDownload(mUrl, mFile);
+        assertTrue(download.run(null));
+        assertEquals(Collections.singletonList("bytes=40000-"), mRanges);
+        assertArrayEquals(mBody, Files.readAllBytes(mFile.toPath()));
+    }
+
+    @Test
+    public void restartsWhenEtagChanged() throws IOException {
+        writePartial(40000, ETAG);
+        mBody = bytes(70000, 7);
+        mEtag = "\"v2\"";
+        ResumableDownload download = new ResumableDownload(mUrl, mFile);
+        assertTrue(download.run(null));
+        // The stale bytes are dropped, not spliced onto the new image
+        assertArrayEquals(mBody, Files.readAllBytes(mFile.toPath()));
+    }
+
+    @Test
+    public void partialWithoutEtagStartsOver() throws IOException {
+        writePartial(40000, null);
+        assertTrue(new ResumableDownload(mUrl, mFile).run(null));
+        assertEquals(Collections.singletonList((String) null), mRanges);
+        assertArrayEquals(mBody, Files.readAllBytes(mFile.toPath()));
+    }
+
+    @Test
+    public void completesOnRangeNotSatisfiable() throws IOException {
+        writePartial(mBody.length, ETAG);
+        assertTrue(new ResumableDownload(mUrl, mFile).run(null));
+        assertEquals(1, mRanges.size());
+        assertArrayEquals(mBody, Files.readAllBytes(mFile.toPath()));
+    }
+
+    @Test
+    public void restartsWhenRangeNotSatisfiableDisagrees() throws IOException {
+        // The partial file is longer than the image now is
+        writePartial(mBody.length, ETAG);
+        mBody = bytes(50000, 3);
+        assertTrue(new ResumableDownload(mUrl, mFile).run(null));
+        assertEquals(2, mRanges.size());
+        assertNull(mRanges.get(1));
+        assertArrayEquals(mBody, Files.readAllBytes(mFile.toPath()));
+    }
+
+    @Test
+    public void servesCompleteFileWithoutNetwork() throws IOException {
+        assertTrue(new ResumableDownload(mUrl, mFile).run(null));
+        assertTrue(new ResumableDownload(mUrl, mFile).run(null));
+        assertEquals(1, mRanges.size());
+    }
+
+    @Test
+    public void reportsProgress() throws IOException {
+        final long[] last = new long[2];
+        assertTrue(new ResumableDownload(mUrl, mFile).run(new ResumableDownload.Receiver() {
+            @Override
+            public void onReceived(RandomAccessFile file, long received, long total) throws IOException {
+                assertEquals(received, file.getFilePointer());
+                last[0] = received;
+                last[1] = total;
+            }
+        }));
+        assertEquals(mBody.length, last[0]);
+        assertEquals(mBody.length, last[1]);
+    }
+
+    @Test
+    public void sameFileDownloadsOnce() throws Exception {
+        mRequestArrived = new CountDownLatch(1);
+        mRelease = new CountDownLatch(1);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread first = start(new ResumableDownload(mUrl, mFile), error);
+        mRequestArrived.await();
+        Thread second = start(new ResumableDownload(mUrl, mFile), error);
+        awaitWaiting(second);
+
+        mRelease.countDown();
+        first.join();
+        second.join();
+        assertNull(error.get());
+        assertEquals(1, mRanges.size());
+        assertArrayEquals(mBody, Files.readAllBytes(mFile.toPath()));
+    }
+
+    @Test
+    public void waitingDownloadCanBeInterrupted() throws Exception {
+        mRequestArrived = new CountDownLatch(1);
+        mRelease = new CountDownLatch(1);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread first = start(new ResumableDownload(mUrl, mFile), error);
+        mRequestArrived.await();
+        final AtomicReference<Throwable> waitingError = new AtomicReference<>();
+        Thread second = start(new ResumableDownload(mUrl, mFile), waitingError);
+        awaitWaiting(second);
+
+        second.interrupt();
+        second.join();
+        assertTrue(waitingError.get() instanceof InterruptedIOException);
+        mRelease.countDown();
+        first.join();
+        assertNull(error.get());
+    }
+
+    private static Thread start(final ResumableDownload download, final AtomicReference<Throwable> error) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    assertTrue(download.run(null));
+                } catch (Throwable e) {
+                    error.set(e);
+                }
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private static void awaitWaiting(Thread thread) throws InterruptedException {
+        while (thread.getState() != Thread.State.WAITING) {
+            Thread.sleep(1);
+        }
+    }
+
+    private void writePartial(int length, String etag) throws IOException {
+        FileOutputStream out = new FileOutputStream(mFile.getPath() + ".part");
+        try {
+            out.write(mBody, 0, length);
+        } finally {
+            out.close();
+        }
+        if (etag != null) {
+            Files.write(new File(mFile.getPath() + ".etag").toPath(), etag.getBytes("UTF-8"));
+        }
+    }
+
+    private static byte[] bytes(int length, int seed) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31 + seed);
+        }
+        return data;
+    }
+}
@@ -0,0 +1,119 @@
+package com.ssoliwal.image;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tiles cut by {@link TileGrid} and decoded through a {@link PixelDecoder} against full decodes at every
+ * level.
+ *
+ * @author Shailesh Soliwal
+ */
+
+public class TileGridTest {
+    // Edges cut every level's last tiles short
+    private static final int WIDTH = 301;
+    private static final int HEIGHT = 173;
+    private static final int TILE_SIZE = 32;
+
+    private static File sFile;
+    private static int[] sColors;
+
+    @BeforeClass
+    public static void writeImage() throws IOException {
+        sColors = new int[WIDTH * HEIGHT];
+        Random random = new Random(1);
+        for (int i = 0; i < sColors.length; i++) {
+            sColors[i] = random.nextInt();
+        }
+        sFile = File.createTempFile("tiles", ".png");
+        FileOutputStream out = new FileOutputStream(sFile);
+        try {
+            PngStreamWriter writer = new PngStreamWriter(out, WIDTH, HEIGHT);
+            writer.writeRows(sColors, 0, WIDTH, HEIGHT);
+            writer.finish();
+        } finally {
+            out.close();
+        }
+    }
+
+    @AfterClass
+    public static void deleteImage() {
+        sFile.delete();
+    }
+
+    @Test
+    public void countsTiles() {
+        TileGrid grid = new TileGrid(WIDTH, HEIGHT, TILE_SIZE);
+        assertEquals(10, grid.getCols(0));
+        assertEquals(6, grid.getRows(0));
+        assertEquals(5, grid.getCols(1));
+        assertEquals(3, grid.getRows(1));
+        assertEquals(1, grid.getCols(4));
+        assertEquals(1, grid.getRows(4));
+        assertEquals(301, grid.getRight(0, 9));
+        assertEquals(13, grid.getTileWidth(0, 9));
+        assertEquals(23, grid.getTileWidth(1, 4));
+        assertEquals(TILE_SIZE, grid.getTileHeight(1, 1));
+    }
+
+    @Test
+    public void clampsVisibleTiles() {
+        TileGrid grid = new TileGrid(WIDTH, HEIGHT, TILE_SIZE);
+        assertEquals(0, grid.colAt(0, -50f));
+        assertEquals(0, grid.colAt(0, 31.9f));
+        assertEquals(1, grid.colAt(0, 32f));
+        assertEquals(9, grid.colAt(0, 5000f));
+        assertEquals(2, grid.rowAt(1, 150f));
+        assertEquals(2, grid.rowAt(1, 5000f));
+    }
+
+    @Test
+    public void previewLevelCoversPreview() {
+        TileGrid grid = new TileGrid(4000, 3000, 1024);
+        assertEquals(0, grid.getPreviewLevel(4000));
+        assertEquals(1, grid.getPreviewLevel(2000));
+        assertEquals(1, grid.getPreviewLevel(1999));
+        assertEquals(2, grid.getPreviewLevel(1000));
+    }
+
+    @Test
+    public void tilesAssembleToFullDecode() throws IOException {
+        PixelDecoder decoder = ReferenceDecoder.open(sFile);
+        TileGrid grid = new TileGrid(WIDTH, HEIGHT, TILE_SIZE);
+        final int levels = grid.getPreviewLevel(1) + 1;
+        for (int level = 0; level < levels; level++) {
+            final int sampleSize = 1 << level;
+            final int width = (WIDTH + sampleSize - 1) / sampleSize;
+            final int height = (HEIGHT + sampleSize - 1) / sampleSize;
+            PixelBuffer full = new PixelBuffer(width, height);
+            decoder.decodeRegion(0, 0, WIDTH, HEIGHT, sampleSize, full);
+            if (level == 0) {
+                assertArrayEquals(sColors, full.getPixels());
+            }
+
+            // Every tile of a level is at most tile size and lands at a multiple of it
+            PixelBuffer assembled = new PixelBuffer(width, height);
+            for (int row = 0; row < grid.getRows(level); row++) {
+                for (int col = 0; col < grid.getCols(level); col++) {
+                    PixelBuffer tile = new PixelBuffer(grid.getTileWidth(level, col),
+                            grid.getTileHeight(level, row));
+                    grid.decodeTile(decoder, level, col, row, tile);
+                    assembled.setPixels(tile.getPixels(), 0, tile.getWidth(), col * TILE_SIZE, row * TILE_SIZE,
+                            tile.getWidth(), tile.getHeight());
+                }
+            }
+            assertArrayEquals("Level " + level, full.getPixels(), assembled.getPixels());
+        }
+        decoder.close();
+    }
+}
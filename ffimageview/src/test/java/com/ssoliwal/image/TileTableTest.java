@@ -0,0 +1,240 @@
+package com.ssoliwal.image;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Behaviour of {@link TileTable} against a {@link LinkedHashMap} in access order, and a microbenchmark of
+ * the per-frame tile lookups against {@link HashMap} and {@link LinkedHashMap}.
+ *
+ * @author Shailesh Soliwal
+ */
+
+public class TileTableTest {
+    // A viewport of 4 by 3 tiles panned over a 64 by 64 tile level, with 48 tiles retained
+    private static final int GRID = 64;
+    private static final int VISIBLE_COLS = 4;
+    private static final int VISIBLE_ROWS = 3;
+    private static final int RETAINED = 48;
+    private static final int FRAMES = 200000;
+    private static final int WARMUP_FRAMES = 50000;
+    private static final int ROUNDS = 5;
+
+    @Test
+    public void packsKeys() {
+        final long key = TileTable.key(5, 0x1FFFFF, 12345);
+        assertEquals(5, TileTable.levelOf(key));
+        assertEquals(0x1FFFFF, TileTable.colOf(key));
+        assertEquals(12345, TileTable.rowOf(key));
+    }
+
+    @Test
+    public void ordersByRecentUse() {
+        TileTable<String> table = new TileTable<>(4);
+        table.put(1, "a");
+        table.put(2, "b");
+        table.put(3, "c");
+        assertEquals("a", table.get(1));
+        assertEquals("b", table.peek(2));
+        assertEquals(list(2L, 3L, 1L), keys(table));
+        assertEquals("c", table.put(3, "d"));
+        assertEquals(list(2L, 1L, 3L), keys(table));
+    }
+
+    @Test
+    public void removesWhileWalking() {
+        TileTable<Integer> table = new TileTable<>(4);
+        for (int i = 0; i < 10; i++) {
+            table.put(i, i);
+        }
+        for (int slot = table.eldest(); slot >= 0; ) {
+            final int next = table.newer(slot);
+            if (table.keyAt(slot) % 2 == 0) {
+                table.removeAt(slot);
+            }
+            slot = next;
+        }
+        assertEquals(list(1L, 3L, 5L, 7L, 9L), keys(table));
+        assertNull(table.get(4));
+    }
+
+    @Test
+    public void matchesLinkedHashMap() {
+        final Random random = new Random(1);
+        TileTable<Integer> table = new TileTable<>(8);
+        LinkedHashMap<Long, Integer> map = new LinkedHashMap<>(8, 0.75f, true);
+        for (int i = 0; i < 200000; i++) {
+            final long key = TileTable.key(random.nextInt(3), random.nextInt(20), random.nextInt(20));
+            switch (random.nextInt(4)) {
+                case 0:
+                case 1:
+                    assertEquals(map.get(key), table.get(key));
+                    break;
+                case 2:
+                    assertEquals(map.put(key, i), table.put(key, i));
+                    break;
+                default:
+                    assertEquals(map.remove(key), table.remove(key));
+                    break;
+            }
+            assertEquals(map.size(), table.size());
+            if (map.size() > 300) {
+                // Evict the eldest like the renderer does
+                Iterator<Map.Entry<Long, Integer>> eldest = map.entrySet().iterator();
+                final long expected = eldest.next().getKey();
+                eldest.remove();
+                assertEquals(expected, table.keyAt(table.eldest()));
+                table.removeAt(table.eldest());
+            }
+        }
+        assertEquals(new ArrayList<>(map.keySet()), keys(table));
+    }
+
+    /**
+     * Pans a viewport across a level; every frame looks up the visible tiles, loads the missing ones and
+     * evicts the least recently used past the retained count.
+     */
+    @Test
+    public void benchmarkFrameLookups() {
+        // Best of interleaved rounds, after warming up all three
+        frames(new TileTable<Object>(RETAINED), WARMUP_FRAMES);
+        frames(new HashMap<Long, Object>(), WARMUP_FRAMES);
+        frames(new LinkedHashMap<Long, Object>(RETAINED, 0.75f, true), WARMUP_FRAMES);
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long tableNanos = Long.MAX_VALUE;
+        long hashNanos = Long.MAX_VALUE;
+        long linkedNanos = Long.MAX_VALUE;
+        long tableAllocated = Long.MAX_VALUE;
+        long linkedAllocated = Long.MAX_VALUE;
+        long tableSum = 0;
+        long hashSum = 0;
+        long linkedSum = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            final long tableBytes = allocatedBytes(threads);
+            long start = System.nanoTime();
+            tableSum = frames(new TileTable<Object>(RETAINED), FRAMES);
+            tableNanos = Math.min(tableNanos, System.nanoTime() - start);
+            tableAllocated = Math.min(tableAllocated, allocatedBytes(threads) - tableBytes);
+
+            start = System.nanoTime();
+            hashSum = frames(new HashMap<Long, Object>(), FRAMES);
+            hashNanos = Math.min(hashNanos, System.nanoTime() - start);
+
+            final long linkedBytes = allocatedBytes(threads);
+            start = System.nanoTime();
+            linkedSum = frames(new LinkedHashMap<Long, Object>(RETAINED, 0.75f, true), FRAMES);
+            linkedNanos = Math.min(linkedNanos, System.nanoTime() - start);
+            linkedAllocated = Math.min(linkedAllocated, allocatedBytes(threads) - linkedBytes);
+        }
+
+        final int lookups = FRAMES * VISIBLE_COLS * VISIBLE_ROWS;
+        // Timings are only reported when an assertion fails
+        final String report = "TileTable " + tableNanos / lookups + " ns/lookup, " + tableAllocated + " bytes"
+                + "; HashMap " + hashNanos / lookups + " ns/lookup"
+                + "; LinkedHashMap " + linkedNanos / lookups + " ns/lookup, " + linkedAllocated + " bytes";
+        // Same hits; HashMap has no recency order and so keeps every tile it loaded
+        assertEquals(report, linkedSum, tableSum);
+        assertTrue(report, hashSum >= tableSum);
+        if (allocatedBytes(threads) >= 0) {
+            // Nothing is boxed, and dropping tombstones reuses the spare arrays
+            assertTrue(report, tableAllocated < 64 * 1024);
+        }
+    }
+
+    private static final Object TILE = new Object();
+
+    private static long frames(TileTable<Object> table, int frames) {
+        long hits = 0;
+        for (int frame = 0; frame < frames; frame++) {
+            final int firstCol = col(frame);
+            final int firstRow = row(frame);
+            for (int row = firstRow; row < firstRow + VISIBLE_ROWS; row++) {
+                for (int col = firstCol; col < firstCol + VISIBLE_COLS; col++) {
+                    final long key = TileTable.key(0, col, row);
+                    if (table.get(key) != null) {
+                        hits++;
+                    } else {
+                        table.put(key, TILE);
+                    }
+                }
+            }
+            while (table.size() > RETAINED) {
+                table.removeAt(table.eldest());
+            }
+        }
+        return hits;
+    }
+
+    private static long frames(Map<Long, Object> map, int frames) {
+        final boolean ordered = map instanceof LinkedHashMap;
+        long hits = 0;
+        for (int frame = 0; frame < frames; frame++) {
+            final int firstCol = col(frame);
+            final int firstRow = row(frame);
+            for (int row = firstRow; row < firstRow + VISIBLE_ROWS; row++) {
+                for (int col = firstCol; col < firstCol + VISIBLE_COLS; col++) {
+                    final long key = TileTable.key(0, col, row);
+                    if (map.get(key) != null) {
+                        hits++;
+                    } else {
+                        map.put(key, TILE);
+                    }
+                }
+            }
+            if (ordered) {
+                Iterator<Long> eldest = map.keySet().iterator();
+                for (int excess = map.size() - RETAINED; excess > 0; excess--) {
+                    eldest.next();
+                    eldest.remove();
+                }
+            }
+        }
+        return hits;
+    }
+
+    // Pans one tile every 8 frames, right along a row band and then down
+    private static int col(int frame) {
+        return (frame / 8) % (GRID - VISIBLE_COLS);
+    }
+
+    private static int row(int frame) {
+        return (frame / (8 * (GRID - VISIBLE_COLS))) % (GRID - VISIBLE_ROWS);
+    }
+
+    private static long allocatedBytes(ThreadMXBean threads) {
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(
+                    Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private static List<Long> keys(TileTable<?> table) {
+        List<Long> keys = new ArrayList<>();
+        for (int slot = table.eldest(); slot >= 0; slot = table.newer(slot)) {
+            keys.add(table.keyAt(slot));
+        }
+        return keys;
+    }
+
+    private static List<Long> list(Long... keys) {
+        List<Long> list = new ArrayList<>();
+        for (Long key : keys) {
+            list.add(key);
+        }
+        return list;
+    }
+}
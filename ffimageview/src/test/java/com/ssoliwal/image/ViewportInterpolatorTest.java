@@ -0,0 +1,126 @@
+package com.ssoliwal.image;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Frames of {@link ViewportInterpolator}: where they start, pass and end, and what a frame costs.
+ *
+ * @author Shailesh Soliwal
+ */
+
+public class ViewportInterpolatorTest {
+    private static final int FRAMES = 1000000;
+    // Both runs do the same arithmetic; the margin only absorbs timing noise
+    private static final long MAX_COST_RATIO = 3;
+
+    @Test
+    public void startsAndEndsExactly() {
+        ViewportInterpolator interpolator = new ViewportInterpolator();
+        interpolator.set(37.3f, 1.7f, 120.1f, 95.9f, -322.7f, 0.31f, 640.5f, 480.25f);
+        assertEquals(37.3f, interpolator.getDegrees(), 0f);
+        assertEquals(1.7f, interpolator.getScale(), 0f);
+        assertEquals(120.1f, interpolator.getX(), 0f);
+        assertEquals(95.9f, interpolator.getY(), 0f);
+
+        interpolator.update(1f);
+        assertEquals(-322.7f, interpolator.getDegrees(), 0f);
+        assertEquals(0.31f, interpolator.getScale(), 0f);
+        assertEquals(640.5f, interpolator.getX(), 0f);
+        assertEquals(480.25f, interpolator.getY(), 0f);
+        // A late frame does not overshoot
+        interpolator.update(1.5f);
+        assertEquals(-322.7f, interpolator.getDegrees(), 0f);
+    }
+
+    @Test
+    public void easesHalfwayAtHalfTime() {
+        ViewportInterpolator interpolator = new ViewportInterpolator();
+        interpolator.set(0f, 1f, 0f, 100f, 90f, 4f, 200f, 0f);
+        interpolator.update(0.5f);
+        assertEquals(45f, interpolator.getDegrees(), 1e-4f);
+        // Geometric, so zooming in and out look alike
+        assertEquals(2f, interpolator.getScale(), 1e-4f);
+        assertEquals(100f, interpolator.getX(), 1e-3f);
+        assertEquals(50f, interpolator.getY(), 1e-3f);
+    }
+
+    @Test
+    public void movesMonotonically() {
+        ViewportInterpolator interpolator = new ViewportInterpolator();
+        interpolator.set(10f, 3f, 0f, 0f, -700f, 0.5f, 50f, 50f);
+        float degrees = interpolator.getDegrees();
+        float scale = interpolator.getScale();
+        for (int frame = 1; frame <= 60; frame++) {
+            interpolator.update(frame / 60f);
+            assertTrue(interpolator.getDegrees() <= degrees);
+            assertTrue(interpolator.getScale() <= scale);
+            degrees = interpolator.getDegrees();
+            scale = interpolator.getScale();
+        }
+        assertEquals(-700f, degrees, 0f);
+    }
+
+    @Test
+    public void onlyRotationsAreCompleted() {
+        ViewportInterpolator interpolator = new ViewportInterpolator();
+        interpolator.set(90f, 1f, 0f, 0f, 90f, 2f, 10f, 10f);
+        assertFalse(interpolator.isRotating());
+        interpolator.set(90f, 1f, 0f, 0f, 127f, 1f, 0f, 0f);
+        assertTrue(interpolator.isRotating());
+    }
+
+    /**
+     * A quarter turn and ten full turns cost the same per frame, and no frame allocates.
+     */
+    @Test
+    public void frameCostIsConstant() {
+        ViewportInterpolator interpolator = new ViewportInterpolator();
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        frames(interpolator, 90f, FRAMES);
+        frames(interpolator, 3600f, FRAMES);
+        long quarterNanos = Long.MAX_VALUE;
+        long turnsNanos = Long.MAX_VALUE;
+        long allocated = Long.MAX_VALUE;
+        for (int round = 0; round < 5; round++) {
+            final long bytes = allocatedBytes(threads);
+            long start = System.nanoTime();
+            frames(interpolator, 90f, FRAMES);
+            quarterNanos = Math.min(quarterNanos, System.nanoTime() - start);
+            allocated = Math.min(allocated, allocatedBytes(threads) - bytes);
+
+            start = System.nanoTime();
+            frames(interpolator, 3600f, FRAMES);
+            turnsNanos = Math.min(turnsNanos, System.nanoTime() - start);
+        }
+        assertTrue("Quarter turn " + quarterNanos + " ns, ten turns " + turnsNanos + " ns",
+                turnsNanos <= quarterNanos * MAX_COST_RATIO && quarterNanos <= turnsNanos * MAX_COST_RATIO);
+        if (allocatedBytes(threads) >= 0) {
+            assertEquals(0, allocated);
+        }
+    }
+
+    private static float frames(ViewportInterpolator interpolator, float degrees, int frames) {
+        float sum = 0;
+        interpolator.set(0f, 1f, 0f, 0f, degrees, 2.5f, 300f, 200f);
+        for (int frame = 0; frame < frames; frame++) {
+            interpolator.update((frame % 60) / 60f);
+            sum += interpolator.getDegrees() + interpolator.getScale() + interpolator.getX();
+        }
+        return sum;
+    }
+
+    private static long allocatedBytes(ThreadMXBean threads) {
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(
+                    Thread.currentThread().getId());
+        }
+        return -1;
+    }
+}
@@ -6,18 +6,16 @@ import android.app.AlertDialog;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.pm.PackageManager;
-import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.media.ExifInterface;
 import android.net.Uri;
 import android.os.Bundle;
-import android.os.Handler;
 import android.support.v4.app.ActivityCompat;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 
 import com.ssoliwal.image.FFImageView;
+import com.ssoliwal.image.FileImageSource;
 
 import java.io.IOException;
 
@@ -92,50 +90,22 @@ public class MainActivity extends Activity {
         if (resultCode == RESULT_OK) {
             if (requestCode == PHOTO_GALLERY) {
                 Uri selectedImageUri = data.getData();
-                int rotation = 0;
 
-                //get real path to find orientation degree
+                //get real path to check the image format
                 String realPath = RealPathUtil.getRealPath(getApplicationContext(), selectedImageUri);
-                if (realPath != null && (realPath.endsWith(".jpg") || realPath.endsWith(".png") || realPath.endsWith(".jpeg") || realPath.endsWith(".bmp"))) {
-                    ExifInterface exifInterface = null;
-                    try {
-                        exifInterface = new ExifInterface(realPath);
-                        int degree = Integer.parseInt(exifInterface.getAttribute(ExifInterface.TAG_ORIENTATION));
-                        if (degree == ExifInterface.ORIENTATION_NORMAL)
-                            rotation = 0;
-                        else if (degree == ExifInterface.ORIENTATION_ROTATE_90)
-                            rotation = -270;
-                        else if (degree == ExifInterface.ORIENTATION_ROTATE_180)
-                            rotation = -180;
-                        else if (degree == ExifInterface.ORIENTATION_ROTATE_270)
-                            rotation = -90;
-
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                } else {
+                if (realPath == null || !(realPath.endsWith(".jpg") || realPath.endsWith(".png") || realPath.endsWith(".jpeg") || realPath.endsWith(".bmp"))) {
                     showImageFormatError();
                     return;
                 }
 
-                final FFImageView sv2 = (FFImageView) findViewById(R.id.image);
+                FFImageView sv2 = (FFImageView) findViewById(R.id.image);
                 if (sv2 != null) {
                     try {
-                        byte[] bytes = Utils.readBytes(getApplicationContext(), selectedImageUri);
-                        BitmapFactory.Options options = new BitmapFactory.Options();
-                        options.inSampleSize = 1;
-                        Bitmap bitmap = BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+                        // Decoded straight from the file descriptor, the view applies the Exif orientation
+                        FileImageSource source = FileImageSource.open(getApplicationContext(), selectedImageUri);
                         sv2.clear();
-                        sv2.setBitmap(bitmap);
+                        sv2.setImageSource(source);
                         sv2.invalidate();
-
-                        final int finalRotation = rotation;
-                        new Handler().postDelayed(new Runnable() {
-                            @Override
-                            public void run() {
-                                sv2.rotateImage(finalRotation, false);
-                            }
-                        }, 200);
                     } catch (IOException e) {
                         e.printStackTrace();
                     }
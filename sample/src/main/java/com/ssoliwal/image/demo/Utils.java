@@ -1,41 +1,16 @@
 package com.ssoliwal.image.demo;
 
 import android.app.Dialog;
-import android.content.Context;
-import android.net.Uri;
 import android.os.Handler;
 import android.os.Looper;
 import android.view.WindowManager;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-
 public class Utils {
 
 	static public void runOnUIThread(Runnable runnable) {
 		new Handler(Looper.getMainLooper()).post(runnable);
 	}
 
-	static public byte[] readBytes(Context context, Uri uri) throws IOException {
-		// this dynamically extends to take the bytes you read
-		InputStream inputStream = context.getContentResolver().openInputStream(uri);
-		ByteArrayOutputStream byteBuffer = new ByteArrayOutputStream();
-
-		// this is storage overwritten on each iteration with bytes
-		int bufferSize = 1024;
-		byte[] buffer = new byte[bufferSize];
-
-		// we need to know how may bytes were read to write them to the byteBuffer
-		int len = 0;
-		while ((len = inputStream.read(buffer)) != -1) {
-			byteBuffer.write(buffer, 0, len);
-		}
-
-		// and then we can return your byte array.
-		return byteBuffer.toByteArray();
-	}
-
 	// Prevent dialog dismiss when orientation changes
 	public static void keepDialogOrientation(Dialog dialog){
 		WindowManager.LayoutParams lp = new WindowManager.LayoutParams();